@@ -8,6 +8,7 @@ import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule.RCTDeviceEventEmitter;
+import com.guichaguri.trackplayer.service.SystemTrace;
 
 /**
  * @author Guichaguri
@@ -35,6 +36,12 @@ public class MusicEvents extends BroadcastReceiver {
     public static final String PLAYBACK_QUEUE_ENDED = "playback-queue-ended";
     public static final String PLAYBACK_METADATA = "playback-metadata-received";
     public static final String PLAYBACK_ERROR = "playback-error";
+    public static final String PLAYBACK_STARTUP = "playback-startup";
+    public static final String PLAYBACK_LATENCY = "playback-latency";
+    public static final String PLAYBACK_QOE = "playback-qoe";
+    public static final String CHAPTER_CHANGED = "chapter-changed";
+    public static final String BROWSE_CHILDREN_REQUEST = "browse-children-request";
+    public static final String VISUALIZER_FRAMES = "visualizer-frames";
 
     private final ReactContext reactContext;
 
@@ -44,12 +51,17 @@ public class MusicEvents extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        String event = intent.getStringExtra("event");
-        Bundle data = intent.getBundleExtra("data");
+        boolean traced = SystemTrace.begin("TrackPlayer:onReceive");
+        try {
+            String event = intent.getStringExtra("event");
+            Bundle data = intent.getBundleExtra("data");
 
-        WritableMap map = data != null ? Arguments.fromBundle(data) : null;
+            WritableMap map = data != null ? Arguments.fromBundle(data) : null;
 
-        reactContext.getJSModule(RCTDeviceEventEmitter.class).emit(event, map);
+            reactContext.getJSModule(RCTDeviceEventEmitter.class).emit(event, map);
+        } finally {
+            SystemTrace.end(traced);
+        }
     }
 
 }
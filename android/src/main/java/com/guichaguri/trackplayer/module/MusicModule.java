@@ -4,8 +4,10 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
@@ -13,6 +15,7 @@ import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContext;
@@ -20,16 +23,20 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.common.LifecycleState;
 import androidx.media3.common.C;
 import androidx.media3.common.Player;
 import androidx.media3.common.util.UnstableApi;
 
+import com.guichaguri.trackplayer.service.DebugTrace;
 import com.guichaguri.trackplayer.service.MusicBinder;
 import com.guichaguri.trackplayer.service.MusicService;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.metadata.BrowseTree;
 import com.guichaguri.trackplayer.service.models.NowPlayingMetadata;
 import com.guichaguri.trackplayer.service.models.Track;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
+import com.guichaguri.trackplayer.service.player.Prewarmer;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -44,13 +51,15 @@ import javax.annotation.Nullable;
  * @author Guichaguri
  */
 @UnstableApi
-public class MusicModule extends ReactContextBaseJavaModule implements ServiceConnection {
+public class MusicModule extends ReactContextBaseJavaModule implements ServiceConnection, LifecycleEventListener {
 
     private MusicBinder binder;
     private MusicEvents eventHandler;
     private ArrayDeque<Runnable> initCallbacks = new ArrayDeque<>();
     private boolean connecting = false;
     private Bundle options;
+    private volatile boolean visualizerSubscribed = false;
+    private boolean prewarmPending = false;
     ReactApplicationContext reactAppContext;
 
     public MusicModule(ReactApplicationContext reactAppContext) {
@@ -70,6 +79,15 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
         eventHandler = new MusicEvents(context);
         manager.registerReceiver(eventHandler, new IntentFilter(Utils.EVENT_INTENT));
+        getReactApplicationContext().addLifecycleEventListener(this);
+
+        if(Utils.isPrewarmEnabled(context)) {
+            // Gets the decoders ready before the first call
+            Prewarmer.prewarm();
+            // Android 8 doesn't allow starting the service while the app is in the background, such as
+            // when React is started by a headless task, so it's started once an activity is resumed
+            prewarmPending = true;
+        }
     }
 
     @Override
@@ -81,7 +99,30 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
 
             manager.unregisterReceiver(eventHandler);
             eventHandler = null;
+            BrowseTree.setListening(false);
         }
+
+        getReactApplicationContext().removeLifecycleEventListener(this);
+    }
+
+    @Override
+    public void onHostResume() {
+        if(prewarmPending) {
+            prewarmPending = false;
+            connect();
+        }
+
+        updateVisualizer();
+    }
+
+    @Override
+    public void onHostPause() {
+        updateVisualizer();
+    }
+
+    @Override
+    public void onHostDestroy() {
+        updateVisualizer();
     }
 
     @Override
@@ -98,6 +139,8 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         while(!initCallbacks.isEmpty()) {
             binder.post(initCallbacks.remove());
         }
+
+        updateVisualizer();
     }
 
     @Override
@@ -118,7 +161,14 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
             initCallbacks.add(r);
         }
 
-        if(connecting) return;
+        connect();
+    }
+
+    /**
+     * Starts and binds the service, unless it's already connected or connecting
+     */
+    private void connect() {
+        if(binder != null || connecting) return;
 
         ReactApplicationContext context = getReactApplicationContext();
 
@@ -181,7 +231,10 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
     public void setupPlayer(ReadableMap data, final Promise promise) {
         final Bundle options = Arguments.toBundle(data);
 
-        waitForConnection(() -> binder.setupPlayer(options, promise));
+        waitForConnection(() -> {
+            binder.setupPlayer(options, promise);
+            binder.setVisualizerActive(isVisualizerActive());
+        });
     }
 
     @ReactMethod
@@ -219,10 +272,13 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
     @ReactMethod
     public void add(ReadableArray tracks, final Integer insertBeforeIndex, final Promise callback) {
         final ArrayList bundleList = Arguments.toList(tracks);
+        final long requestTime = SystemClock.elapsedRealtime();
 
         waitForConnection(() -> {
             List<Track> trackList;
 
+            binder.getPlayback().setRequestTime(requestTime);
+
             try {
                 trackList = Track.createTracks(getReactApplicationContext(), bundleList, binder.getRatingType());
             } catch(Exception ex) {
@@ -340,6 +396,13 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void setAudioEffects(ReadableMap data, final Promise callback) {
+        final Bundle options = Arguments.toBundle(data);
+
+        waitForConnection(() -> binder.getPlayback().setAudioEffects(options, callback));
+    }
+
     @ReactMethod
     public void clearCache(final Promise callback) {
         waitForConnection(() -> {
@@ -349,17 +412,32 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
 
     @ReactMethod
     public void skip(final int index, final Promise callback) {
-        waitForConnection(() -> binder.getPlayback().skip(index, callback));
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skip(index, callback);
+        });
     }
 
     @ReactMethod
     public void skipToNext(final Promise callback) {
-        waitForConnection(() -> binder.getPlayback().skipToNext(callback));
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skipToNext(callback);
+        });
     }
 
     @ReactMethod
     public void skipToPrevious(final Promise callback) {
-        waitForConnection(() -> binder.getPlayback().skipToPrevious(callback));
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skipToPrevious(callback);
+        });
     }
 
     @ReactMethod
@@ -372,7 +450,11 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
 
     @ReactMethod
     public void play(final Promise callback) {
+        // Measured here to include the service startup in the time to first audio
+        final long requestTime = SystemClock.elapsedRealtime();
+
         waitForConnection(() -> {
+            binder.getPlayback().requestStartup(requestTime);
             binder.getPlayback().play();
             callback.resolve(null);
         });
@@ -396,13 +478,127 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
 
     @ReactMethod
     public void seekTo(final float seconds, final Promise callback) {
+        final long requestTime = SystemClock.elapsedRealtime();
+
         waitForConnection(() -> {
             long secondsToSkip = Utils.toMillis(seconds);
+            binder.getPlayback().setRequestTime(requestTime);
             binder.getPlayback().seekTo(secondsToSkip);
             callback.resolve(null);
         });
     }
 
+    @ReactMethod
+    public void getChapters(final Promise callback) {
+        waitForConnection(() -> binder.getPlayback().getChapters(callback));
+    }
+
+    @ReactMethod
+    public void getWaveform(ReadableMap data, final int buckets, final Promise callback) {
+        final Uri uri;
+
+        try {
+            uri = Utils.getUri(getReactApplicationContext(), Arguments.toBundle(data), "url");
+        } catch(RuntimeException ex) {
+            callback.reject("invalid_url", ex.getMessage(), ex);
+            return;
+        }
+
+        if(uri == null) {
+            callback.reject("invalid_url", "The URL is missing");
+            return;
+        }
+
+        waitForConnection(() -> binder.getPlayback().getWaveform(uri, buckets, callback));
+    }
+
+    /**
+     * Called by the JS side when the first visualizer listener is added and after the last one is removed
+     */
+    @ReactMethod
+    public void setVisualizerSubscribed(boolean subscribed, final Promise callback) {
+        visualizerSubscribed = subscribed;
+        updateVisualizer();
+        callback.resolve(null);
+    }
+
+    /**
+     * Called by the JS side when the first browse listener is added and after the last one is removed
+     */
+    @ReactMethod
+    public void setBrowseListening(boolean listening, final Promise callback) {
+        // Requests made before the app listens are kept until it does
+        BrowseTree.setListening(listening);
+        callback.resolve(null);
+    }
+
+    /**
+     * The visualizer only runs while something listens to it and the app is in the foreground
+     */
+    private boolean isVisualizerActive() {
+        return visualizerSubscribed && getReactApplicationContext().getLifecycleState() == LifecycleState.RESUMED;
+    }
+
+    private void updateVisualizer() {
+        final MusicBinder binder = this.binder;
+        if(binder == null) return;
+
+        final boolean active = isVisualizerActive();
+        binder.post(() -> binder.setVisualizerActive(active));
+    }
+
+    @ReactMethod
+    public void skipToChapter(final int index, final Promise callback) {
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skipToChapter(index, callback);
+        });
+    }
+
+    @ReactMethod
+    public void skipToNextChapter(final Promise callback) {
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skipToNextChapter(callback);
+        });
+    }
+
+    @ReactMethod
+    public void skipToPreviousChapter(final Promise callback) {
+        final long requestTime = SystemClock.elapsedRealtime();
+
+        waitForConnection(() -> {
+            binder.getPlayback().setRequestTime(requestTime);
+            binder.getPlayback().skipToPreviousChapter(callback);
+        });
+    }
+
+    @ReactMethod
+    public void setBrowseChildren(final int requestId, final ReadableArray items, final Promise callback) {
+        List<Bundle> children = null;
+
+        if(items != null) {
+            children = new ArrayList<>(items.size());
+            for(int i = 0; i < items.size(); i++) {
+                children.add(Arguments.toBundle(items.getMap(i)));
+            }
+        }
+
+        // The browse tree doesn't depend on the playback service
+        BrowseTree.setChildren(requestId, children);
+        callback.resolve(null);
+    }
+
+    @ReactMethod
+    public void notifyBrowseChildrenChanged(final String parentId, final Promise callback) {
+        BrowseTree.notifyChildrenChanged(parentId);
+        callback.resolve(null);
+    }
+
     @ReactMethod
     public void setVolume(final float volume, final Promise callback) {
         waitForConnection(() -> {
@@ -455,6 +651,17 @@ public class MusicModule extends ReactContextBaseJavaModule implements ServiceCo
         });
     }
 
+    @ReactMethod
+    public void getDebugTrace(final Promise callback) {
+        // The trace is kept in memory by the process, so it doesn't need the service
+        callback.resolve(Arguments.fromList(DebugTrace.dump()));
+    }
+
+    @ReactMethod
+    public void getLatencyStats(final Promise callback) {
+        waitForConnection(() -> binder.getPlayback().getLatencyStats(callback));
+    }
+
     @ReactMethod
     public void getQueue(Promise callback) {
         waitForConnection(() -> {
@@ -0,0 +1,86 @@
+package com.guichaguri.trackplayer.service;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+import androidx.media.MediaBrowserServiceCompat;
+
+import com.guichaguri.trackplayer.service.metadata.BrowseTree;
+
+import java.util.List;
+
+/**
+ * Exposes the browse tree to Android Auto, Wear and other controllers.
+ *
+ * Not declared by the module, apps that want to be browsable add it to their manifest.
+ *
+ * @author Guichaguri
+ */
+public class BrowseService extends MediaBrowserServiceCompat {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BrowseTree.attach(this);
+
+        MediaSessionCompat.Token token = BrowseTree.getSessionToken();
+
+        if(token != null) {
+            setSessionToken(token);
+        } else if(!BrowseTree.isSessionCreated()) {
+            // The session is created by the playback service, which also starts the app
+            try {
+                ContextCompat.startForegroundService(this, new Intent(this, MusicService.class));
+            } catch(IllegalStateException ex) {
+                // Android 12 doesn't allow starting it from the background in some cases
+                Log.w(Utils.LOG, "Couldn't start the playback service for the browse service", ex);
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        BrowseTree.detach(this);
+        super.onDestroy();
+    }
+
+    public void onSessionToken(MediaSessionCompat.Token token) {
+        MediaSessionCompat.Token current = getSessionToken();
+
+        // The token can only be set once per service
+        if(current == null) {
+            setSessionToken(token);
+        } else if(!current.equals(token)) {
+            Log.w(Utils.LOG, "The session backend changed, controllers keep the previous session until the browse service is created again");
+        }
+    }
+
+    @Nullable
+    @Override
+    public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
+        return new BrowserRoot(BrowseTree.ROOT_ID, null);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result) {
+        onLoadChildren(parentId, result, Bundle.EMPTY);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result,
+                               @NonNull Bundle options) {
+        // Controllers that don't page only get the first page
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, 0);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, BrowseTree.DEFAULT_PAGE_SIZE);
+
+        BrowseTree.loadChildren(this, parentId, page, pageSize, result);
+    }
+
+}
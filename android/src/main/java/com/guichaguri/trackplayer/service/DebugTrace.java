@@ -0,0 +1,127 @@
+package com.guichaguri.trackplayer.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.guichaguri.trackplayer.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size in-memory trace of the player events, which can be dumped on demand.
+ *
+ * Events are recorded as an id and two numbers into preallocated arrays, nothing is allocated or formatted
+ * until the trace is dumped. Levels below {@link #MIN_LEVEL} are removed at compile time.
+ * Recording only claims a slot with an atomic counter, so the player threads never wait on each other.
+ *
+ * @author Guichaguri
+ */
+public final class DebugTrace {
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_ERROR = 3;
+    public static final int LEVEL_NONE = 4;
+
+    private static final String[] LEVELS = {"debug", "info", "warn", "error"};
+
+    // Set through trackPlayerTraceLevel in the app build.gradle, LEVEL_NONE compiles every trace call to nothing
+    public static final int MIN_LEVEL = BuildConfig.TRACE_LEVEL;
+
+    private static final int CAPACITY = 512;
+
+    public static final int PLAY = 0;
+    public static final int PAUSE = 1;
+    public static final int STOP = 2;
+    public static final int STATE_CHANGE = 3;
+    public static final int TRACK_UPDATE = 4;
+    public static final int PLAY_WHEN_READY = 5;
+    public static final int STARTUP = 6;
+    public static final int QUEUE_ENDED = 7;
+    public static final int METADATA = 8;
+    public static final int ERROR = 9;
+    public static final int PREPARE = 10;
+    public static final int RELEASE = 11;
+    public static final int NETWORK_CHANGE = 12;
+    public static final int TRIM_MEMORY = 13;
+    public static final int PREWARM = 14;
+
+    private static final String[] EVENTS = {
+            "play", "pause", "stop", "stateChange", "trackUpdate", "playWhenReady", "startup", "queueEnded",
+            "metadata", "error", "prepare", "release", "networkChange", "trimMemory", "prewarm"
+    };
+
+    private static final long[] times = new long[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final byte[] events = new byte[CAPACITY];
+    private static final long[] args1 = new long[CAPACITY];
+    private static final long[] args2 = new long[CAPACITY];
+
+    // Total events recorded, the next slot is this modulo the capacity
+    private static final AtomicLong count = new AtomicLong();
+
+    private DebugTrace() {}
+
+    public static void d(int event, long arg1, long arg2) {
+        if(LEVEL_DEBUG < MIN_LEVEL) return;
+        record(LEVEL_DEBUG, event, arg1, arg2);
+    }
+
+    public static void d(int event) {
+        if(LEVEL_DEBUG < MIN_LEVEL) return;
+        record(LEVEL_DEBUG, event, 0, 0);
+    }
+
+    public static void i(int event, long arg1, long arg2) {
+        if(LEVEL_INFO < MIN_LEVEL) return;
+        record(LEVEL_INFO, event, arg1, arg2);
+    }
+
+    public static void w(int event, long arg1, long arg2) {
+        if(LEVEL_WARN < MIN_LEVEL) return;
+        record(LEVEL_WARN, event, arg1, arg2);
+    }
+
+    public static void e(int event, long arg1, long arg2) {
+        if(LEVEL_ERROR < MIN_LEVEL) return;
+        record(LEVEL_ERROR, event, arg1, arg2);
+    }
+
+    private static void record(int level, int event, long arg1, long arg2) {
+        int slot = (int)(count.getAndIncrement() % CAPACITY);
+
+        times[slot] = SystemClock.elapsedRealtime();
+        levels[slot] = (byte)level;
+        events[slot] = (byte)event;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+    }
+
+    /**
+     * Dumps the recorded events, from the oldest to the newest.
+     * An event recorded while dumping can show up half written, which is fine for a debugging aid
+     */
+    public static List<Bundle> dump() {
+        long total = count.get();
+        int size = (int)Math.min(total, CAPACITY);
+        List<Bundle> list = new ArrayList<>(size);
+
+        for(long i = total - size; i < total; i++) {
+            int slot = (int)(i % CAPACITY);
+
+            Bundle bundle = new Bundle();
+            bundle.putDouble("time", times[slot]);
+            bundle.putString("level", LEVELS[levels[slot]]);
+            bundle.putString("event", EVENTS[events[slot]]);
+            bundle.putDouble("arg1", args1[slot]);
+            bundle.putDouble("arg2", args2[slot]);
+            list.add(bundle);
+        }
+
+        return list;
+    }
+
+}
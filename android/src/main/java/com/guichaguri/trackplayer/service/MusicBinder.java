@@ -2,7 +2,6 @@ package com.guichaguri.trackplayer.service;
 
 import android.os.Binder;
 import android.os.Bundle;
-import android.support.v4.media.session.MediaSessionCompat;
 
 import androidx.media3.common.util.UnstableApi;
 
@@ -26,7 +25,7 @@ public class MusicBinder extends Binder {
     }
 
     public void post(Runnable r) {
-        service.handler.post(r);
+        service.handler.post(SystemTrace.wrap("TrackPlayer:command", r));
     }
 
     public ExoPlayback getPlayback() {
@@ -46,7 +45,16 @@ public class MusicBinder extends Binder {
         promise.resolve(null);
     }
 
+    /**
+     * Starts or stops the visualizer, unless the player wasn't set up yet
+     */
+    public void setVisualizerActive(boolean active) {
+        ExoPlayback playback = manager.getPlayback();
+        if(playback != null) playback.setVisualizerActive(active);
+    }
+
     public void updateOptions(Bundle bundle) {
+        SystemTrace.setEnabled(bundle.getBoolean("systemTrace", false));
         manager.setStopWithApp(bundle.getBoolean("stopWithApp", false));
         // manager.setAlwaysPauseOnInterruption(bundle.getBoolean("alwaysPauseOnInterruption", false));
         manager.getMetadata().updateOptions(bundle);
@@ -55,8 +63,7 @@ public class MusicBinder extends Binder {
     public void updateNowPlayingMetadata(NowPlayingMetadata nowPlaying, boolean isPlaying) {
         MetadataManager metadata = manager.getMetadata();
 
-        // TODO elapsedTime
-        metadata.updateMetadata(getPlayback(), nowPlaying, isPlaying);
+        metadata.updateNowPlayingMetadata(getPlayback(), nowPlaying, isPlaying);
         metadata.setActive(true);
     }
 
@@ -67,9 +74,7 @@ public class MusicBinder extends Binder {
     public void updateNowPlayingTitles(long duration, String title, String artist, String album) {
       MetadataManager metadata = manager.getMetadata();
       metadata.updateNowPlayingTitles(getPlayback(), duration, title, artist, album);
-      MediaSessionCompat session = metadata.getSession();
-      if (session.isActive()) return;
-      session.setActive(true);
+      metadata.setActive(true);
     }
 
     public int getRatingType() {
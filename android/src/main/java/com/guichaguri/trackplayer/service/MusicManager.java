@@ -8,32 +8,51 @@ import static androidx.media3.exoplayer.DefaultLoadControl.DEFAULT_MAX_BUFFER_MS
 import static androidx.media3.exoplayer.DefaultLoadControl.DEFAULT_MIN_BUFFER_MS;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
+import android.net.Uri;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.media3.common.C;
 import androidx.media3.common.TrackSelectionParameters;
 import androidx.media3.common.util.UnstableApi;
-import androidx.media3.exoplayer.DefaultLoadControl;
 import androidx.media3.exoplayer.DefaultRenderersFactory;
 import androidx.media3.exoplayer.ExoPlayer;
-import androidx.media3.exoplayer.LoadControl;
+import androidx.media3.exoplayer.trackselection.AdaptiveTrackSelection;
+import androidx.media3.exoplayer.trackselection.DefaultTrackSelector;
+import androidx.media3.exoplayer.upstream.DefaultBandwidthMeter;
 
 import com.guichaguri.trackplayer.module.MusicEvents;
 import com.guichaguri.trackplayer.service.metadata.MetadataManager;
+import com.guichaguri.trackplayer.service.models.CachePolicy;
 import com.guichaguri.trackplayer.service.models.Track;
+import com.guichaguri.trackplayer.service.player.AdaptiveLoadControl;
+import com.guichaguri.trackplayer.service.player.EffectsAudioProcessor;
+import com.guichaguri.trackplayer.service.player.EffectsRenderersFactory;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
+import com.guichaguri.trackplayer.service.player.LoudnessNormalizer;
+import com.guichaguri.trackplayer.service.player.MinBitrateTrackSelection;
+import com.guichaguri.trackplayer.service.player.QoeCollector;
+import com.guichaguri.trackplayer.service.player.SpectrumAnalyzer;
 
 /**
  * @author Guichaguri
@@ -41,6 +60,15 @@ import com.guichaguri.trackplayer.service.player.LocalPlayback;
 @UnstableApi
 public class MusicManager {
 
+    // Maximum buffer used by the adaptive buffer on fast metered connections
+    private static final int DEFAULT_METERED_MAX_BUFFER_MS = 20_000;
+
+    // Maximum bitrate in kbps of adaptive streams while the data saver is active
+    private static final int DEFAULT_DATA_SAVER_MAX_BITRATE = 128;
+
+    // Byte target used on low RAM devices when none is set
+    private static final int LOW_RAM_TARGET_BUFFER_BYTES = 4 * 1024 * 1024;
+
     private final MusicService service;
 
     private final WakeLock wakeLock;
@@ -48,6 +76,8 @@ public class MusicManager {
 
     private final MetadataManager metadata;
     private ExoPlayback playback;
+    private volatile AdaptiveLoadControl loadControl;
+    private volatile DefaultBandwidthMeter bandwidthMeter;
 
     // @RequiresApi(26)
     // private AudioFocusRequest focus = null;
@@ -62,7 +92,33 @@ public class MusicManager {
     };
     private boolean receivingNoisyEvents = false;
 
+    // The active network queries can still return the previous network inside the callback,
+    // so the type is read from the capabilities given to it
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            ConnectivityManager connectivity = (ConnectivityManager)service.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkCapabilities capabilities = connectivity != null ? connectivity.getNetworkCapabilities(network) : null;
+            if (capabilities != null) onNetworkChanged(Utils.getNetworkType(capabilities));
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            onNetworkChanged(Utils.getNetworkType(capabilities));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            // Only the default network is tracked from Android 7, older versions track any network
+            onNetworkChanged(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+                    Utils.NETWORK_UNKNOWN : Utils.getNetworkType(service));
+        }
+    };
+    private volatile int networkType;
+
     private boolean stopWithApp = false;
+    // Whether the player is mirrored by a media3 session instead of the legacy one
+    private boolean media3Session = false;
     // private boolean alwaysPauseOnInterruption = false;
     private String playState = null;
 
@@ -81,6 +137,19 @@ public class MusicManager {
             wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, "track-player-wifi-lock");
             wifiLock.setReferenceCounted(false);
         }
+
+        networkType = Utils.getNetworkType(service);
+        ConnectivityManager connectivity = (ConnectivityManager)service.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                connectivity.registerDefaultNetworkCallback(networkCallback);
+            } else {
+                NetworkRequest request = new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        .build();
+                connectivity.registerNetworkCallback(request, networkCallback);
+            }
+        }
     }
 
     public ExoPlayback getPlayback() {
@@ -103,6 +172,14 @@ public class MusicManager {
         return metadata;
     }
 
+    /**
+     * The type of the default network, tracked by the network callback
+     * @return One of the {@link Utils} network constants
+     */
+    public int getNetworkType() {
+        return networkType;
+    }
+
     public Handler getHandler() {
         return service.handler;
     }
@@ -118,28 +195,97 @@ public class MusicManager {
         if(this.playback != null) {
             this.playback.initialize();
         }
+
+        metadata.setSessionPlayer(media3Session && playback != null ? playback.getPlayer() : null);
+    }
+
+    /**
+     * Checks whether the media3 session library is bundled, it's only a compile time dependency by default
+     */
+    private static boolean isMedia3SessionAvailable() {
+        try {
+            Class.forName("androidx.media3.session.MediaSession");
+            return true;
+        } catch(ClassNotFoundException | LinkageError ex) {
+            Log.w(Utils.LOG, "The media3 session backend requires session = true in the build.gradle, using the legacy session");
+            return false;
+        }
     }
 
     public LocalPlayback createLocalPlayback(Bundle options) {
         boolean autoUpdateMetadata = options.getBoolean("autoUpdateMetadata", true);
+        media3Session = "media3".equals(options.getString("sessionBackend")) && isMedia3SessionAvailable();
         boolean shouldHandleAudioFocus = options.getBoolean("handleAudioFocus", true);
         boolean shouldEnableAudioOffload = options.getBoolean("audioOffload", true);
+        boolean audioEffects = options.getBoolean("audioEffects", false);
+        boolean normalizeLoudness = options.getBoolean("normalizeLoudness", false);
+        boolean visualizer = options.getBoolean("visualizer", false);
+        int visualizerFps = (int)options.getDouble("visualizerFps", SpectrumAnalyzer.DEFAULT_FPS);
+        int visualizerBins = (int)options.getDouble("visualizerBins", SpectrumAnalyzer.DEFAULT_BINS);
         int minBuffer = (int)Utils.toMillis(options.getDouble("minBuffer", Utils.toSeconds(DEFAULT_MIN_BUFFER_MS)));
         int maxBuffer = (int)Utils.toMillis(options.getDouble("maxBuffer", Utils.toSeconds(DEFAULT_MAX_BUFFER_MS)));
         int playBuffer = (int)Utils.toMillis(options.getDouble("playBuffer", Utils.toSeconds(DEFAULT_BUFFER_FOR_PLAYBACK_MS)));
         int backBuffer = (int)Utils.toMillis(options.getDouble("backBuffer", Utils.toSeconds(DEFAULT_BACK_BUFFER_DURATION_MS)));
+        boolean adaptiveBuffer = options.getBoolean("adaptiveBuffer", false);
+        int meteredMaxBuffer = (int)Utils.toMillis(options.getDouble("meteredMaxBuffer", Utils.toSeconds(DEFAULT_METERED_MAX_BUFFER_MS)));
+        int targetBufferBytes = options.containsKey("targetBufferSize") ? (int)(options.getDouble("targetBufferSize") * 1024) : C.LENGTH_UNSET;
+        boolean prioritizeTimeOverSize = options.getBoolean("prioritizeTimeOverSize", false);
         long cacheMaxSize = (long)(options.getDouble("maxCacheSize", 0) * 1024);
+        CachePolicy cachePolicy = CachePolicy.fromName(options.getString("cachePolicy"), CachePolicy.NORMAL);
         int multiplier = DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS / DEFAULT_BUFFER_FOR_PLAYBACK_MS;
 
-        LoadControl control = new DefaultLoadControl.Builder()
-                .setBufferDurationsMs(minBuffer, maxBuffer, playBuffer, playBuffer * multiplier)
-                .setBackBuffer(backBuffer, false)
-                .build();
+        ActivityManager activityManager = (ActivityManager)service.getSystemService(Context.ACTIVITY_SERVICE);
+        if(activityManager != null && activityManager.isLowRamDevice()) {
+            // Low RAM devices can't afford to keep played media or tens of megabytes of high bitrate audio
+            backBuffer = 0;
+            if(targetBufferBytes == C.LENGTH_UNSET) targetBufferBytes = LOW_RAM_TARGET_BUFFER_BYTES;
+        }
 
-        DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(service);
+        // Starts from the last known estimate instead of a generic one, so the first variant fits the connection
+        long initialBitrate = options.containsKey("initialBitrate") ?
+                (long)(options.getDouble("initialBitrate") * 1000) : loadBandwidthEstimate();
+
+        DefaultBandwidthMeter.Builder bandwidthBuilder = new DefaultBandwidthMeter.Builder(service);
+        if(initialBitrate > 0) bandwidthBuilder.setInitialBitrateEstimate(initialBitrate);
+        DefaultBandwidthMeter bandwidthMeter = bandwidthBuilder.build();
+        this.bandwidthMeter = bandwidthMeter;
+
+        int minQualityIncrease = (int)Utils.toMillis(options.getDouble("minDurationForQualityIncrease",
+                Utils.toSeconds(AdaptiveTrackSelection.DEFAULT_MIN_DURATION_FOR_QUALITY_INCREASE_MS)));
+        int maxQualityDecrease = (int)Utils.toMillis(options.getDouble("maxDurationForQualityDecrease",
+                Utils.toSeconds(AdaptiveTrackSelection.DEFAULT_MAX_DURATION_FOR_QUALITY_DECREASE_MS)));
+        int minRetainAfterDiscard = Math.max(maxQualityDecrease, AdaptiveTrackSelection.DEFAULT_MIN_DURATION_TO_RETAIN_AFTER_DISCARD_MS);
+        float bandwidthFraction = (float)options.getDouble("bandwidthFraction", AdaptiveTrackSelection.DEFAULT_BANDWIDTH_FRACTION);
+        int minBitrate = (int)(options.getDouble("minBitrate", 0) * 1000);
+        int maxBitrate = options.containsKey("maxBitrate") ? (int)(options.getDouble("maxBitrate") * 1000) : Integer.MAX_VALUE;
+        boolean dataSaver = options.getBoolean("dataSaver", false);
+        int dataSaverMaxBitrate = (int)(options.getDouble("dataSaverMaxBitrate", DEFAULT_DATA_SAVER_MAX_BITRATE) * 1000);
+
+        AdaptiveTrackSelection.Factory selectionFactory = minBitrate > 0 ?
+                new MinBitrateTrackSelection.Factory(minQualityIncrease, maxQualityDecrease, minRetainAfterDiscard, bandwidthFraction, minBitrate) :
+                new AdaptiveTrackSelection.Factory(minQualityIncrease, maxQualityDecrease, minRetainAfterDiscard, bandwidthFraction);
+
+        AdaptiveLoadControl control = new AdaptiveLoadControl(bandwidthMeter, adaptiveBuffer, minBuffer, maxBuffer,
+                playBuffer, playBuffer * multiplier, backBuffer, meteredMaxBuffer, targetBufferBytes, prioritizeTimeOverSize);
+        control.setNetworkType(networkType);
+        loadControl = control;
+
+        // Offloaded audio skips the processors, so the normalization gain couldn't be applied.
+        // The visualizer is toggled with the app in the foreground, switching the offload then would interrupt the audio
+        if(normalizeLoudness || visualizer) shouldEnableAudioOffload = false;
+
+        // The effects processor only runs when it's enabled, so the default path keeps the stock sink
+        EffectsAudioProcessor effectsProcessor = audioEffects || normalizeLoudness || visualizer ? new EffectsAudioProcessor() : null;
+        LoudnessNormalizer normalizer = normalizeLoudness ? new LoudnessNormalizer(service) : null;
+        SpectrumAnalyzer analyzer = visualizer ? new SpectrumAnalyzer(service, visualizerFps, visualizerBins) : null;
+        if(analyzer != null) effectsProcessor.setSpectrumAnalyzer(analyzer);
+        DefaultRenderersFactory renderersFactory = effectsProcessor != null ?
+                new EffectsRenderersFactory(service, effectsProcessor, normalizer) : new DefaultRenderersFactory(service);
 
         ExoPlayer player = new ExoPlayer.Builder(service, renderersFactory)
                 .setLoadControl(control)
+                .setBandwidthMeter(bandwidthMeter)
+                .setTrackSelector(new DefaultTrackSelector(service, selectionFactory))
                 .setWakeMode(WAKE_MODE_NONE)
                 .build();
 
@@ -152,6 +298,9 @@ public class MusicManager {
                         : TrackSelectionParameters.AudioOffloadPreferences.AUDIO_OFFLOAD_MODE_DISABLED)
                 .setIsGaplessSupportRequired(true)
                 .build())
+            // Audio-only HLS variants without codec information are exposed as video tracks
+            .setMaxAudioBitrate(maxBitrate)
+            .setMaxVideoBitrate(maxBitrate)
             .build();
         player.setTrackSelectionParameters(trackSelectionParameters);
         // player.addAudioOffloadListener(new ExoPlayer.AudioOffloadListener() {
@@ -167,16 +316,106 @@ public class MusicManager {
         // });
 
         // player.addAnalyticsListener(new EventLogger(null));
+        player.addAnalyticsListener(new QoeCollector(this, player));
 
         player.setAudioAttributes(new androidx.media3.common.AudioAttributes.Builder()
                 .setContentType(C.AUDIO_CONTENT_TYPE_MUSIC).setUsage(C.USAGE_MEDIA).build(), shouldHandleAudioFocus);
 
-        return new LocalPlayback(service, this, player, cacheMaxSize, autoUpdateMetadata);
+        LocalPlayback playback = new LocalPlayback(service, this, player, cacheMaxSize, cachePolicy, autoUpdateMetadata);
+
+        if(audioEffects || normalizeLoudness) playback.setEffectsProcessor(effectsProcessor, shouldEnableAudioOffload);
+        if(normalizer != null) playback.setLoudnessNormalizer(normalizer);
+        if(analyzer != null) playback.setSpectrumAnalyzer(analyzer);
+
+        if(dataSaver) {
+            playback.setDataSaver(dataSaverMaxBitrate);
+            playback.onNetworkChanged(networkType == Utils.NETWORK_METERED);
+        }
+
+        return playback;
+    }
+
+    private String getBandwidthEstimateKey() {
+        return "bandwidthEstimate" + networkType;
+    }
+
+    /**
+     * Loads the bandwidth estimate persisted for the current connection type
+     * @return The estimate in bits per second or 0 if unknown
+     */
+    private long loadBandwidthEstimate() {
+        // The current meter is newer than the persisted estimate
+        saveBandwidthEstimate();
+
+        SharedPreferences prefs = service.getSharedPreferences(Utils.PREFERENCES, Context.MODE_PRIVATE);
+        return prefs.getLong(getBandwidthEstimateKey(), 0);
+    }
+
+    /**
+     * Persists the current bandwidth estimate, so the next session starts from it
+     */
+    private void saveBandwidthEstimate() {
+        DefaultBandwidthMeter meter = bandwidthMeter;
+        if(meter == null) return;
+
+        long estimate = meter.getBitrateEstimate();
+        if(estimate <= 0) return;
+
+        SharedPreferences prefs = service.getSharedPreferences(Utils.PREFERENCES, Context.MODE_PRIVATE);
+        prefs.edit().putLong(getBandwidthEstimateKey(), estimate).apply();
+    }
+
+    /**
+     * Called from the connectivity thread when the default network changes
+     * @param type One of the {@link Utils} network constants
+     */
+    private void onNetworkChanged(int type) {
+        if (type == networkType) return;
+
+        // The estimate belongs to the previous connection
+        saveBandwidthEstimate();
+
+        networkType = type;
+        DebugTrace.i(DebugTrace.NETWORK_CHANGE, type, 0);
+
+        AdaptiveLoadControl control = loadControl;
+        if (control != null) control.setNetworkType(type);
+
+        // The player can only be accessed from the service thread
+        Handler handler = getHandler();
+        if (handler != null) {
+            handler.post(() -> {
+                if (playback != null) playback.onNetworkChanged(type == Utils.NETWORK_METERED);
+            });
+        }
+    }
+
+    /**
+     * Shrinks the buffers and releases the artwork when the system is running low on memory
+     * @param level The level reported to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        DebugTrace.w(DebugTrace.TRIM_MEMORY, level, 0);
+        int pressure;
+
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            pressure = AdaptiveLoadControl.MEMORY_PRESSURE_CRITICAL;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            pressure = AdaptiveLoadControl.MEMORY_PRESSURE_MODERATE;
+        } else {
+            // The UI being hidden or a moderate pressure while running don't require anything from us
+            return;
+        }
+
+        AdaptiveLoadControl control = loadControl;
+        if(control != null) control.setMemoryPressure(pressure);
+
+        metadata.releaseArtwork(pressure == AdaptiveLoadControl.MEMORY_PRESSURE_CRITICAL);
     }
 
     @SuppressLint("WakelockTimeout")
     public void onPlay() {
-        Log.d(Utils.LOG, "onPlay");
+        DebugTrace.d(DebugTrace.PLAY);
         if(playback == null) return;
 
         Track track = playback.getCurrentTrack();
@@ -202,7 +441,9 @@ public class MusicManager {
     }
 
     public void onPause() {
-        Log.d(Utils.LOG, "onPause");
+        DebugTrace.d(DebugTrace.PAUSE);
+
+        saveBandwidthEstimate();
 
         // Unregisters the noisy receiver
         if(receivingNoisyEvents) {
@@ -219,7 +460,9 @@ public class MusicManager {
     }
 
     public void onStop() {
-        Log.d(Utils.LOG, "onStop");
+        DebugTrace.d(DebugTrace.STOP);
+
+        saveBandwidthEstimate();
 
         // Unregisters the noisy receiver
         if(receivingNoisyEvents) {
@@ -238,7 +481,7 @@ public class MusicManager {
     }
 
     public void onStateChange(int state) {
-        Log.d(Utils.LOG, "onStateChange");
+        DebugTrace.d(DebugTrace.STATE_CHANGE, state, 0);
 
         Bundle bundle = new Bundle();
         bundle.putInt("state", state);
@@ -259,7 +502,7 @@ public class MusicManager {
     }
 
     public void onTrackUpdate(Integer prevIndex, long prevPos, Integer nextIndex, Track next) {
-        Log.d(Utils.LOG, "onTrackUpdate");
+        DebugTrace.d(DebugTrace.TRACK_UPDATE, prevIndex == null ? -1 : prevIndex, nextIndex == null ? -1 : nextIndex);
 
         if (prevIndex == null && next == null) return;
 
@@ -272,12 +515,33 @@ public class MusicManager {
         service.emit(MusicEvents.PLAYBACK_TRACK_CHANGED, bundle);
     }
 
+    public void onPlaybackStartup(long timeToFirstAudio, boolean prewarmed) {
+        DebugTrace.i(DebugTrace.STARTUP, timeToFirstAudio, prewarmed ? 1 : 0);
+
+        Bundle bundle = new Bundle();
+        bundle.putDouble("timeToFirstAudio", timeToFirstAudio);
+        bundle.putBoolean("prewarmed", prewarmed);
+        service.emit(MusicEvents.PLAYBACK_STARTUP, bundle);
+    }
+
+    public void onQoe(Bundle bundle) {
+        service.emit(MusicEvents.PLAYBACK_QOE, bundle);
+    }
+
+    public void onChapterChanged(Bundle bundle) {
+        service.emit(MusicEvents.CHAPTER_CHANGED, bundle);
+    }
+
+    public void onLatency(Bundle bundle) {
+        service.emit(MusicEvents.PLAYBACK_LATENCY, bundle);
+    }
+
     public void onReset() {
         metadata.removeNotifications();
     }
 
     public void onEnd(Integer previousIndex, long prevPos) {
-        Log.d(Utils.LOG, "onEnd");
+        DebugTrace.d(DebugTrace.QUEUE_ENDED, previousIndex == null ? -1 : previousIndex, prevPos);
 
         Bundle bundle = new Bundle();
         if (previousIndex != null) bundle.putInt("track", previousIndex);
@@ -285,8 +549,8 @@ public class MusicManager {
         service.emit(MusicEvents.PLAYBACK_QUEUE_ENDED, bundle);
     }
 
-    public void onMetadataReceived(String source, String title, String url, String artist, String album, String date, String genre) {
-        Log.d(Utils.LOG, "onMetadataReceived: " + source);
+    public void onMetadataReceived(String source, String title, String url, String artist, String album, String date, String genre, String artwork) {
+        DebugTrace.d(DebugTrace.METADATA);
 
         Bundle bundle = new Bundle();
         bundle.putString("source", source);
@@ -296,11 +560,19 @@ public class MusicManager {
         bundle.putString("album", album);
         bundle.putString("date", date);
         bundle.putString("genre", genre);
+        bundle.putString("artwork", artwork);
         service.emit(MusicEvents.PLAYBACK_METADATA, bundle);
     }
 
+    /**
+     * Called when the picture embedded in the current track is ready, or with null when the track changes
+     */
+    public void onEmbeddedArtwork(@Nullable Uri uri) {
+        metadata.setEmbeddedArtwork(uri);
+    }
+
     public void onError(String code, String error) {
-        Log.d(Utils.LOG, "onError");
+        DebugTrace.e(DebugTrace.ERROR, 0, 0);
         Log.e(Utils.LOG, "Playback error: " + code + " - " + error);
 
         Bundle bundle = new Bundle();
@@ -408,7 +680,7 @@ public class MusicManager {
     }*/
 
     public void destroy() {
-        Log.d(Utils.LOG, "Releasing service resources...");
+        DebugTrace.i(DebugTrace.RELEASE, 0, 0);
 
         // Disable audio focus
         // abandonFocus();
@@ -419,6 +691,20 @@ public class MusicManager {
             receivingNoisyEvents = false;
         }
 
+        // Stop receiving network changes
+        ConnectivityManager connectivity = (ConnectivityManager)service.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity != null) {
+            try {
+                connectivity.unregisterNetworkCallback(networkCallback);
+            } catch (IllegalArgumentException ex) {
+                // Already unregistered
+            }
+        }
+        loadControl = null;
+
+        // Keep the bandwidth estimate for the next session
+        saveBandwidthEstimate();
+
         // Release the playback resources
         if(playback != null) playback.destroy();
 
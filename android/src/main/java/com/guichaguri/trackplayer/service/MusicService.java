@@ -63,7 +63,7 @@ public class MusicService extends HeadlessJsTaskService {
 
         if(manager != null) {
             // The session is only active when the service is on foreground
-            serviceForeground = manager.getMetadata().getSession().isActive();
+            serviceForeground = manager.getMetadata().isActive();
         }
 
         if(!serviceForeground) {
@@ -105,8 +105,9 @@ public class MusicService extends HeadlessJsTaskService {
             return START_NOT_STICKY;
         }
 
-        manager = new MusicManager(this);
-        handler = new Handler();
+        // The service can be started again while it's running, which should keep the current player
+        if(manager == null) manager = new MusicManager(this);
+        if(handler == null) handler = new Handler();
 
         super.onStartCommand(intent, flags, startId);
         return START_NOT_STICKY;
@@ -127,6 +128,20 @@ public class MusicService extends HeadlessJsTaskService {
         stopForeground(true);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if(manager != null) manager.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        if(manager != null) manager.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         super.onTaskRemoved(rootIntent);
@@ -0,0 +1,76 @@
+package com.guichaguri.trackplayer.service;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks the player work in system traces (Systrace/Perfetto). Disabled by default, toggled at runtime.
+ *
+ * Sections must be closed in the same thread they were opened, so the result of {@link #begin(String)}
+ * is passed to {@link #end(boolean)}, keeping them balanced even when tracing is toggled in between.
+ *
+ * @author Guichaguri
+ */
+public final class SystemTrace {
+
+    private static volatile boolean enabled = false;
+
+    private SystemTrace() {}
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        SystemTrace.enabled = enabled;
+    }
+
+    /**
+     * Opens a section in the current thread
+     * @return Whether the section was opened
+     */
+    public static boolean begin(String name) {
+        if(!enabled) return false;
+        Trace.beginSection(name);
+        return true;
+    }
+
+    /**
+     * Closes the last section opened in the current thread
+     * @param began The result of {@link #begin(String)}
+     */
+    public static void end(boolean began) {
+        if(began) Trace.endSection();
+    }
+
+    /**
+     * Opens a section that may be closed in another thread. Only available on Android 10 and above
+     */
+    public static void beginAsync(String name, int cookie) {
+        if(!enabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        Trace.beginAsyncSection(name, cookie);
+    }
+
+    public static void endAsync(String name, int cookie) {
+        // Not checking whether it's enabled, so sections opened before disabling it are still closed
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        Trace.endAsyncSection(name, cookie);
+    }
+
+    /**
+     * Runs the {@link Runnable} inside a section when tracing is enabled
+     */
+    public static Runnable wrap(String name, Runnable r) {
+        if(!enabled) return r;
+
+        return () -> {
+            boolean began = begin(name);
+            try {
+                r.run();
+            } finally {
+                end(began);
+            }
+        };
+    }
+
+}
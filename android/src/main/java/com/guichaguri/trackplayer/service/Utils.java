@@ -4,17 +4,34 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
 
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
 import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.ContentMetadata;
+import androidx.media3.datasource.cache.SimpleCache;
 
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.views.imagehelper.ResourceDrawableIdHelper;
+import com.guichaguri.trackplayer.service.player.CacheMissDataSource;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * @author Guichaguri
@@ -26,6 +43,13 @@ public class Utils {
     public static final String CONNECT_INTENT = "com.guichaguri.trackplayer.connect";
     public static final String NOTIFICATION_CHANNEL = "com.guichaguri.trackplayer";
     public static final String LOG = "RNTrackPlayer";
+    public static final String PREFERENCES = "com.guichaguri.trackplayer";
+    public static final String PREWARM_METADATA = "com.guichaguri.trackplayer.prewarm";
+
+    // Network types
+    public static final int NETWORK_UNKNOWN = 0;
+    public static final int NETWORK_UNMETERED = 1;
+    public static final int NETWORK_METERED = 2;
 
     public static Runnable toRunnable(Promise promise) {
         return () -> promise.resolve(null);
@@ -39,6 +63,40 @@ public class Utils {
         return millis / 1000F;
     }
 
+    /**
+     * Waits for the cache to load
+     * @return The cache or null if it couldn't be loaded
+     */
+    @Nullable
+    public static SimpleCache awaitCache(Future<SimpleCache> future) {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch(ExecutionException ex) {
+            Log.w(LOG, "Couldn't initialize the cache", ex.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * A read-only data source over the cache, or null when the resource is not fully cached
+     */
+    @Nullable
+    public static DataSource openCached(@Nullable Cache cache, String key) {
+        if(cache == null) return null;
+
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        if(length == C.LENGTH_UNSET || !cache.isCached(key, 0, length)) return null;
+
+        return new CacheDataSource.Factory()
+                .setCache(cache)
+                .setUpstreamDataSourceFactory(CacheMissDataSource.FACTORY)
+                .setCacheWriteDataSinkFactory(null)
+                .createDataSource();
+    }
+
     public static boolean isLocal(Uri uri) {
         if(uri == null) return false;
 
@@ -166,6 +224,43 @@ public class Utils {
         return defaultValue;
     }
 
+    @SuppressWarnings("deprecation")
+    public static int getNetworkType(Context context) {
+        ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) return NETWORK_UNKNOWN;
+
+        NetworkInfo info = manager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) return NETWORK_UNKNOWN;
+
+        return manager.isActiveNetworkMetered() ? NETWORK_METERED : NETWORK_UNMETERED;
+    }
+
+    /**
+     * The type of a network from its capabilities
+     */
+    public static int getNetworkType(NetworkCapabilities capabilities) {
+        boolean unmetered = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+
+        if (!unmetered && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            unmetered = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED);
+        }
+
+        return unmetered ? NETWORK_UNMETERED : NETWORK_METERED;
+    }
+
+    /**
+     * Whether the app opted in to pre-warm the player through the manifest meta-data
+     */
+    public static boolean isPrewarmEnabled(Context context) {
+        try {
+            ApplicationInfo info = context.getPackageManager()
+                    .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+            return info.metaData != null && info.metaData.getBoolean(PREWARM_METADATA, false);
+        } catch (PackageManager.NameNotFoundException ex) {
+            return false;
+        }
+    }
+
     public static String getNotificationChannel(Context context) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -0,0 +1,296 @@
+package com.guichaguri.trackplayer.service.metadata;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaBrowserServiceCompat.Result;
+
+import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.BrowseService;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The media browse tree exposed to Android Auto, Wear and other controllers.
+ *
+ * Children are loaded a page at a time from the data source, which is the app through the
+ * browse-children-request event unless a native one is set. Loaded pages are kept in a LRU cache,
+ * and concurrent requests for the same page share a single load. Requests made before the app listens to
+ * the events, such as when a controller starts the app, are kept until it does.
+ *
+ * Everything runs in the main thread, the public methods can be called from any thread.
+ *
+ * @author Guichaguri
+ */
+public final class BrowseTree {
+
+    public static final String ROOT_ID = "root";
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int CACHE_PAGES = 64;
+    private static final long REQUEST_TIMEOUT_MS = 10000;
+    private static final long PENDING_TIMEOUT_MS = 30000;
+
+    public interface DataSource {
+        /**
+         * Loads a page of children, called in the main thread. The result is given to {@link #setChildren}
+         */
+        void loadChildren(int requestId, String parentId, int page, int pageSize);
+    }
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Pages keyed by the parent id, the page and its size
+    private static final LruCache<String, List<MediaItem>> cache = new LruCache<>(CACHE_PAGES);
+    private static final SparseArray<Request> requests = new SparseArray<>();
+    private static final Map<String, Request> requestsByKey = new HashMap<>();
+    private static final List<Request> pending = new ArrayList<>();
+    private static int nextRequestId = 0;
+
+    @Nullable
+    private static DataSource dataSource = null;
+    @Nullable
+    private static BrowseService service = null;
+    @Nullable
+    private static MediaSessionCompat.Token sessionToken = null;
+    private static boolean sessionCreated = false;
+    private static boolean listening = false;
+
+    private BrowseTree() {}
+
+    /**
+     * Sets a native data source, used instead of requesting the children to the app
+     */
+    public static void setDataSource(@Nullable DataSource source) {
+        handler.post(() -> {
+            dataSource = source;
+            if(source != null) sendPending();
+        });
+    }
+
+    /**
+     * Sets whether the app is listening to the events, the requests made before are sent when it starts listening
+     */
+    public static void setListening(boolean isListening) {
+        handler.post(() -> {
+            listening = isListening;
+            if(isListening) sendPending();
+        });
+    }
+
+    /**
+     * Sets the session the browse service links to, or null when it was released
+     */
+    public static void setSessionToken(@Nullable MediaSessionCompat.Token token) {
+        handler.post(() -> {
+            sessionToken = token;
+            if(service != null && token != null) service.onSessionToken(token);
+        });
+    }
+
+    /**
+     * Sets whether the playback service created its session, even if the token wasn't published yet
+     */
+    public static void setSessionCreated(boolean created) {
+        handler.post(() -> sessionCreated = created);
+    }
+
+    public static boolean isSessionCreated() {
+        return sessionCreated;
+    }
+
+    @Nullable
+    public static MediaSessionCompat.Token getSessionToken() {
+        return sessionToken;
+    }
+
+    public static void attach(BrowseService browseService) {
+        service = browseService;
+    }
+
+    public static void detach(BrowseService browseService) {
+        if(service == browseService) service = null;
+    }
+
+    /**
+     * Loads a page of children from the cache or from the data source. Called in the main thread
+     */
+    public static void loadChildren(Context context, String parentId, int page, int pageSize,
+                                    Result<List<MediaItem>> result) {
+        String key = parentId + '\n' + page + '\n' + pageSize;
+
+        List<MediaItem> cached = cache.get(key);
+        if(cached != null) {
+            result.sendResult(cached);
+            return;
+        }
+
+        result.detach();
+
+        Request request = requestsByKey.get(key);
+        if(request != null) {
+            // The page is already being loaded
+            request.results.add(result);
+            return;
+        }
+
+        int requestId = nextRequestId++;
+        request = new Request(context.getApplicationContext(), requestId, key, parentId, page, pageSize);
+        request.results.add(result);
+        requests.put(requestId, request);
+        requestsByKey.put(key, request);
+
+        if(dataSource == null && !listening) {
+            // The app is still starting, it gets more time as the event can't be lost
+            pending.add(request);
+            handler.postDelayed(request.timeout, PENDING_TIMEOUT_MS);
+            return;
+        }
+
+        send(request);
+    }
+
+    private static void sendPending() {
+        for(Request request : pending) {
+            handler.removeCallbacks(request.timeout);
+            send(request);
+        }
+        pending.clear();
+    }
+
+    private static void send(Request request) {
+        handler.postDelayed(request.timeout, REQUEST_TIMEOUT_MS);
+
+        if(dataSource != null) {
+            dataSource.loadChildren(request.id, request.parentId, request.page, request.pageSize);
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt("requestId", request.id);
+        bundle.putString("parentId", request.parentId);
+        bundle.putInt("page", request.page);
+        bundle.putInt("pageSize", request.pageSize);
+
+        Intent intent = new Intent(Utils.EVENT_INTENT);
+        intent.putExtra("event", MusicEvents.BROWSE_CHILDREN_REQUEST);
+        intent.putExtra("data", bundle);
+        LocalBroadcastManager.getInstance(request.context).sendBroadcast(intent);
+    }
+
+    /**
+     * Delivers the children of a request
+     * @param items The children, or null when they couldn't be loaded
+     */
+    public static void setChildren(int requestId, @Nullable List<Bundle> items) {
+        handler.post(() -> {
+            Request request = requests.get(requestId);
+            if(request == null) return; // Timed out
+
+            List<MediaItem> children = null;
+
+            if(items != null) {
+                children = new ArrayList<>(items.size());
+                for(Bundle item : items) {
+                    MediaItem child = toMediaItem(request.context, item);
+                    if(child != null) children.add(child);
+                }
+                cache.put(request.key, children);
+            }
+
+            finish(request, children);
+        });
+    }
+
+    /**
+     * Drops the cached children of a node and notifies the controllers
+     */
+    public static void notifyChildrenChanged(String parentId) {
+        handler.post(() -> {
+            String prefix = parentId + '\n';
+
+            for(String key : cache.snapshot().keySet()) {
+                if(key.startsWith(prefix)) cache.remove(key);
+            }
+
+            if(service != null) service.notifyChildrenChanged(parentId);
+        });
+    }
+
+    public static void clearCache() {
+        handler.post(cache::evictAll);
+    }
+
+    private static void finish(Request request, @Nullable List<MediaItem> children) {
+        requests.remove(request.id);
+        requestsByKey.remove(request.key);
+        pending.remove(request);
+        handler.removeCallbacks(request.timeout);
+
+        for(Result<List<MediaItem>> result : request.results) {
+            result.sendResult(children);
+        }
+    }
+
+    @Nullable
+    private static MediaItem toMediaItem(Context context, Bundle item) {
+        String id = item.getString("id");
+        if(id == null) return null;
+
+        Uri artwork = Utils.getUri(context, item, "artwork");
+        boolean browsable = item.getBoolean("browsable", false);
+        boolean playable = item.getBoolean("playable", !browsable);
+
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(id)
+                .setTitle(item.getString("title"))
+                .setSubtitle(item.getString("subtitle"))
+                .setDescription(item.getString("description"))
+                .setIconUri(artwork)
+                .build();
+
+        int flags = 0;
+        if(browsable) flags |= MediaItem.FLAG_BROWSABLE;
+        if(playable) flags |= MediaItem.FLAG_PLAYABLE;
+
+        return new MediaItem(description, flags);
+    }
+
+    private static class Request {
+
+        final Context context;
+        final int id;
+        final String key;
+        final String parentId;
+        final int page;
+        final int pageSize;
+        final List<MediaBrowserServiceCompat.Result<List<MediaItem>>> results = new ArrayList<>(1);
+        final Runnable timeout = () -> finish(this, null);
+
+        Request(Context context, int id, String key, String parentId, int page, int pageSize) {
+            this.context = context;
+            this.id = id;
+            this.key = key;
+            this.parentId = parentId;
+            this.page = page;
+            this.pageSize = pageSize;
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.guichaguri.trackplayer.service.metadata;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the pictures embedded in the tracks to a thumbnail cache on disk.
+ *
+ * Thumbnails are named after the hash of the picture, so a picture shared by a whole album is decoded
+ * and written only once. Lookups and decoding happen in a background thread.
+ *
+ * @author Guichaguri
+ */
+public final class EmbeddedArtwork {
+
+    private static final String DIRECTORY = "TrackPlayerArtwork";
+    private static final int MAX_FILES = 200;
+    private static final int QUALITY = 90;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "TrackPlayerArtwork");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private EmbeddedArtwork() {}
+
+    public interface Callback {
+        /**
+         * Called in the main thread
+         * @param uri The thumbnail file, or null when the picture couldn't be decoded
+         */
+        void onArtwork(Uri uri);
+    }
+
+    /**
+     * Gets the thumbnail of a picture, writing it when it's not in the cache yet
+     * @param data The encoded picture
+     */
+    public static void extract(Context context, byte[] data, Callback callback) {
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+
+        executor.execute(() -> {
+            Uri uri = getThumbnail(dir, data);
+            mainHandler.post(() -> callback.onArtwork(uri));
+        });
+    }
+
+    private static Uri getThumbnail(File dir, byte[] data) {
+        try {
+            File file = new File(dir, hash(data) + ".jpg");
+
+            if(file.exists()) {
+                // Keeps the recently used thumbnails from being trimmed
+                file.setLastModified(System.currentTimeMillis());
+                return Uri.fromFile(file);
+            }
+
+            Bitmap bitmap = decode(data);
+            if(bitmap == null) return null;
+
+            if(!dir.exists() && !dir.mkdirs()) return null;
+
+            // Written to a temporary file first, so a partial thumbnail is never read
+            File temp = new File(dir, file.getName() + ".tmp");
+            try(OutputStream out = new FileOutputStream(temp)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            } finally {
+                bitmap.recycle();
+            }
+
+            if(!temp.renameTo(file)) {
+                temp.delete();
+                return null;
+            }
+
+            trim(dir);
+            return Uri.fromFile(file);
+        } catch(IOException | NoSuchAlgorithmException ex) {
+            Log.w(Utils.LOG, "Couldn't extract the embedded artwork", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the picture downscaled to the artwork size
+     */
+    private static Bitmap decode(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        int width = options.outWidth, height = options.outHeight;
+        if(width <= 0 || height <= 0) return null;
+
+        // Subsampling in the decoder avoids allocating the full picture
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while(Math.max(width, height) / (options.inSampleSize * 2) >= MetadataManager.ARTWORK_SIZE) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if(bitmap == null) return null;
+
+        int size = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if(size <= MetadataManager.ARTWORK_SIZE) return bitmap;
+
+        float scale = (float)MetadataManager.ARTWORK_SIZE / size;
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                Math.round(bitmap.getHeight() * scale), true);
+        if(scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+    private static String hash(byte[] data) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+
+        for(byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Deletes the least recently used thumbnails over the limit
+     */
+    private static void trim(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null || files.length <= MAX_FILES) return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for(int i = 0; i < files.length - MAX_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+}
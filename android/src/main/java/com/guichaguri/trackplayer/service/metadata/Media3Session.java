@@ -0,0 +1,312 @@
+package com.guichaguri.trackplayer.service.metadata;
+
+import android.app.PendingIntent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.FlagSet;
+import androidx.media3.common.ForwardingPlayer;
+import androidx.media3.common.HeartRating;
+import androidx.media3.common.MediaMetadata;
+import androidx.media3.common.PercentageRating;
+import androidx.media3.common.Player;
+import androidx.media3.common.Rating;
+import androidx.media3.common.StarRating;
+import androidx.media3.common.ThumbRating;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.session.MediaSession;
+import androidx.media3.session.SessionResult;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.MusicService;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A media3 session mirroring the player directly, used instead of translating every state change
+ * into the legacy session. Only available when the media3-session dependency is enabled in the build.
+ *
+ * Commands sent by the controllers are not applied to the player, they trigger the same remote events
+ * as the legacy session, so the app keeps handling them.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class Media3Session {
+
+    // Always available, so controllers can read the state
+    private static final Player.Commands BASE_COMMANDS = new Player.Commands.Builder()
+            .addAll(Player.COMMAND_GET_CURRENT_MEDIA_ITEM, Player.COMMAND_GET_TIMELINE, Player.COMMAND_GET_METADATA,
+                    Player.COMMAND_GET_AUDIO_ATTRIBUTES, Player.COMMAND_PREPARE)
+            .build();
+
+    private final MusicService service;
+    private final MusicManager manager;
+    private final MediaSession session;
+
+    private SessionPlayer player;
+    private Player.Commands commands = BASE_COMMANDS;
+    private MediaMetadata metadata = MediaMetadata.EMPTY;
+
+    public Media3Session(MusicService service, MusicManager manager, Player player, PendingIntent activity) {
+        this.service = service;
+        this.manager = manager;
+        this.player = new SessionPlayer(player);
+        this.session = new MediaSession.Builder(service, this.player)
+                .setId("TrackPlayer")
+                .setSessionActivity(activity)
+                .setCallback(new Callback())
+                .build();
+    }
+
+    /**
+     * The token for the notification style
+     */
+    public MediaSessionCompat.Token getSessionToken() {
+        return MediaSessionCompat.Token.fromToken(session.getPlatformToken());
+    }
+
+    public void setPlayer(Player player) {
+        this.player = new SessionPlayer(player);
+        session.setPlayer(this.player);
+    }
+
+    /**
+     * Updates the commands available to the controllers
+     * @param actions The capabilities, as a mask of {@link PlaybackStateCompat} actions
+     */
+    public void setActions(long actions) {
+        Player.Commands.Builder builder = BASE_COMMANDS.buildUpon();
+
+        if((actions & (PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_PAUSE)) != 0) {
+            builder.add(Player.COMMAND_PLAY_PAUSE);
+        }
+        if((actions & PlaybackStateCompat.ACTION_STOP) != 0) builder.add(Player.COMMAND_STOP);
+        if((actions & PlaybackStateCompat.ACTION_SEEK_TO) != 0) builder.add(Player.COMMAND_SEEK_IN_CURRENT_MEDIA_ITEM);
+        if((actions & PlaybackStateCompat.ACTION_FAST_FORWARD) != 0) builder.add(Player.COMMAND_SEEK_FORWARD);
+        if((actions & PlaybackStateCompat.ACTION_REWIND) != 0) builder.add(Player.COMMAND_SEEK_BACK);
+        if((actions & PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM) != 0) builder.add(Player.COMMAND_SEEK_TO_MEDIA_ITEM);
+        if((actions & PlaybackStateCompat.ACTION_SKIP_TO_NEXT) != 0) {
+            builder.addAll(Player.COMMAND_SEEK_TO_NEXT, Player.COMMAND_SEEK_TO_NEXT_MEDIA_ITEM);
+        }
+        if((actions & PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS) != 0) {
+            builder.addAll(Player.COMMAND_SEEK_TO_PREVIOUS, Player.COMMAND_SEEK_TO_PREVIOUS_MEDIA_ITEM);
+        }
+
+        commands = builder.build();
+
+        for(MediaSession.ControllerInfo controller : session.getConnectedControllers()) {
+            session.setAvailableCommands(controller, MediaSession.ConnectionResult.DEFAULT_SESSION_COMMANDS, commands);
+        }
+    }
+
+    /**
+     * Mirrors the metadata set in the legacy session
+     */
+    public void setMetadata(MediaMetadataCompat compat) {
+        String artwork = compat.getString(MediaMetadataCompat.METADATA_KEY_ART_URI);
+        long duration = compat.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+
+        // The artwork is loaded by the session from the uri
+        metadata = new MediaMetadata.Builder()
+                .setTitle(compat.getString(MediaMetadataCompat.METADATA_KEY_TITLE))
+                .setArtist(compat.getString(MediaMetadataCompat.METADATA_KEY_ARTIST))
+                .setAlbumTitle(compat.getString(MediaMetadataCompat.METADATA_KEY_ALBUM))
+                .setGenre(compat.getString(MediaMetadataCompat.METADATA_KEY_GENRE))
+                .setArtworkUri(artwork != null ? Uri.parse(artwork) : null)
+                .setDurationMs(duration > 0 ? duration : null)
+                .build();
+
+        player.notifyMetadataChanged();
+    }
+
+    public void release() {
+        session.release();
+    }
+
+    private class Callback implements MediaSession.Callback {
+
+        @NonNull
+        @Override
+        public MediaSession.ConnectionResult onConnect(@NonNull MediaSession session,
+                                                       @NonNull MediaSession.ControllerInfo controller) {
+            return MediaSession.ConnectionResult.accept(MediaSession.ConnectionResult.DEFAULT_SESSION_COMMANDS, commands);
+        }
+
+        @NonNull
+        @Override
+        public ListenableFuture<SessionResult> onSetRating(@NonNull MediaSession session,
+                                                           @NonNull MediaSession.ControllerInfo controller,
+                                                           @NonNull Rating rating) {
+            Bundle bundle = new Bundle();
+
+            if(rating instanceof HeartRating) {
+                bundle.putBoolean("rating", ((HeartRating)rating).isHeart());
+            } else if(rating instanceof ThumbRating) {
+                bundle.putBoolean("rating", ((ThumbRating)rating).isThumbsUp());
+            } else if(rating instanceof PercentageRating) {
+                bundle.putDouble("rating", ((PercentageRating)rating).getPercent());
+            } else if(rating instanceof StarRating) {
+                bundle.putDouble("rating", ((StarRating)rating).getStarRating());
+            }
+
+            service.emit(MusicEvents.BUTTON_SET_RATING, bundle);
+            return Futures.immediateFuture(new SessionResult(SessionResult.RESULT_SUCCESS));
+        }
+    }
+
+    /**
+     * Forwards the player state, but turns the controller commands into remote events
+     */
+    private class SessionPlayer extends ForwardingPlayer {
+
+        private final CopyOnWriteArraySet<Listener> listeners = new CopyOnWriteArraySet<>();
+
+        SessionPlayer(Player player) {
+            super(player);
+        }
+
+        void notifyMetadataChanged() {
+            Events events = new Events(new FlagSet.Builder().add(EVENT_MEDIA_METADATA_CHANGED).build());
+
+            for(Listener listener : listeners) {
+                listener.onMediaMetadataChanged(metadata);
+                listener.onEvents(this, events);
+            }
+        }
+
+        @Override
+        public void addListener(@NonNull Listener listener) {
+            super.addListener(listener);
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(@NonNull Listener listener) {
+            super.removeListener(listener);
+            listeners.remove(listener);
+        }
+
+        @NonNull
+        @Override
+        public MediaMetadata getMediaMetadata() {
+            return metadata;
+        }
+
+        @NonNull
+        @Override
+        public Commands getAvailableCommands() {
+            Commands available = super.getAvailableCommands();
+            Commands.Builder builder = new Commands.Builder();
+
+            for(int i = 0; i < available.size(); i++) {
+                int command = available.get(i);
+                if(commands.contains(command)) builder.add(command);
+            }
+
+            return builder.build();
+        }
+
+        @Override
+        public boolean isCommandAvailable(int command) {
+            return commands.contains(command) && super.isCommandAvailable(command);
+        }
+
+        @Override
+        public void play() {
+            service.emit(MusicEvents.BUTTON_PLAY, null);
+        }
+
+        @Override
+        public void pause() {
+            service.emit(MusicEvents.BUTTON_PAUSE, null);
+        }
+
+        @Override
+        public void setPlayWhenReady(boolean playWhenReady) {
+            service.emit(playWhenReady ? MusicEvents.BUTTON_PLAY : MusicEvents.BUTTON_PAUSE, null);
+        }
+
+        @Override
+        public void stop() {
+            service.emit(MusicEvents.BUTTON_STOP, null);
+        }
+
+        @Override
+        public void seekToNext() {
+            service.emit(MusicEvents.BUTTON_SKIP_NEXT, null);
+        }
+
+        @Override
+        public void seekToNextMediaItem() {
+            service.emit(MusicEvents.BUTTON_SKIP_NEXT, null);
+        }
+
+        @Override
+        public void seekToPrevious() {
+            service.emit(MusicEvents.BUTTON_SKIP_PREVIOUS, null);
+        }
+
+        @Override
+        public void seekToPreviousMediaItem() {
+            service.emit(MusicEvents.BUTTON_SKIP_PREVIOUS, null);
+        }
+
+        @Override
+        public long getSeekForwardIncrement() {
+            return Utils.toMillis(manager.getMetadata().getForwardJumpInterval());
+        }
+
+        @Override
+        public long getSeekBackIncrement() {
+            return Utils.toMillis(manager.getMetadata().getBackwardJumpInterval());
+        }
+
+        @Override
+        public void seekForward() {
+            Bundle bundle = new Bundle();
+            bundle.putInt("interval", manager.getMetadata().getForwardJumpInterval());
+            service.emit(MusicEvents.BUTTON_JUMP_FORWARD, bundle);
+        }
+
+        @Override
+        public void seekBack() {
+            Bundle bundle = new Bundle();
+            bundle.putInt("interval", manager.getMetadata().getBackwardJumpInterval());
+            service.emit(MusicEvents.BUTTON_JUMP_BACKWARD, bundle);
+        }
+
+        @Override
+        public void seekTo(long positionMs) {
+            Bundle bundle = new Bundle();
+            bundle.putDouble("position", Utils.toSeconds(positionMs));
+            service.emit(MusicEvents.BUTTON_SEEK_TO, bundle);
+        }
+
+        @Override
+        public void seekTo(int mediaItemIndex, long positionMs) {
+            if(mediaItemIndex == getCurrentMediaItemIndex()) {
+                seekTo(positionMs);
+                return;
+            }
+
+            Bundle bundle = new Bundle();
+            bundle.putInt("index", mediaItemIndex);
+            service.emit(MusicEvents.BUTTON_SKIP, bundle);
+        }
+
+        @Override
+        public void seekToDefaultPosition(int mediaItemIndex) {
+            seekTo(mediaItemIndex, 0);
+        }
+    }
+
+}
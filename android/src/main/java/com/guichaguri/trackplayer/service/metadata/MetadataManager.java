@@ -16,10 +16,16 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.RatingCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.MediaSessionCompat.QueueItem;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -27,23 +33,33 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationCompat.Action;
 import androidx.media.app.NotificationCompat.MediaStyle;
 import androidx.media.session.MediaButtonReceiver;
+import androidx.media3.common.C;
+import androidx.media3.common.Player;
 import androidx.media3.common.util.UnstableApi;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy;
 import com.bumptech.glide.request.target.CustomTarget;
 import com.bumptech.glide.request.transition.Transition;
 import com.facebook.react.views.imagehelper.ResourceDrawableIdHelper;
 import com.guichaguri.trackplayer.R;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.MusicService;
+import com.guichaguri.trackplayer.service.SystemTrace;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.models.NowPlayingMetadata;
 import com.guichaguri.trackplayer.service.models.Track;
 import com.guichaguri.trackplayer.service.models.TrackMetadata;
 import com.guichaguri.trackplayer.service.player.ExoPlayback;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Guichaguri
@@ -51,23 +67,101 @@ import java.util.List;
 @UnstableApi
 public class MetadataManager {
 
+    // Notification updates within this interval are merged into a single post
+    private static final long NOTIFICATION_DEBOUNCE_MS = 100;
+
+    // The largest artwork size used by the system media controls, in pixels
+    static final int ARTWORK_SIZE = 512;
+    // Fits a few artworks with the maximum size
+    private static final int ARTWORK_CACHE_SIZE = 4 * ARTWORK_SIZE * ARTWORK_SIZE * 4;
+
+    // The session queue only holds a window around the current track, starting a few tracks before it
+    private static final int QUEUE_WINDOW_SIZE = 50;
+    private static final int QUEUE_WINDOW_BEHIND = 5;
+    // Queue changes within this interval are merged into a single update
+    private static final long QUEUE_DEBOUNCE_MS = 250;
+
+    // How far the position can drift from what the session extrapolates before it's published again
+    private static final long POSITION_TOLERANCE_MS = 500;
+
+    // Older Huawei devices don't support custom styles
+    private static final boolean SUPPORTS_MEDIA_STYLE =
+            !Build.MANUFACTURER.toLowerCase().contains("huawei") || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+
     private final MusicService service;
     private final MusicManager manager;
     private final MediaSessionCompat session;
+    private final PendingIntent contentIntent;
+
+    // Mirrors the player when the media3 session backend is used. The legacy session then only handles the buttons
+    @Nullable
+    private Media3Session mirror = null;
+    private boolean active = false;
 
     private int ratingType = RatingCompat.RATING_NONE;
     private int forwardJumpInterval = 15;
     private int backwardJumpInterval = 15;
     private long actions = 0;
     private long compactActions = 0;
-    private CustomTarget<Bitmap> artworkTarget;
     private NotificationCompat.Builder builder;
     private MediaMetadataCompat.Builder prevMetadata = null;
+    // The last metadata built from prevMetadata and the last one set in the session
+    private MediaMetadataCompat builtMetadata = null;
+    private MediaMetadataCompat publishedMetadata = null;
+    // The last metadata given by updateNowPlayingMetadata
+    private TrackMetadata publishedNowPlaying = null;
     private Uri prevArtwork = null;
-    private Bitmap prevArtResource = null;
+    private Uri embeddedArtwork = null;
+
+    // Decoded artworks keyed by their uri, holding the current one and the next one in the queue
+    private final LruCache<Uri, Bitmap> artworkCache = new LruCache<Uri, Bitmap>(ARTWORK_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(@NonNull Uri key, @NonNull Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+    private final Map<Uri, ArtworkTarget> artworkLoads = new HashMap<>();
 
     private Action previousAction, rewindAction, playAction, pauseAction, stopAction, forwardAction, nextAction;
 
+    // Rebuilt when the options change, swapped when the playing state changes
+    private NotificationLayout playingLayout, pausedLayout, shownLayout;
+    private boolean shownPlaying = false;
+
+    private final Map<String, Integer> iconCache = new HashMap<>();
+    private final Map<Long, PendingIntent> intentCache = new HashMap<>();
+    private final Map<Long, Action> actionCache = new HashMap<>();
+
+    // What the notification is showing, so unchanged content doesn't bump the version
+    private CharSequence shownTitle, shownArtist, shownAlbum;
+    private Bitmap shownLargeIcon = null;
+
+    // Incremented whenever the content visible in the notification changes
+    private int notificationVersion = 0;
+    private int postedVersion = -1;
+    // The service starts in the foreground with an empty notification
+    private boolean postedForeground = true;
+    private boolean notificationScheduled = false;
+    private final Handler notificationHandler = new Handler(Looper.getMainLooper());
+    private final Runnable postNotification = this::postNotification;
+
+    // The playback state last set in the session, from which the system extrapolates the position
+    private int publishedState = PlaybackStateCompat.STATE_NONE;
+    private long publishedActions = -1;
+    private float publishedRate = 1;
+    private long publishedPosition = 0;
+    private long publishedUpdateTime = 0;
+    private long publishedQueueId = QueueItem.UNKNOWN_ID;
+    // Whether the position is given by updateNowPlayingMetadata instead of the player
+    private boolean externalPosition = false;
+    private long elapsedPosition = C.TIME_UNSET;
+
+    // The tracks last set in the session queue and their items, reused while they stay in the window
+    private List<Track> publishedTracks = Collections.emptyList();
+    private Map<Track, QueueItem> publishedQueue = new IdentityHashMap<>();
+    private ExoPlayback queuePlayback = null;
+    private final Runnable publishQueue = this::publishQueue;
+
     @SuppressLint("UnspecifiedImmutableFlag")
     public MetadataManager(MusicService service, MusicManager manager) {
         this.service = service;
@@ -79,6 +173,8 @@ public class MetadataManager {
 
         session.setFlags(MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
         session.setCallback(new ButtonEvents(service, manager));
+        // The token is only published once the player picks the session backend
+        BrowseTree.setSessionCreated(true);
 
         Context context = service.getApplicationContext();
         String packageName = context.getPackageName();
@@ -97,22 +193,64 @@ public class MetadataManager {
         openApp.setAction(Intent.ACTION_VIEW);
         openApp.setData(Uri.parse("trackplayer://notification.click"));
 
-        builder.setContentIntent(PendingIntent.getActivity(context, 0, openApp, PendingIntent.FLAG_CANCEL_CURRENT));
+        contentIntent = PendingIntent.getActivity(context, 0, openApp, PendingIntent.FLAG_CANCEL_CURRENT);
+        builder.setContentIntent(contentIntent);
 
         builder.setSmallIcon(R.drawable.play);
         builder.setCategory(NotificationCompat.CATEGORY_TRANSPORT);
 
         // Stops the playback when the notification is swiped away
-        builder.setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(service, PlaybackStateCompat.ACTION_STOP));
+        builder.setDeleteIntent(getMediaButtonIntent(PlaybackStateCompat.ACTION_STOP));
 
         // Make it visible in the lockscreen
         builder.setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
+
+        buildLayouts();
     }
 
     public MediaSessionCompat getSession() {
         return session;
     }
 
+    /**
+     * Switches the session backend
+     * @param player The player mirrored by a media3 session, or null to use the legacy session
+     */
+    public void setSessionPlayer(@Nullable Player player) {
+        if(player != null && mirror != null) {
+            mirror.setPlayer(player);
+            return;
+        }
+
+        if(player == null) {
+            // The browse service links the session in use, which is final once the player is created
+            BrowseTree.setSessionToken(session.getSessionToken());
+            if(mirror == null) return;
+
+            mirror.release();
+            mirror = null;
+
+            // The legacy session has to be published again
+            publishedState = PlaybackStateCompat.STATE_NONE;
+            publishedActions = -1;
+            session.setActive(active);
+        } else {
+            mirror = new Media3Session(service, manager, player, contentIntent);
+            mirror.setActions(actions);
+            if(builtMetadata != null) mirror.setMetadata(builtMetadata);
+
+            // Controllers would otherwise find two active sessions, the legacy one with a frozen state
+            session.setActive(false);
+            BrowseTree.setSessionToken(mirror.getSessionToken());
+        }
+
+        // The notification style links to the session in use
+        buildLayouts();
+        updatePlayback(shownPlaying);
+        notificationVersion++;
+        updateNotification();
+    }
+
     /**
      * Updates the metadata options
      * @param options The options
@@ -169,6 +307,12 @@ public class MetadataManager {
         ratingType = Utils.getInt(options, "ratingType", RatingCompat.RATING_NONE);
         session.setRatingType(ratingType);
 
+        if(mirror != null) mirror.setActions(actions);
+
+        // The actions, color and icon might have changed
+        buildLayouts();
+        updatePlayback(shownPlaying);
+        notificationVersion++;
         updateNotification();
     }
 
@@ -189,6 +333,9 @@ public class MetadataManager {
         Context context = service.getApplicationContext();
         NotificationManager manager = (NotificationManager) context.getSystemService(ns);
         manager.cancelAll();
+
+        // Nothing is shown anymore, the next update has to be posted
+        postedVersion = -1;
     }
 
     /**
@@ -202,9 +349,9 @@ public class MetadataManager {
         MediaMetadataCompat.Builder metadata = track.toMediaMetadata();
 
         metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, bitmap);
-        builder.setLargeIcon(bitmap);
+        setLargeIcon(bitmap);
 
-        session.setMetadata(metadata.build());
+        publishMetadata(metadata.build());
         updateNotification();
     }
 
@@ -213,54 +360,223 @@ public class MetadataManager {
      * @param track The new track
      */
     public void updateMetadata(ExoPlayback playback, TrackMetadata track, boolean isPlaying) {
+        boolean traced = SystemTrace.begin("TrackPlayer:updateMetadata");
+        try {
+            publishedNowPlaying = null;
+            externalPosition = false;
+            setMetadata(playback, track, isPlaying);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
+
+    private void setMetadata(ExoPlayback playback, TrackMetadata track, boolean isPlaying) {
         MediaMetadataCompat.Builder metadata = track.toMediaMetadata();
         prevMetadata = metadata;
 
-        RequestManager rm = Glide.with(service.getApplicationContext());
-        if(artworkTarget != null) rm.clear(artworkTarget);
-
-        if(track.artwork == null) {
-            prevArtwork = null;
-            builder.setLargeIcon((Bitmap) null);
-        } else if (track.artwork.equals(prevArtwork) && prevArtResource != null) {
-            metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, prevArtResource);
-            builder.setLargeIcon(prevArtResource);
+        if(track.artwork == null && embeddedArtwork != null) {
+            // Falls back to the picture embedded in the track
+            metadata.putString(METADATA_KEY_ART_URI, embeddedArtwork.toString());
+            setArtwork(metadata, embeddedArtwork);
         } else {
-            prevArtwork = track.artwork;
-            prevArtResource = null;
-
-            artworkTarget = rm.asBitmap()
-                .load(track.artwork)
-                .into(new CustomTarget<Bitmap>() {
-                    @Override
-                    public void onResourceReady(@NonNull Bitmap resource, Transition<? super Bitmap> transition) {
-                        prevArtResource = resource;
-
-                        metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, resource);
-                        builder.setLargeIcon(resource);
-
-                        session.setMetadata(metadata.build());
-                        updateNotification();
-                        artworkTarget = null;
-                    }
-
-                    @Override
-                    public void onLoadCleared(@Nullable Drawable placeholder) { }
-                });
+            setArtwork(metadata, track.artwork);
         }
 
-        builder.setContentTitle(track.title);
-        builder.setContentText(track.artist);
-        builder.setSubText(track.album);
+        setTitles(track.title, track.artist, track.album);
 
-        session.setMetadata(metadata.build());
+        builtMetadata = metadata.build();
+        publishMetadata(builtMetadata);
 
         updatePlayback(isPlaying);
         updatePlaybackState(playback);
         updateNotification();
+
+        prefetchArtwork(playback);
+    }
+
+    /**
+     * Sets the artwork from the cache, or loads it and updates the metadata once it's loaded
+     */
+    private void setArtwork(MediaMetadataCompat.Builder metadata, Uri uri) {
+        prevArtwork = uri;
+
+        if(uri == null) {
+            setLargeIcon(null);
+            return;
+        }
+
+        Bitmap artwork = artworkCache.get(uri);
+
+        if(artwork != null) {
+            metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork);
+            setLargeIcon(artwork);
+            return;
+        }
+
+        loadArtwork(uri, (bitmap) -> {
+            // The track changed while it was loading
+            if(metadata != prevMetadata) return;
+
+            metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, bitmap);
+            setLargeIcon(bitmap);
+
+            builtMetadata = metadata.build();
+            publishMetadata(builtMetadata);
+            updateNotification();
+        });
+    }
+
+    /**
+     * Sets the picture embedded in the current track, used when the track has no artwork
+     * @param uri The thumbnail of the picture or null when the track changes
+     */
+    public void setEmbeddedArtwork(@Nullable Uri uri) {
+        Uri previous = embeddedArtwork;
+        embeddedArtwork = uri;
+
+        if(uri == null) {
+            if(previous == null) return;
+
+            // The picture belongs to the previous track, nothing of it can be shown for the next one
+            artworkCache.remove(previous);
+
+            ArtworkTarget pending = artworkLoads.remove(previous);
+            if(pending != null) Glide.with(service.getApplicationContext()).clear(pending);
+
+            if(previous.equals(prevArtwork)) {
+                prevArtwork = null;
+                setLargeIcon(null);
+
+                if(prevMetadata != null) {
+                    prevMetadata.putString(METADATA_KEY_ART_URI, null);
+                    prevMetadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, null);
+                }
+            }
+            return;
+        }
+
+        if(prevMetadata == null || prevArtwork != null) return;
+
+        prevMetadata.putString(METADATA_KEY_ART_URI, uri.toString());
+        setArtwork(prevMetadata, uri);
+
+        builtMetadata = prevMetadata.build();
+        publishMetadata(builtMetadata);
+        updateNotification();
+    }
+
+    /**
+     * Loads the artwork of the next track into the cache, so it's shown as soon as the track changes
+     */
+    private void prefetchArtwork(ExoPlayback playback) {
+        Track next = playback.getNextTrack();
+        Uri nextArtwork = next == null ? null : next.artwork;
+
+        // Loads that are neither for the current nor the next track are no longer needed
+        if(!artworkLoads.isEmpty()) {
+            RequestManager rm = Glide.with(service.getApplicationContext());
+            Iterator<Map.Entry<Uri, ArtworkTarget>> it = artworkLoads.entrySet().iterator();
+
+            while(it.hasNext()) {
+                Map.Entry<Uri, ArtworkTarget> entry = it.next();
+                if(entry.getKey().equals(prevArtwork) || entry.getKey().equals(nextArtwork)) continue;
+
+                it.remove();
+                rm.clear(entry.getValue());
+            }
+        }
+
+        if(nextArtwork != null && artworkCache.get(nextArtwork) == null) loadArtwork(nextArtwork, null);
+    }
+
+    /**
+     * Loads an artwork downsampled to {@link #ARTWORK_SIZE} into the cache
+     * @param uri The artwork
+     * @param callback Called in the main thread once it's loaded, replacing the callback of a pending load
+     */
+    private void loadArtwork(Uri uri, @Nullable ArtworkCallback callback) {
+        ArtworkTarget pending = artworkLoads.get(uri);
+
+        if(pending != null) {
+            if(callback != null) pending.callback = callback;
+            return;
+        }
+
+        ArtworkTarget target = new ArtworkTarget(uri, callback);
+        artworkLoads.put(uri, target);
+
+        // Glide's memory cache is skipped, as it would return the bitmaps to its pool while they are still
+        // in our cache. Completed targets are never cleared for the same reason.
+        Glide.with(service.getApplicationContext())
+                .asBitmap()
+                .load(uri)
+                .downsample(DownsampleStrategy.CENTER_INSIDE)
+                .skipMemoryCache(true)
+                .into(target);
+    }
+
+    /**
+     * Updates the metadata given by the app, skipping the session update when nothing has changed
+     * @param nowPlaying The new metadata, with the elapsed time the position is synced to
+     */
+    public void updateNowPlayingMetadata(ExoPlayback playback, NowPlayingMetadata nowPlaying, boolean isPlaying) {
+        if(nowPlaying.elapsedTime >= 0) {
+            externalPosition = true;
+            elapsedPosition = Utils.toMillis(nowPlaying.elapsedTime);
+        }
+
+        if(nowPlaying.isSameMetadata(publishedNowPlaying)) {
+            // Only the playing state or the position may have changed
+            updatePlayback(isPlaying);
+            updatePlaybackState(playback);
+            updateNotification();
+            return;
+        }
+
+        boolean traced = SystemTrace.begin("TrackPlayer:updateMetadata");
+        try {
+            publishedNowPlaying = nowPlaying;
+            setMetadata(playback, nowPlaying, isPlaying);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
+
+    /**
+     * Drops the artwork bitmaps held by the manager. They are loaded again in the next track update
+     * @param critical Whether the artwork currently shown should also be released
+     */
+    public void releaseArtwork(boolean critical) {
+        Bitmap current = prevArtwork == null ? null : artworkCache.get(prevArtwork);
+        artworkCache.evictAll();
+
+        if(critical) {
+            // Forces the next metadata update to load the artwork again
+            prevArtwork = null;
+            setLargeIcon(null);
+            if(prevMetadata != null) {
+                prevMetadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, null);
+                builtMetadata = prevMetadata.build();
+            }
+        } else if(current != null) {
+            artworkCache.put(prevArtwork, current);
+        }
     }
 
     public void updateNowPlayingTitles(ExoPlayback playback, long duration, String title, String artist, String album) {
+      Bitmap artwork = prevArtwork == null ? null : artworkCache.get(prevArtwork);
+
+      MediaMetadataCompat published = publishedMetadata;
+      if (published != null && published != builtMetadata
+              && TextUtils.equals(title, published.getString(METADATA_KEY_TITLE))
+              && TextUtils.equals(artist, published.getString(METADATA_KEY_ARTIST))
+              && TextUtils.equals(album, published.getString(METADATA_KEY_ALBUM))
+              && duration == published.getLong(METADATA_KEY_DURATION)
+              && artwork == published.getBitmap(MediaMetadataCompat.METADATA_KEY_ART)) {
+        updatePlaybackState(playback);
+        return;
+      }
+
       MediaMetadataCompat.Builder metadata = new MediaMetadataCompat.Builder();
       metadata.putString(METADATA_KEY_TITLE, title);
       metadata.putString(METADATA_KEY_ARTIST, artist);
@@ -268,39 +584,64 @@ public class MetadataManager {
       if (prevArtwork != null) {
         metadata.putString(METADATA_KEY_ART_URI, prevArtwork.toString());
       }
-      if (prevArtResource != null) {
-        metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, prevArtResource);
+      if (artwork != null) {
+        metadata.putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork);
       }
       metadata.putLong(METADATA_KEY_DURATION, duration);
-      session.setMetadata(metadata.build());
+      publishMetadata(metadata.build());
       updatePlaybackState(playback);
     }
 
     /**
-     * Updates the playback state and notification buttons
+     * Updates the notification buttons
      */
     @SuppressLint("RestrictedApi")
     public void updatePlayback(boolean playing) {
+        NotificationLayout layout = playing ? playingLayout : pausedLayout;
+        if(layout == shownLayout) return;
+
+        // Swaps the precomputed actions and style
+        shownLayout = layout;
+        shownPlaying = playing;
+        builder.mActions = layout.actions;
+        builder.setStyle(layout.style);
+
+        notificationVersion++;
+
+        // updatePlaybackState(playback);
+        // updateNotification();
+    }
+
+    /**
+     * Builds the notification layouts for both states, so they only need to be swapped when the state changes
+     */
+    private void buildLayouts() {
+        playingLayout = buildLayout(true);
+        pausedLayout = buildLayout(false);
+        shownLayout = null;
+    }
+
+    private NotificationLayout buildLayout(boolean playing) {
+        NotificationLayout layout = new NotificationLayout();
         List<Integer> compact = new ArrayList<>();
-        builder.mActions.clear();
 
         // Adds the media buttons to the notification
 
-        addAction(previousAction, PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS, compact);
-        addAction(rewindAction, PlaybackStateCompat.ACTION_REWIND, compact);
+        addAction(layout, previousAction, PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS, compact);
+        addAction(layout, rewindAction, PlaybackStateCompat.ACTION_REWIND, compact);
 
         if(playing) {
-            addAction(pauseAction, PlaybackStateCompat.ACTION_PAUSE, compact);
+            addAction(layout, pauseAction, PlaybackStateCompat.ACTION_PAUSE, compact);
         } else {
-            addAction(playAction, PlaybackStateCompat.ACTION_PLAY, compact);
+            addAction(layout, playAction, PlaybackStateCompat.ACTION_PLAY, compact);
         }
 
-        addAction(stopAction, PlaybackStateCompat.ACTION_STOP, compact);
-        addAction(forwardAction, PlaybackStateCompat.ACTION_FAST_FORWARD, compact);
-        addAction(nextAction, PlaybackStateCompat.ACTION_SKIP_TO_NEXT, compact);
+        addAction(layout, stopAction, PlaybackStateCompat.ACTION_STOP, compact);
+        addAction(layout, forwardAction, PlaybackStateCompat.ACTION_FAST_FORWARD, compact);
+        addAction(layout, nextAction, PlaybackStateCompat.ACTION_SKIP_TO_NEXT, compact);
 
         // Prevent the media style from being used in older Huawei devices that don't support custom styles
-        if(!Build.MANUFACTURER.toLowerCase().contains("huawei") || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        if(SUPPORTS_MEDIA_STYLE) {
 
             MediaStyle style = new MediaStyle();
 
@@ -309,12 +650,11 @@ public class MetadataManager {
             } else {
                 // Shows the cancel button on pre-lollipop versions due to a bug
                 style.setShowCancelButton(true);
-                style.setCancelButtonIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(service,
-                        PlaybackStateCompat.ACTION_STOP));
+                style.setCancelButtonIntent(getMediaButtonIntent(PlaybackStateCompat.ACTION_STOP));
             }
 
             // Links the media session
-            style.setMediaSession(session.getSessionToken());
+            style.setMediaSession(mirror != null ? mirror.getSessionToken() : session.getSessionToken());
 
             // Updates the compact media buttons for the notification
             if (!compact.isEmpty()) {
@@ -325,20 +665,22 @@ public class MetadataManager {
                 style.setShowActionsInCompactView(compactIndexes);
             }
 
-            builder.setStyle(style);
+            layout.style = style;
 
         }
 
-        // updatePlaybackState(playback);
-        // updateNotification();
+        return layout;
     }
 
     @SuppressLint("RestrictedApi")
     public void updatePlayback(ExoPlayback playback, boolean playing) {
-        if (prevMetadata != null) session.setMetadata(prevMetadata.build());
+        if (builtMetadata != null && builtMetadata != publishedMetadata) publishMetadata(builtMetadata);
         updatePlayback(playing);
         updatePlaybackState(playback);
         updateNotification();
+
+        // The queue might have changed since the last track update
+        prefetchArtwork(playback);
     }
 
     /**
@@ -346,36 +688,234 @@ public class MetadataManager {
      * @param playback The player
      */
     private void updatePlaybackState(ExoPlayback playback) {
+        // The media3 session reads the state from the player
+        if(mirror != null) return;
+
+        int state = playback.getState();
+        float rate = playback.getRate();
+        long now = SystemClock.elapsedRealtime();
+        long expected = getPublishedPosition(now);
+
+        long position;
+        if(elapsedPosition != C.TIME_UNSET) {
+            position = elapsedPosition;
+            elapsedPosition = C.TIME_UNSET;
+        } else if(externalPosition) {
+            // Keeps extrapolating the position given by the app until it sends a new one
+            position = expected;
+        } else {
+            position = playback.getPosition();
+        }
+
+        // Controllers highlight the current item of the published queue window
+        Track currentTrack = playback.getCurrentTrack();
+        long queueId = currentTrack != null ? currentTrack.queueId : QueueItem.UNKNOWN_ID;
+
+        // The system extrapolates the position from the last state, so it's only published again when it drifts
+        if(state == publishedState && actions == publishedActions && rate == publishedRate
+                && queueId == publishedQueueId && Math.abs(position - expected) < POSITION_TOLERANCE_MS) return;
+
         // Updates the media session state
         PlaybackStateCompat.Builder pb = new PlaybackStateCompat.Builder();
         pb.setActions(actions);
-        pb.setState(playback.getState(), playback.getPosition(), playback.getRate());
+        pb.setState(state, position, rate, now);
         pb.setBufferedPosition(playback.getBufferedPosition());
+        pb.setActiveQueueItemId(queueId);
 
         session.setPlaybackState(pb.build());
+
+        publishedState = state;
+        publishedActions = actions;
+        publishedRate = rate;
+        publishedPosition = position;
+        publishedUpdateTime = now;
+        publishedQueueId = queueId;
+    }
+
+    /**
+     * The position the session is showing, extrapolated from the last published state
+     */
+    private long getPublishedPosition(long now) {
+        if(publishedState != PlaybackStateCompat.STATE_PLAYING) return publishedPosition;
+        return publishedPosition + (long)((now - publishedUpdateTime) * publishedRate);
+    }
+
+    /**
+     * Schedules an update of the session queue, called when the queue or the current track changes
+     */
+    public void invalidateQueue(ExoPlayback playback) {
+        boolean scheduled = queuePlayback != null;
+        queuePlayback = playback;
+
+        if(!scheduled) notificationHandler.postDelayed(publishQueue, QUEUE_DEBOUNCE_MS);
+    }
+
+    /**
+     * Schedules an update of the session queue after the metadata of a track changed
+     */
+    public void invalidateQueueItem(ExoPlayback playback, Track track) {
+        // Tracks are updated in place, so the window is published again when it holds the track
+        if(publishedQueue.remove(track) != null) publishedTracks = Collections.emptyList();
+        invalidateQueue(playback);
+    }
+
+    /**
+     * Sets the window of the queue around the current track in the session, when it changed
+     */
+    private void publishQueue() {
+        ExoPlayback playback = queuePlayback;
+        queuePlayback = null;
+
+        // The media3 session reads the queue from the player
+        if(playback == null || mirror != null) return;
+
+        List<Track> queue = playback.getQueue();
+        Integer current = playback.getCurrentTrackIndex();
+        List<Track> window;
+
+        synchronized(queue) {
+            int size = queue.size();
+            int start = Math.max(0, (current == null ? 0 : current) - QUEUE_WINDOW_BEHIND);
+            int end = Math.min(size, start + QUEUE_WINDOW_SIZE);
+            start = Math.max(0, end - QUEUE_WINDOW_SIZE);
+
+            window = new ArrayList<>(queue.subList(start, end));
+        }
+
+        if(isSameWindow(window)) return;
+
+        List<QueueItem> items = new ArrayList<>(window.size());
+        Map<Track, QueueItem> itemMap = new IdentityHashMap<>();
+
+        for(Track track : window) {
+            QueueItem item = publishedQueue.get(track);
+            if(item == null) item = track.toQueueItem();
+
+            items.add(item);
+            itemMap.put(track, item);
+        }
+
+        session.setQueue(items.isEmpty() ? null : items);
+
+        publishedTracks = window;
+        publishedQueue = itemMap;
+    }
+
+    private boolean isSameWindow(List<Track> window) {
+        if(window.size() != publishedTracks.size()) return false;
+
+        for(int i = 0; i < window.size(); i++) {
+            if(window.get(i) != publishedTracks.get(i)) return false;
+        }
+        return true;
+    }
+
+    private void publishMetadata(MediaMetadataCompat metadata) {
+        publishedMetadata = metadata;
+
+        if(mirror != null) {
+            mirror.setMetadata(metadata);
+        } else {
+            session.setMetadata(metadata);
+        }
+    }
+
+    public boolean isActive() {
+        return active;
     }
 
     public void setActive(boolean active) {
-        if (session.isActive() == active) return;
-        this.session.setActive(active);
+        if (this.active == active) return;
+        this.active = active;
+
+        // While mirroring, the media3 session is the only one controllers see
+        this.session.setActive(active && mirror == null);
 
         updateNotification();
     }
 
     public void destroy() {
+        notificationHandler.removeCallbacks(postNotification);
+        notificationScheduled = false;
+
+        notificationHandler.removeCallbacks(publishQueue);
+        queuePlayback = null;
+
+        RequestManager rm = Glide.with(service.getApplicationContext());
+        for(ArtworkTarget target : artworkLoads.values()) rm.clear(target);
+        artworkLoads.clear();
+        artworkCache.evictAll();
+
         service.stopForeground(true);
 
+        if(mirror != null) {
+            mirror.release();
+            mirror = null;
+        }
+
+        // A browse service created later has to start the playback service again
+        BrowseTree.setSessionToken(null);
+        BrowseTree.setSessionCreated(false);
+
+        active = false;
         session.setActive(false);
         session.release();
     }
 
+    private void setTitles(CharSequence title, CharSequence artist, CharSequence album) {
+        if(TextUtils.equals(title, shownTitle) && TextUtils.equals(artist, shownArtist)
+                && TextUtils.equals(album, shownAlbum)) return;
+
+        shownTitle = title;
+        shownArtist = artist;
+        shownAlbum = album;
+
+        builder.setContentTitle(title);
+        builder.setContentText(artist);
+        builder.setSubText(album);
+        notificationVersion++;
+    }
+
+    private void setLargeIcon(@Nullable Bitmap bitmap) {
+        // Bitmaps are compared by identity, the same artwork is always the same instance
+        if(bitmap == shownLargeIcon) return;
+
+        shownLargeIcon = bitmap;
+        builder.setLargeIcon(bitmap);
+        notificationVersion++;
+    }
+
+    /**
+     * Schedules the notification to be posted, merging every update within {@link #NOTIFICATION_DEBOUNCE_MS}
+     */
     private void updateNotification() {
+        if(notificationScheduled) return;
+
+        notificationScheduled = true;
+        notificationHandler.postDelayed(postNotification, NOTIFICATION_DEBOUNCE_MS);
+    }
+
+    private void postNotification() {
         // Log.d(Utils.LOG, "updateNotification");
         // Log.e(Utils.LOG, Log.getStackTraceString(new Throwable()));
-        if(session.isActive()) {
-            service.startForeground(1, builder.build());
-        } else {
-            service.stopForeground(true);
+        notificationScheduled = false;
+
+        boolean active = this.active;
+
+        // Skips posting the same content again
+        if(active == postedForeground && (!active || postedVersion == notificationVersion)) return;
+
+        boolean traced = SystemTrace.begin("TrackPlayer:updateNotification");
+        try {
+            if(active) {
+                service.startForeground(1, builder.build());
+                postedVersion = notificationVersion;
+            } else {
+                service.stopForeground(true);
+            }
+            postedForeground = active;
+        } finally {
+            SystemTrace.end(traced);
         }
     }
 
@@ -385,25 +925,97 @@ public class MetadataManager {
         Bundle bundle = options.getBundle(propertyName);
         if(bundle == null) return defaultIcon;
 
-        ResourceDrawableIdHelper helper = ResourceDrawableIdHelper.getInstance();
-        int icon = helper.getResourceDrawableId(service, bundle.getString("uri"));
+        String uri = bundle.getString("uri");
+        if(uri == null) return defaultIcon;
+
+        Integer cached = iconCache.get(uri);
+        int icon;
+
+        if(cached != null) {
+            icon = cached;
+        } else {
+            ResourceDrawableIdHelper helper = ResourceDrawableIdHelper.getInstance();
+            icon = helper.getResourceDrawableId(service, uri);
+            iconCache.put(uri, icon);
+        }
+
         if(icon == 0) return defaultIcon;
 
         return icon;
     }
 
+    /**
+     * Gets the media button intent of an action. They never change, so they are only created once
+     */
+    private PendingIntent getMediaButtonIntent(long action) {
+        PendingIntent intent = intentCache.get(action);
+
+        if(intent == null) {
+            intent = MediaButtonReceiver.buildMediaButtonPendingIntent(service, action);
+            intentCache.put(action, intent);
+        }
+
+        return intent;
+    }
+
     private Action createAction(List<Integer> caps, long action, String title, int icon) {
         if(!caps.contains((int)action)) return null;
 
-        return new Action(icon, title, MediaButtonReceiver.buildMediaButtonPendingIntent(service, action));
+        // The same action with the same icon is reused between option updates
+        long key = (action << 32) | (icon & 0xFFFFFFFFL);
+        Action cached = actionCache.get(key);
+
+        if(cached == null) {
+            cached = new Action(icon, title, getMediaButtonIntent(action));
+            actionCache.put(key, cached);
+        }
+
+        return cached;
     }
 
-    @SuppressLint("RestrictedApi")
-    private void addAction(Action action, long id, List<Integer> compact) {
+    private void addAction(NotificationLayout layout, Action action, long id, List<Integer> compact) {
         if(action == null) return;
 
-        if((compactActions & id) != 0) compact.add(builder.mActions.size());
-        builder.mActions.add(action);
+        if((compactActions & id) != 0) compact.add(layout.actions.size());
+        layout.actions.add(action);
+    }
+
+    private static class NotificationLayout {
+        final ArrayList<Action> actions = new ArrayList<>();
+        MediaStyle style = null;
+    }
+
+    private interface ArtworkCallback {
+        void onLoaded(Bitmap bitmap);
+    }
+
+    private class ArtworkTarget extends CustomTarget<Bitmap> {
+
+        private final Uri uri;
+        private ArtworkCallback callback;
+
+        ArtworkTarget(Uri uri, @Nullable ArtworkCallback callback) {
+            super(ARTWORK_SIZE, ARTWORK_SIZE);
+            this.uri = uri;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onResourceReady(@NonNull Bitmap resource, @Nullable Transition<? super Bitmap> transition) {
+            if(artworkLoads.get(uri) != this) return;
+
+            artworkLoads.remove(uri);
+            artworkCache.put(uri, resource);
+            if(callback != null) callback.onLoaded(resource);
+        }
+
+        @Override
+        public void onLoadFailed(@Nullable Drawable errorDrawable) {
+            if(artworkLoads.get(uri) == this) artworkLoads.remove(uri);
+        }
+
+        @Override
+        public void onLoadCleared(@Nullable Drawable placeholder) { }
     }
 
 }
@@ -0,0 +1,43 @@
+package com.guichaguri.trackplayer.service.models;
+
+/**
+ * @author Guichaguri
+ */
+public enum CachePolicy {
+
+    /**
+     * Reads cached data when available, falling back to the network for anything missing
+     * or when the cache can't be read
+     */
+    NORMAL("normal"),
+
+    /**
+     * Offline first. Cached ranges are played without touching the network, not even to revalidate them.
+     * The network is only used for ranges that are not cached yet, and those fail right away with a
+     * cache miss error when there's no connection
+     */
+    PREFER_CACHE("preferCache"),
+
+    /**
+     * Never touches the network. Uncached media fails right away with a cache miss error
+     */
+    CACHE_ONLY("cacheOnly");
+
+
+    public final String name;
+
+    CachePolicy(String name) {
+        this.name = name;
+    }
+
+    public static CachePolicy fromName(String name, CachePolicy defaultPolicy) {
+        if(name == null) return defaultPolicy;
+
+        for(CachePolicy p : values()) {
+            if(p.name.equalsIgnoreCase(name)) return p;
+        }
+
+        return defaultPolicy;
+    }
+
+}
@@ -8,6 +8,7 @@ import androidx.media3.common.util.UnstableApi;
 @UnstableApi
 public class NowPlayingMetadata extends TrackMetadata {
 
+    // In seconds, negative when it's not given
     public double elapsedTime;
 
     public NowPlayingMetadata(Context context, Bundle bundle, int ratingType) {
@@ -18,7 +19,7 @@ public class NowPlayingMetadata extends TrackMetadata {
     public void setMetadata(Context context, Bundle bundle, int ratingType) {
         super.setMetadata(context, bundle, ratingType);
 
-        elapsedTime = bundle.getDouble("elapsedTime", 0);
+        elapsedTime = bundle.getDouble("elapsedTime", -1);
     }
     
 }
@@ -10,6 +10,7 @@ import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat.QueueItem;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.OptIn;
 import androidx.media3.common.MediaItem;
 import androidx.media3.common.util.UnstableApi;
@@ -28,6 +29,7 @@ import androidx.media3.exoplayer.source.MediaSource;
 import androidx.media3.exoplayer.source.ProgressiveMediaSource;
 import androidx.media3.extractor.DefaultExtractorsFactory;
 
+import com.guichaguri.trackplayer.service.SystemTrace;
 import com.guichaguri.trackplayer.service.Utils;
 import com.guichaguri.trackplayer.service.player.LocalPlayback;
 
@@ -36,6 +38,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Guichaguri
@@ -43,6 +46,9 @@ import java.util.Map;
 @UnstableApi
 public class Track extends TrackMetadata {
 
+    // Unique ids for the session queue, as tracks created in the same millisecond would share timestamps
+    private static final AtomicLong nextQueueId = new AtomicLong();
+
     public static List<Track> createTracks(Context context, List objects, int ratingType) {
         List<Track> tracks = new ArrayList<>();
 
@@ -58,9 +64,12 @@ public class Track extends TrackMetadata {
     }
 
     public Uri uri;
+    public Uri dataSaverUri;
     public int resourceId;
 
     public TrackType type = TrackType.DEFAULT;
+    public CachePolicy cachePolicy = null;
+    public boolean preview;
 
     public String contentType;
     public String userAgent;
@@ -76,6 +85,7 @@ public class Track extends TrackMetadata {
 
         if(resourceId == 0) {
             uri = Utils.getUri(context, bundle, "url");
+            dataSaverUri = Utils.getUri(context, bundle, "dataSaverUrl");
         } else {
             uri = new Uri.Builder().scheme(ContentResolver.SCHEME_ANDROID_RESOURCE).path(Integer.toString(resourceId)).build();
         }
@@ -89,6 +99,10 @@ public class Track extends TrackMetadata {
             }
         }
 
+        // Tracks without a policy follow the one set in the player options
+        cachePolicy = CachePolicy.fromName(bundle.getString("cachePolicy"), null);
+        preview = bundle.getBoolean("preview", false);
+
         contentType = bundle.getString("contentType");
         userAgent = bundle.getString("userAgent");
 
@@ -102,7 +116,7 @@ public class Track extends TrackMetadata {
 
         setMetadata(context, bundle, ratingType);
 
-        queueId = System.currentTimeMillis();
+        queueId = nextQueueId.getAndIncrement();
         originalItem = bundle;
     }
 
@@ -135,72 +149,95 @@ public class Track extends TrackMetadata {
     }
 
     public MediaSource toMediaSource(Context ctx, LocalPlayback playback) {
-        // Updates the user agent if not set
-        if(userAgent == null || userAgent.isEmpty())
-            userAgent = Util.getUserAgent(ctx, "react-native-track-player");
+        boolean traced = SystemTrace.begin("TrackPlayer:toMediaSource");
+        try {
+            return createMediaSource(ctx, playback);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
 
-        DataSource.Factory ds;
+    private MediaSource createMediaSource(Context ctx, LocalPlayback playback) {
+        // Lower bitrate alternative used while the data saver is active
+        Uri source = dataSaverUri != null && playback.isDataSaverActive() ? dataSaverUri : uri;
 
+        DataSource.Factory ds = playback.trackTransfers(createDataSourceFactory(ctx, playback, source));
+
+        switch(type) {
+            case DASH:
+                return createDashSource(ds, source);
+            case HLS:
+                return createHlsSource(ds, source);
+            case SMOOTH_STREAMING:
+                return createSsSource(ds, source);
+            default:
+                return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
+                        .setConstantBitrateSeekingEnabled(true))
+                        .createMediaSource(MediaItem.fromUri(source));
+        }
+    }
+
+    /**
+     * Creates the data source factory for this track, with the cache for remote sources
+     * @param source The uri that will be loaded, the track uri or its data saver variant
+     */
+    private DataSource.Factory createDataSourceFactory(Context ctx, LocalPlayback playback, Uri source) {
         if(resourceId != 0) {
 
             try {
                 RawResourceDataSource raw = new RawResourceDataSource(ctx);
                 raw.open(new DataSpec(uri));
-                ds = () -> raw;
+                return () -> raw;
             } catch(IOException ex) {
                 // Should never happen
                 throw new RuntimeException(ex);
             }
 
-        } else if(Utils.isLocal(uri)) {
+        } else if(Utils.isLocal(source)) {
 
             // Creates a local source factory
-            ds = new DefaultDataSource.Factory(ctx);
+            return new DefaultDataSource.Factory(ctx);
 
-        } else {
+        }
 
-            // Creates a default http source factory, enabling cross protocol redirects
-            DefaultHttpDataSource.Factory factory = new DefaultHttpDataSource.Factory()
-                    .setUserAgent(userAgent)
-                    .setConnectTimeoutMs(DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS)
-                    .setReadTimeoutMs(DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS)
-                    .setAllowCrossProtocolRedirects(true);
+        return playback.enableCaching(createHttpDataSourceFactory(ctx, userAgent, headers), this);
+    }
 
-            if(headers != null) {
-                factory.setDefaultRequestProperties(headers);
-            }
+    /**
+     * Creates a default http source factory, enabling cross protocol redirects
+     * @param userAgent The user agent or null to use the default one
+     */
+    public static DataSource.Factory createHttpDataSourceFactory(Context ctx, @Nullable String userAgent,
+                                                                 @Nullable Map<String, String> headers) {
+        if(userAgent == null || userAgent.isEmpty())
+            userAgent = Util.getUserAgent(ctx, "react-native-track-player");
 
-            ds = playback.enableCaching(factory);
+        DefaultHttpDataSource.Factory factory = new DefaultHttpDataSource.Factory()
+                .setUserAgent(userAgent)
+                .setConnectTimeoutMs(DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS)
+                .setReadTimeoutMs(DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS)
+                .setAllowCrossProtocolRedirects(true);
 
+        if(headers != null) {
+            factory.setDefaultRequestProperties(headers);
         }
 
-        switch(type) {
-            case DASH:
-                return createDashSource(ds);
-            case HLS:
-                return createHlsSource(ds);
-            case SMOOTH_STREAMING:
-                return createSsSource(ds);
-            default:
-                return new ProgressiveMediaSource.Factory(ds, new DefaultExtractorsFactory()
-                        .setConstantBitrateSeekingEnabled(true))
-                        .createMediaSource(MediaItem.fromUri(uri));
-        }
+        return factory;
     }
 
-    private MediaSource createDashSource(DataSource.Factory factory) {
+    private MediaSource createDashSource(DataSource.Factory factory, Uri source) {
         return new DashMediaSource.Factory(new DefaultDashChunkSource.Factory(factory), factory)
-                .createMediaSource(MediaItem.fromUri(uri));
+                .createMediaSource(MediaItem.fromUri(source));
     }
 
-    private MediaSource createHlsSource(DataSource.Factory factory) {
+    private MediaSource createHlsSource(DataSource.Factory factory, Uri source) {
         return new HlsMediaSource.Factory(factory)
-                .createMediaSource(MediaItem.fromUri(uri));
+                .createMediaSource(MediaItem.fromUri(source));
     }
 
-    private MediaSource createSsSource(DataSource.Factory factory) {
+    private MediaSource createSsSource(DataSource.Factory factory, Uri source) {
         return new SsMediaSource.Factory(new DefaultSsChunkSource.Factory(factory), factory)
-                .createMediaSource(MediaItem.fromUri(uri));
+                .createMediaSource(MediaItem.fromUri(source));
     }
 
 }
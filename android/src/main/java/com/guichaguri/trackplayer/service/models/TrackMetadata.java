@@ -19,6 +19,8 @@ import androidx.media3.common.util.UnstableApi;
 
 import com.guichaguri.trackplayer.service.Utils;
 
+import java.util.Objects;
+
 @UnstableApi
 public abstract class TrackMetadata {
     public Uri artwork;
@@ -45,6 +47,21 @@ public abstract class TrackMetadata {
         rating = Utils.getRating(bundle, "rating", ratingType);
     }
 
+    /**
+     * Whether the metadata shown in the session is the same as the other one
+     */
+    public boolean isSameMetadata(TrackMetadata other) {
+        if(other == null) return false;
+        if(other == this) return true;
+
+        return duration == other.duration && Objects.equals(artwork, other.artwork)
+                && Objects.equals(title, other.title) && Objects.equals(artist, other.artist)
+                && Objects.equals(album, other.album) && Objects.equals(date, other.date)
+                && Objects.equals(genre, other.genre)
+                // RatingCompat doesn't implement equals, but its string has the style and the value
+                && String.valueOf(rating).equals(String.valueOf(other.rating));
+    }
+
     public MediaMetadataCompat.Builder toMediaMetadata() {
         MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
 
@@ -0,0 +1,344 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.SystemClock;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.common.util.Util;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.LoadControl;
+import androidx.media3.exoplayer.Renderer;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.source.MediaSource.MediaPeriodId;
+import androidx.media3.exoplayer.source.TrackGroupArray;
+import androidx.media3.exoplayer.trackselection.ExoTrackSelection;
+import androidx.media3.exoplayer.upstream.Allocator;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+import androidx.media3.exoplayer.upstream.DefaultAllocator;
+
+import com.guichaguri.trackplayer.service.Utils;
+
+/**
+ * A load control that changes its buffer targets at runtime, without recreating the player.
+ *
+ * The targets follow the connection type, the bandwidth estimate, how often the playback rebuffered
+ * and the memory pressure. The allocator and the back buffer are handled by a {@link DefaultLoadControl}.
+ *
+ * All methods except {@link #setNetworkType(int)} and {@link #setMemoryPressure(int)} are called from the playback thread.
+ */
+@UnstableApi
+public class AdaptiveLoadControl implements LoadControl {
+
+    // Memory pressure levels
+    public static final int MEMORY_PRESSURE_NONE = 0;
+    public static final int MEMORY_PRESSURE_MODERATE = 1;
+    public static final int MEMORY_PRESSURE_CRITICAL = 2;
+
+    // The memory pressure is forgotten when it is not reported again within this time
+    private static final long MEMORY_PRESSURE_DURATION_MS = 60 * 1000;
+
+    // Byte limits enforced while under memory pressure
+    private static final int MODERATE_PRESSURE_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final int CRITICAL_PRESSURE_BUFFER_BYTES = 1024 * 1024;
+
+    // Below this estimate, in bits per second, a metered connection is not trusted to refill a short buffer
+    private static final long FAST_NETWORK_BITRATE = 2_000_000;
+
+    // Rebuffers older than this no longer affect the targets
+    private static final long REBUFFER_MEMORY_MS = 5 * 60 * 1000;
+    private static final int MAX_REBUFFER_FACTOR = 4;
+
+    // How often the targets are evaluated again when nothing changed
+    private static final long EVALUATE_INTERVAL_MS = 1000;
+
+    // Same lower bound as DefaultLoadControl, so sped up playback doesn't drain the buffer
+    private static final long MIN_BUFFER_FLOOR_US = 500_000;
+
+    private final DefaultLoadControl delegate;
+    private final BandwidthMeter bandwidthMeter;
+    private final boolean adaptive;
+    private final boolean prioritizeTimeOverSize;
+    private final int configuredBufferBytes;
+
+    private final long minBufferUs;
+    private final long maxBufferUs;
+    private final long playBufferUs;
+    private final long playAfterRebufferUs;
+    private final long meteredMaxBufferUs;
+
+    private volatile int networkType = Utils.NETWORK_UNKNOWN;
+    private volatile int memoryPressure = MEMORY_PRESSURE_NONE;
+    private volatile long memoryPressureTime;
+    private volatile boolean dirty = true;
+
+    // Current targets, only touched by the playback thread
+    private long targetMinBufferUs;
+    private long targetMaxBufferUs;
+    private long targetPlayBufferUs;
+    private long targetPlayAfterRebufferUs;
+    private int targetMemoryBytes = C.LENGTH_UNSET;
+    private int targetBufferBytes;
+
+    private long lastEvaluation;
+    private int rebufferCount = 0;
+    private long lastRebuffer;
+    private boolean rebuffering = false;
+    private boolean loading = false;
+    private boolean sizeLimitReached = false;
+
+    /**
+     * @param adaptive Whether the targets should follow the network. When false, the configured targets are always used
+     * @param meteredMaxBufferMs The maximum buffer used on fast metered connections
+     * @param targetBufferBytes The maximum amount of buffered bytes, or {@link C#LENGTH_UNSET} to calculate it from the tracks
+     * @param prioritizeTimeOverSize Whether the minimum buffer duration is loaded even if it goes over the byte target
+     */
+    public AdaptiveLoadControl(BandwidthMeter bandwidthMeter, boolean adaptive, int minBufferMs, int maxBufferMs,
+                               int playBufferMs, int playAfterRebufferMs, int backBufferMs, int meteredMaxBufferMs,
+                               int targetBufferBytes, boolean prioritizeTimeOverSize) {
+        this.bandwidthMeter = bandwidthMeter;
+        this.adaptive = adaptive;
+        this.prioritizeTimeOverSize = prioritizeTimeOverSize;
+        this.minBufferUs = Util.msToUs(minBufferMs);
+        this.maxBufferUs = Util.msToUs(Math.max(minBufferMs, maxBufferMs));
+        this.playBufferUs = Util.msToUs(playBufferMs);
+        this.playAfterRebufferUs = Util.msToUs(playAfterRebufferMs);
+        this.meteredMaxBufferUs = Util.msToUs(meteredMaxBufferMs);
+        this.configuredBufferBytes = targetBufferBytes;
+        this.targetBufferBytes = targetBufferBytes != C.LENGTH_UNSET ? targetBufferBytes : DefaultLoadControl.DEFAULT_MIN_BUFFER_SIZE;
+
+        // The delegate only sizes the allocator and keeps the back buffer, the targets are checked here
+        int ceilingMs = Math.max(minBufferMs, maxBufferMs);
+        this.delegate = new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(ceilingMs, ceilingMs, 0, 0)
+                .setBackBuffer(backBufferMs, false)
+                .setTargetBufferBytes(targetBufferBytes)
+                .build();
+
+        this.targetMinBufferUs = minBufferUs;
+        this.targetMaxBufferUs = maxBufferUs;
+        this.targetPlayBufferUs = playBufferUs;
+        this.targetPlayAfterRebufferUs = playAfterRebufferUs;
+    }
+
+    /**
+     * Updates the connection type
+     * @param networkType One of the {@link Utils} network constants
+     */
+    public void setNetworkType(int networkType) {
+        if(this.networkType == networkType) return;
+        this.networkType = networkType;
+        this.dirty = true;
+    }
+
+    /**
+     * Shrinks the buffer for a while, until the pressure is no longer reported
+     * @param pressure One of the memory pressure constants
+     */
+    public void setMemoryPressure(int pressure) {
+        memoryPressureTime = SystemClock.elapsedRealtime();
+
+        if(pressure > memoryPressure) {
+            memoryPressure = pressure;
+            dirty = true;
+
+            // Releases the memory that was allocated but is no longer holding media
+            Allocator allocator = delegate.getAllocator();
+            if(allocator instanceof DefaultAllocator) ((DefaultAllocator)allocator).trim();
+        }
+    }
+
+    private void evaluate() {
+        long now = SystemClock.elapsedRealtime();
+        if(!dirty && now - lastEvaluation < EVALUATE_INTERVAL_MS) return;
+
+        dirty = false;
+        lastEvaluation = now;
+
+        if(rebufferCount > 0 && now - lastRebuffer > REBUFFER_MEMORY_MS) rebufferCount = 0;
+
+        if(memoryPressure != MEMORY_PRESSURE_NONE && now - memoryPressureTime > MEMORY_PRESSURE_DURATION_MS) {
+            memoryPressure = MEMORY_PRESSURE_NONE;
+        }
+
+        long min = minBufferUs;
+        long max = maxBufferUs;
+        long play = playBufferUs;
+        long playAfterRebuffer = playAfterRebufferUs;
+
+        if(adaptive) {
+            int network = networkType;
+
+            if(network == Utils.NETWORK_UNMETERED) {
+                // Data is cheap, fill the whole buffer so the radio can stay idle for longer
+                min = max;
+            } else if(network == Utils.NETWORK_METERED && rebufferCount == 0
+                    && bandwidthMeter.getBitrateEstimate() >= FAST_NETWORK_BITRATE) {
+                // A fast connection refills quickly, keep a short buffer to avoid wasting data on skipped tracks
+                max = Math.min(max, Math.max(meteredMaxBufferUs, play));
+                min = Math.min(min, max);
+            }
+
+            // Each recent rebuffer requires more data before playback starts again
+            int factor = Math.min(1 + rebufferCount, MAX_REBUFFER_FACTOR);
+            play *= factor;
+            playAfterRebuffer *= factor;
+        }
+
+        int pressure = memoryPressure;
+
+        if(pressure == MEMORY_PRESSURE_CRITICAL) {
+            max = Math.max(max / 4, playBufferUs);
+            targetMemoryBytes = CRITICAL_PRESSURE_BUFFER_BYTES;
+        } else if(pressure == MEMORY_PRESSURE_MODERATE) {
+            max = Math.max(max / 2, playBufferUs);
+            targetMemoryBytes = MODERATE_PRESSURE_BUFFER_BYTES;
+        } else {
+            targetMemoryBytes = C.LENGTH_UNSET;
+        }
+
+        min = Math.min(min, max);
+
+        targetMinBufferUs = min;
+        targetMaxBufferUs = max;
+        targetPlayBufferUs = Math.min(play, Math.max(min, playBufferUs));
+        targetPlayAfterRebufferUs = Math.min(playAfterRebuffer, Math.max(min, playAfterRebufferUs));
+    }
+
+    @Override
+    public void onPrepared(PlayerId playerId) {
+        loading = false;
+        delegate.onPrepared(playerId);
+    }
+
+    @Override
+    public void onTracksSelected(PlayerId playerId, Timeline timeline, MediaPeriodId mediaPeriodId,
+                                 Renderer[] renderers, TrackGroupArray trackGroups,
+                                 ExoTrackSelection[] trackSelections) {
+        if(configuredBufferBytes == C.LENGTH_UNSET) {
+            targetBufferBytes = calculateTargetBufferBytes(renderers, trackSelections);
+        }
+
+        delegate.onTracksSelected(playerId, timeline, mediaPeriodId, renderers, trackGroups, trackSelections);
+    }
+
+    /**
+     * Same byte target as {@link DefaultLoadControl} calculates for the selected tracks
+     */
+    private static int calculateTargetBufferBytes(Renderer[] renderers, ExoTrackSelection[] trackSelections) {
+        int bytes = 0;
+
+        for(int i = 0; i < renderers.length; i++) {
+            if(trackSelections[i] != null) bytes += getDefaultBufferSize(renderers[i].getTrackType());
+        }
+
+        return Math.max(DefaultLoadControl.DEFAULT_MIN_BUFFER_SIZE, bytes);
+    }
+
+    private static int getDefaultBufferSize(int trackType) {
+        switch(trackType) {
+            case C.TRACK_TYPE_DEFAULT:
+                return DefaultLoadControl.DEFAULT_MUXED_BUFFER_SIZE;
+            case C.TRACK_TYPE_AUDIO:
+                return DefaultLoadControl.DEFAULT_AUDIO_BUFFER_SIZE;
+            case C.TRACK_TYPE_VIDEO:
+                return DefaultLoadControl.DEFAULT_VIDEO_BUFFER_SIZE;
+            case C.TRACK_TYPE_TEXT:
+                return DefaultLoadControl.DEFAULT_TEXT_BUFFER_SIZE;
+            case C.TRACK_TYPE_METADATA:
+                return DefaultLoadControl.DEFAULT_METADATA_BUFFER_SIZE;
+            case C.TRACK_TYPE_CAMERA_MOTION:
+                return DefaultLoadControl.DEFAULT_CAMERA_MOTION_BUFFER_SIZE;
+            case C.TRACK_TYPE_IMAGE:
+                return DefaultLoadControl.DEFAULT_IMAGE_BUFFER_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void onStopped(PlayerId playerId) {
+        loading = false;
+        delegate.onStopped(playerId);
+    }
+
+    @Override
+    public void onReleased(PlayerId playerId) {
+        loading = false;
+        delegate.onReleased(playerId);
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return delegate.getAllocator();
+    }
+
+    @Override
+    public long getBackBufferDurationUs(PlayerId playerId) {
+        // Only read when the player is built, so it can't be changed under memory pressure
+        return delegate.getBackBufferDurationUs(playerId);
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe(PlayerId playerId) {
+        return delegate.retainBackBufferFromKeyframe(playerId);
+    }
+
+    @Override
+    public boolean shouldContinueLoading(Parameters parameters) {
+        evaluate();
+
+        long minUs = targetMinBufferUs;
+        if(parameters.playbackSpeed > 1) {
+            minUs = Math.min(Util.getMediaDurationForPlayoutDuration(minUs, parameters.playbackSpeed), targetMaxBufferUs);
+        }
+        minUs = Math.max(minUs, MIN_BUFFER_FLOOR_US);
+
+        int allocatedBytes = delegate.getAllocator().getTotalBytesAllocated();
+        boolean targetBufferSizeReached = allocatedBytes >= targetBufferBytes;
+
+        // The memory pressure limit can't be overridden by prioritizing time. The allocated bytes include the
+        // back buffer, so it never stops the loading below the floor, otherwise the playback could run dry
+        boolean memoryLimitReached = targetMemoryBytes != C.LENGTH_UNSET
+                && allocatedBytes >= targetMemoryBytes
+                && parameters.bufferedDurationUs >= MIN_BUFFER_FLOOR_US;
+
+        sizeLimitReached = memoryLimitReached || (targetBufferSizeReached && !prioritizeTimeOverSize);
+
+        if(memoryLimitReached) {
+            loading = false;
+        } else if(parameters.bufferedDurationUs < minUs) {
+            loading = prioritizeTimeOverSize || !targetBufferSizeReached;
+        } else if(parameters.bufferedDurationUs >= targetMaxBufferUs || targetBufferSizeReached) {
+            loading = false;
+        } // Otherwise keeps the current loading state
+
+        return loading;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(Parameters parameters) {
+        if(parameters.rebuffering && !rebuffering) {
+            rebuffering = true;
+            rebufferCount++;
+            lastRebuffer = SystemClock.elapsedRealtime();
+            dirty = true;
+        }
+
+        evaluate();
+
+        long bufferedUs = Util.getPlayoutDurationForMediaDuration(parameters.bufferedDurationUs, parameters.playbackSpeed);
+        long minUs = parameters.rebuffering ? targetPlayAfterRebufferUs : targetPlayBufferUs;
+
+        if(parameters.targetLiveOffsetUs != C.TIME_UNSET) {
+            minUs = Math.min(parameters.targetLiveOffsetUs / 2, minUs);
+        }
+
+        // Starts anyway when a byte limit stopped the loading, otherwise the player would be stuck
+        boolean start = minUs <= 0 || bufferedUs >= minUs || sizeLimitReached;
+
+        if(start) rebuffering = false;
+        return start;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * The configuration of the audio effects. Immutable, so it can be swapped while the audio thread reads it.
+ *
+ * @author Guichaguri
+ */
+public final class AudioEffects {
+
+    // Filters are preallocated by the processor, so the number of bands is bounded
+    public static final int MAX_BANDS = 10;
+
+    private static final float MIN_GAIN_DB = -24;
+    private static final float MAX_GAIN_DB = 24;
+    private static final float DEFAULT_Q = 1;
+
+    public static final AudioEffects NONE = new AudioEffects(new float[0], new float[0], new float[0], 0, false);
+
+    // Peaking filters of the equalizer
+    final float[] frequencies;
+    final float[] gains;
+    final float[] qs;
+
+    // Gain in dB of the low shelf filter
+    final float bassBoost;
+
+    // Whether the channels are mixed down to mono
+    final boolean mono;
+
+    private AudioEffects(float[] frequencies, float[] gains, float[] qs, float bassBoost, boolean mono) {
+        this.frequencies = frequencies;
+        this.gains = gains;
+        this.qs = qs;
+        this.bassBoost = bassBoost;
+        this.mono = mono;
+    }
+
+    public static AudioEffects fromBundle(@Nullable Bundle bundle) {
+        if(bundle == null) return NONE;
+
+        List<Bundle> bands = bundle.getParcelableArrayList("equalizer");
+        int count = bands == null ? 0 : Math.min(bands.size(), MAX_BANDS);
+
+        float[] frequencies = new float[count];
+        float[] gains = new float[count];
+        float[] qs = new float[count];
+
+        for(int i = 0; i < count; i++) {
+            Bundle band = bands.get(i);
+            frequencies[i] = (float)band.getDouble("frequency", 1000);
+            gains[i] = clampGain(band.getDouble("gain", 0));
+            qs[i] = (float)Math.max(band.getDouble("q", DEFAULT_Q), 0.1);
+        }
+
+        float bassBoost = clampGain(bundle.getDouble("bassBoost", 0));
+        boolean mono = bundle.getBoolean("mono", false);
+
+        AudioEffects effects = new AudioEffects(frequencies, gains, qs, bassBoost, mono);
+        return effects.isActive() ? effects : NONE;
+    }
+
+    private static float clampGain(double gain) {
+        return (float)Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, gain));
+    }
+
+    /**
+     * Whether the effects change the audio
+     */
+    public boolean isActive() {
+        if(bassBoost != 0 || mono) return true;
+
+        for(float gain : gains) {
+            if(gain != 0) return true;
+        }
+        return false;
+    }
+
+    int getBandCount() {
+        return gains.length;
+    }
+
+}
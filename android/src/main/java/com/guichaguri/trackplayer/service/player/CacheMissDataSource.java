@@ -0,0 +1,54 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+
+import java.io.IOException;
+
+/**
+ * Upstream used by the cache-only policy. It fails as soon as the cache asks it for data,
+ * so uncached media errors out immediately instead of waiting for a network timeout.
+ */
+@UnstableApi
+public class CacheMissDataSource implements DataSource {
+
+    public static final DataSource.Factory FACTORY = CacheMissDataSource::new;
+
+    public static class CacheMissException extends IOException {
+        public CacheMissException(Uri uri) {
+            super("The media is not cached: " + uri);
+        }
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        // Nothing is ever transferred
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        throw new CacheMissException(dataSpec.uri);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        throw new IOException("The data source is not open");
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.extractor.metadata.id3.ChapterFrame;
+import androidx.media3.extractor.metadata.id3.ChapterTocFrame;
+import androidx.media3.extractor.metadata.id3.Id3Frame;
+import androidx.media3.extractor.metadata.id3.TextInformationFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chapters of a track, sorted by their start time.
+ *
+ * Built once per track from the ID3 CHAP and CTOC frames. The chapters are kept in parallel arrays,
+ * so finding the chapter of a position is a binary search.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class ChapterIndex {
+
+    public static final ChapterIndex EMPTY = new ChapterIndex(new long[0], new long[0], new String[0]);
+
+    private final long[] starts;
+    private final long[] ends;
+    private final String[] titles;
+
+    private ChapterIndex(long[] starts, long[] ends, String[] titles) {
+        this.starts = starts;
+        this.ends = ends;
+        this.titles = titles;
+    }
+
+    /**
+     * Builds the index from the frames of a track
+     * @param chapters The chapter frames
+     * @param tocs The table of contents frames, which define the order of the chapters
+     */
+    public static ChapterIndex build(List<ChapterFrame> chapters, List<ChapterTocFrame> tocs) {
+        if(chapters.isEmpty()) return EMPTY;
+
+        List<ChapterFrame> ordered = chapters;
+        ChapterTocFrame root = null;
+
+        for(ChapterTocFrame toc : tocs) {
+            if(toc.isRoot) root = toc;
+        }
+
+        if(root != null && root.isOrdered) {
+            // Chapters not listed in the root table of contents are not meant to be navigated to
+            Map<String, ChapterFrame> byId = new HashMap<>();
+            for(ChapterFrame chapter : chapters) byId.put(chapter.chapterId, chapter);
+
+            ordered = new ArrayList<>(root.children.length);
+            for(String id : root.children) {
+                ChapterFrame chapter = byId.get(id);
+                if(chapter != null) ordered.add(chapter);
+            }
+
+            if(ordered.isEmpty()) ordered = chapters;
+        }
+
+        ChapterFrame[] sorted = ordered.toArray(new ChapterFrame[0]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.startTimeMs, b.startTimeMs));
+
+        long[] starts = new long[sorted.length];
+        long[] ends = new long[sorted.length];
+        String[] titles = new String[sorted.length];
+
+        for(int i = 0; i < sorted.length; i++) {
+            ChapterFrame chapter = sorted[i];
+            starts[i] = chapter.startTimeMs;
+            ends[i] = chapter.endTimeMs;
+            titles[i] = getTitle(chapter);
+        }
+
+        return new ChapterIndex(starts, ends, titles);
+    }
+
+    private static String getTitle(ChapterFrame chapter) {
+        for(int i = 0; i < chapter.getSubFrameCount(); i++) {
+            Id3Frame frame = chapter.getSubFrame(i);
+
+            if(frame instanceof TextInformationFrame && "TIT2".equals(frame.id)) {
+                return ((TextInformationFrame)frame).values.get(0);
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Finds the chapter playing at a position
+     * @param position The position in milliseconds
+     * @return The chapter index or {@link C#INDEX_UNSET} when it's before the first chapter
+     */
+    public int indexOf(long position) {
+        int low = 0, high = starts.length - 1;
+        int found = C.INDEX_UNSET;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if(starts[mid] <= position) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * The start of the chapter after a position
+     * @return The start in milliseconds or {@link C#TIME_UNSET} when there's none
+     */
+    public long getNextStart(long position) {
+        int next = indexOf(position) + 1;
+        return next < starts.length ? starts[next] : C.TIME_UNSET;
+    }
+
+    public Bundle toBundle(int index) {
+        Bundle bundle = new Bundle();
+        bundle.putInt("index", index);
+        bundle.putString("title", titles[index]);
+        bundle.putDouble("start", starts[index] / 1000D);
+        bundle.putDouble("end", ends[index] / 1000D);
+        return bundle;
+    }
+
+    public List<Bundle> toBundleList() {
+        List<Bundle> list = new ArrayList<>(starts.length);
+        for(int i = 0; i < starts.length; i++) list.add(toBundle(i));
+        return list;
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.datasource.cache.Cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A data source that waits for the cache to finish loading before opening.
+ *
+ * Opening happens in the loader thread, so only the tracks that actually need the cache wait for it.
+ */
+@UnstableApi
+public class DeferredCacheDataSource implements DataSource {
+
+    public interface Factory {
+        /**
+         * Creates the real data source
+         * @param cache The loaded cache, or null if it failed to load
+         */
+        DataSource create(@Nullable Cache cache);
+    }
+
+    private final Future<? extends Cache> cache;
+    private final Factory factory;
+    private final List<TransferListener> listeners = new ArrayList<>(1);
+
+    private DataSource source;
+
+    public DeferredCacheDataSource(Future<? extends Cache> cache, Factory factory) {
+        this.cache = cache;
+        this.factory = factory;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        if(source != null) {
+            source.addTransferListener(transferListener);
+        } else {
+            listeners.add(transferListener);
+        }
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        if(source == null) {
+            Cache loaded;
+
+            try {
+                loaded = cache.get();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch(ExecutionException ex) {
+                // The cache couldn't be loaded, the factory will decide how to proceed
+                loaded = null;
+            }
+
+            source = factory.create(loaded);
+
+            for(TransferListener listener : listeners) source.addTransferListener(listener);
+            listeners.clear();
+        }
+
+        return source.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return source.read(buffer, offset, length);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return source == null ? null : source.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return source == null ? Collections.emptyMap() : source.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(source != null) source.close();
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.guichaguri.trackplayer.service.player;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.audio.BaseAudioProcessor;
+import androidx.media3.common.util.UnstableApi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Applies the audio effects to the decoded PCM: a parametric equalizer, a bass boost and a mono downmix,
+ * followed by the loudness normalization gain.
+ *
+ * The effects are replaced through a volatile reference and picked up by the audio thread at the next buffer.
+ * Gain changes are ramped over a few milliseconds to avoid clicks.
+ * Every band has a fixed filter slot and the filter state is kept between changes, so changing the effects
+ * doesn't reset the output. Disabled filters become unity filters until their state drains, then are skipped.
+ * Nothing is allocated while processing.
+ *
+ * The visualizer taps the output here, after the effects, so it shows what is heard without another processor.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class EffectsAudioProcessor extends BaseAudioProcessor {
+
+    private static final int MAX_CHANNELS = 8;
+    // The equalizer bands and the low shelf
+    private static final int MAX_FILTERS = AudioEffects.MAX_BANDS + 1;
+    private static final int BASS_BOOST_FILTER = AudioEffects.MAX_BANDS;
+    private static final float BASS_BOOST_FREQUENCY = 100;
+    private static final int GAIN_RAMP_MS = 20;
+
+    private volatile AudioEffects effects = AudioEffects.NONE;
+    private volatile float targetGain = 1;
+    @Nullable
+    private SpectrumAnalyzer analyzer = null;
+
+    // Only accessed in the audio thread
+    private AudioEffects appliedEffects = null;
+    private int appliedSampleRate = 0;
+    private int appliedChannelCount = 0;
+    private int filterCount = 0;
+    private final boolean[] enabled = new boolean[MAX_FILTERS];
+    private final boolean[] draining = new boolean[MAX_FILTERS];
+    private boolean drainPending = false;
+    private boolean mono = false;
+    private float gain = 1;
+    private float gainStep = 0;
+    private float rampTarget = 1;
+
+    // Normalized biquad coefficients, five per filter
+    private final float[] coefficients = new float[MAX_FILTERS * 5];
+    // Transposed direct form II state, two per filter and channel
+    private final float[] state = new float[MAX_FILTERS * MAX_CHANNELS * 2];
+    private final float[] frame = new float[MAX_CHANNELS];
+
+    public void setEffects(AudioEffects effects) {
+        this.effects = effects;
+    }
+
+    public AudioEffects getEffects() {
+        return effects;
+    }
+
+    /**
+     * Sets the analyzer that receives the output, set before the player is created
+     */
+    public void setSpectrumAnalyzer(@Nullable SpectrumAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Sets the linear gain applied after the effects
+     */
+    public void setGain(float gain) {
+        this.targetGain = gain;
+    }
+
+    @Override
+    protected AudioFormat onConfigure(AudioFormat inputAudioFormat) throws UnhandledAudioFormatException {
+        int encoding = inputAudioFormat.encoding;
+
+        if((encoding != C.ENCODING_PCM_16BIT && encoding != C.ENCODING_PCM_FLOAT)
+                || inputAudioFormat.channelCount > MAX_CHANNELS) {
+            throw new UnhandledAudioFormatException(inputAudioFormat);
+        }
+
+        // The output format is the same, so enabling effects never reconfigures the sink
+        return inputAudioFormat;
+    }
+
+    @Override
+    public void queueInput(ByteBuffer inputBuffer) {
+        int position = inputBuffer.position();
+        int limit = inputBuffer.limit();
+        int size = limit - position;
+        if(size == 0) return;
+
+        AudioEffects current = effects;
+        int sampleRate = inputAudioFormat.sampleRate;
+        int channels = inputAudioFormat.channelCount;
+
+        // A new track can change the format without changing the effects
+        if(current != appliedEffects || sampleRate != appliedSampleRate || channels != appliedChannelCount) {
+            applyEffects(current, sampleRate, channels);
+        }
+
+        ByteBuffer output = replaceOutputBuffer(size);
+        boolean pcmFloat = inputAudioFormat.encoding == C.ENCODING_PCM_FLOAT;
+        int sampleSize = pcmFloat ? 4 : 2;
+
+        float target = targetGain;
+        if(target != rampTarget) {
+            rampTarget = target;
+            gainStep = (target - gain) / Math.max(1, sampleRate * GAIN_RAMP_MS / 1000);
+        }
+
+        if(filterCount == 0 && !mono && gain == 1 && target == 1) {
+            output.put(inputBuffer);
+            output.flip();
+            tap(output);
+            return;
+        }
+
+        for(int i = position; i < limit; i += sampleSize * channels) {
+            for(int c = 0; c < channels; c++) {
+                int index = i + c * sampleSize;
+                frame[c] = pcmFloat ? inputBuffer.getFloat(index) : inputBuffer.getShort(index) / 32768F;
+            }
+
+            if(mono) {
+                float sum = 0;
+                for(int c = 0; c < channels; c++) sum += frame[c];
+                sum /= channels;
+                for(int c = 0; c < channels; c++) frame[c] = sum;
+            }
+
+            if(gainStep != 0) {
+                gain += gainStep;
+
+                if((gainStep > 0 && gain >= target) || (gainStep < 0 && gain <= target)) {
+                    gain = target;
+                    gainStep = 0;
+                }
+            }
+
+            for(int c = 0; c < channels; c++) {
+                float sample = filter(frame[c], c) * gain;
+
+                if(pcmFloat) {
+                    output.putFloat(sample);
+                } else {
+                    int value = Math.round(sample * 32768F);
+                    output.putShort((short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+                }
+            }
+        }
+
+        inputBuffer.position(limit);
+        output.flip();
+        tap(output);
+
+        if(drainPending) finishDrain();
+    }
+
+    private void tap(ByteBuffer output) {
+        // Costs a single check while nothing listens to the visualizer
+        if(analyzer != null && analyzer.isActive()) analyzer.handleBuffer(output);
+    }
+
+    private float filter(float sample, int channel) {
+        for(int f = 0; f < filterCount; f++) {
+            if(!enabled[f]) continue;
+
+            int k = f * 5;
+            int s = (f * MAX_CHANNELS + channel) * 2;
+
+            float out = coefficients[k] * sample + state[s];
+            state[s] = coefficients[k + 1] * sample - coefficients[k + 3] * out + state[s + 1];
+            state[s + 1] = coefficients[k + 2] * sample - coefficients[k + 4] * out;
+            sample = out;
+        }
+        return sample;
+    }
+
+    /**
+     * Computes the filter coefficients, based on the Audio EQ Cookbook by Robert Bristow-Johnson
+     */
+    private void applyEffects(AudioEffects effects, int sampleRate, int channels) {
+        appliedEffects = effects;
+        appliedSampleRate = sampleRate;
+        appliedChannelCount = channels;
+        mono = effects.mono && channels > 1;
+
+        for(int f = 0; f < MAX_FILTERS; f++) {
+            boolean active;
+
+            if(f == BASS_BOOST_FILTER) {
+                active = effects.bassBoost != 0;
+                if(active) setLowShelf(f, BASS_BOOST_FREQUENCY, effects.bassBoost, sampleRate);
+            } else if(f < effects.getBandCount()) {
+                active = effects.gains[f] != 0 && effects.frequencies[f] < sampleRate / 2F;
+                if(active) setPeaking(f, effects.frequencies[f], effects.gains[f], effects.qs[f], sampleRate);
+            } else {
+                active = false;
+            }
+
+            if(active) {
+                enabled[f] = true;
+                draining[f] = false;
+            } else if(enabled[f]) {
+                // The stored output is still played through a unity filter instead of being cut
+                setCoefficients(f, 1, 0, 0, 1, 0, 0);
+                draining[f] = true;
+                drainPending = true;
+            }
+        }
+
+        updateFilterCount();
+    }
+
+    /**
+     * Skips the unity filters once a buffer went through them, as their state only lasts two samples
+     */
+    private void finishDrain() {
+        for(int f = 0; f < MAX_FILTERS; f++) {
+            if(!draining[f]) continue;
+
+            draining[f] = false;
+            enabled[f] = false;
+            clearState(f);
+        }
+
+        drainPending = false;
+        updateFilterCount();
+    }
+
+    private void updateFilterCount() {
+        filterCount = 0;
+
+        for(int f = 0; f < MAX_FILTERS; f++) {
+            if(enabled[f]) filterCount = f + 1;
+        }
+    }
+
+    private void clearState(int filter) {
+        int start = filter * MAX_CHANNELS * 2;
+        for(int i = start; i < start + MAX_CHANNELS * 2; i++) state[i] = 0;
+    }
+
+    private void setPeaking(int filter, float frequency, float gain, float q, int sampleRate) {
+        double a = Math.pow(10, gain / 40);
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+
+        setCoefficients(filter, 1 + alpha * a, -2 * cos, 1 - alpha * a,
+                1 + alpha / a, -2 * cos, 1 - alpha / a);
+    }
+
+    private void setLowShelf(int filter, float frequency, float gain, int sampleRate) {
+        double a = Math.pow(10, gain / 40);
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double sqrtAlpha = 2 * Math.sqrt(a) * Math.sin(w0) / Math.sqrt(2);
+
+        setCoefficients(filter,
+                a * ((a + 1) - (a - 1) * cos + sqrtAlpha),
+                2 * a * ((a - 1) - (a + 1) * cos),
+                a * ((a + 1) - (a - 1) * cos - sqrtAlpha),
+                (a + 1) + (a - 1) * cos + sqrtAlpha,
+                -2 * ((a - 1) + (a + 1) * cos),
+                (a + 1) + (a - 1) * cos - sqrtAlpha);
+    }
+
+    private void setCoefficients(int filter, double b0, double b1, double b2, double a0, double a1, double a2) {
+        int k = filter * 5;
+        coefficients[k] = (float)(b0 / a0);
+        coefficients[k + 1] = (float)(b1 / a0);
+        coefficients[k + 2] = (float)(b2 / a0);
+        coefficients[k + 3] = (float)(a1 / a0);
+        coefficients[k + 4] = (float)(a2 / a0);
+    }
+
+    @Override
+    protected void onFlush() {
+        // Seeks and track changes start from silence
+        for(int i = 0; i < state.length; i++) state[i] = 0;
+
+        if(analyzer != null) {
+            analyzer.setFormat(inputAudioFormat.sampleRate, inputAudioFormat.channelCount, inputAudioFormat.encoding);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        gain = rampTarget = targetGain;
+        gainStep = 0;
+        appliedEffects = null;
+        appliedSampleRate = 0;
+        appliedChannelCount = 0;
+        filterCount = 0;
+        drainPending = false;
+        mono = false;
+
+        for(int f = 0; f < MAX_FILTERS; f++) {
+            enabled[f] = false;
+            draining[f] = false;
+            clearState(f);
+        }
+    }
+
+}
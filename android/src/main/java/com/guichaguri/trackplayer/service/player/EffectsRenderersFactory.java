@@ -0,0 +1,73 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.audio.AudioProcessor;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DefaultRenderersFactory;
+import androidx.media3.exoplayer.Renderer;
+import androidx.media3.exoplayer.audio.AudioRendererEventListener;
+import androidx.media3.exoplayer.audio.AudioSink;
+import androidx.media3.exoplayer.audio.DefaultAudioSink;
+import androidx.media3.exoplayer.audio.MediaCodecAudioRenderer;
+import androidx.media3.exoplayer.mediacodec.MediaCodecSelector;
+
+import java.util.ArrayList;
+
+/**
+ * Inserts the effects processor in the audio sink, and sets the normalization gain when it's enabled
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class EffectsRenderersFactory extends DefaultRenderersFactory {
+
+    @Nullable
+    private final EffectsAudioProcessor processor;
+    @Nullable
+    private final LoudnessNormalizer normalizer;
+
+    /**
+     * @param normalizer The loudness normalizer, which needs the effects processor
+     */
+    public EffectsRenderersFactory(Context context, EffectsAudioProcessor processor, @Nullable LoudnessNormalizer normalizer) {
+        super(context);
+        this.processor = processor;
+        this.normalizer = normalizer;
+    }
+
+    @NonNull
+    @Override
+    protected AudioSink buildAudioSink(@NonNull Context context, boolean enableFloatOutput,
+                                       boolean enableAudioTrackPlaybackParams) {
+        return new DefaultAudioSink.Builder(context)
+                .setEnableFloatOutput(enableFloatOutput)
+                .setEnableAudioTrackPlaybackParams(enableAudioTrackPlaybackParams)
+                .setAudioProcessors(new AudioProcessor[] {processor})
+                .build();
+    }
+
+    @Override
+    protected void buildAudioRenderers(@NonNull Context context, int extensionRendererMode,
+                                       @NonNull MediaCodecSelector mediaCodecSelector, boolean enableDecoderFallback,
+                                       @NonNull AudioSink audioSink, @NonNull Handler eventHandler,
+                                       @NonNull AudioRendererEventListener eventListener, @NonNull ArrayList<Renderer> out) {
+        int start = out.size();
+        super.buildAudioRenderers(context, extensionRendererMode, mediaCodecSelector, enableDecoderFallback,
+                audioSink, eventHandler, eventListener, out);
+
+        if(normalizer == null) return;
+
+        // Replaces the default renderer, keeping the extension ones
+        for(int i = start; i < out.size(); i++) {
+            if(out.get(i).getClass() != MediaCodecAudioRenderer.class) continue;
+
+            out.set(i, new NormalizingAudioRenderer(context, mediaCodecSelector, enableDecoderFallback,
+                    eventHandler, eventListener, audioSink, normalizer, processor));
+        }
+    }
+
+}
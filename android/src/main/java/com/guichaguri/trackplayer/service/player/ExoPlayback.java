@@ -6,12 +6,15 @@ import static androidx.media3.common.Player.PLAY_WHEN_READY_CHANGE_REASON_AUDIO_
 import static androidx.media3.common.Player.PLAY_WHEN_READY_CHANGE_REASON_AUDIO_FOCUS_LOSS;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.media.session.PlaybackStateCompat;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import androidx.media3.common.C;
 import androidx.media3.common.Format;
@@ -19,6 +22,7 @@ import androidx.media3.common.MediaItem;
 import androidx.media3.common.PlaybackException;
 import androidx.media3.common.PlaybackParameters;
 import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
 import androidx.media3.common.Timeline.Window;
 import androidx.media3.common.Tracks;
 import androidx.media3.common.Metadata;
@@ -26,9 +30,12 @@ import androidx.media3.common.TrackGroup;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.datasource.HttpDataSource;
 import androidx.media3.exoplayer.ExoPlaybackException;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.PlayerMessage;
 import androidx.media3.exoplayer.metadata.MetadataOutput;
 
 import com.google.common.collect.ImmutableList;
+import com.guichaguri.trackplayer.service.DebugTrace;
 import com.guichaguri.trackplayer.service.MusicManager;
 import com.guichaguri.trackplayer.service.Utils;
 import com.guichaguri.trackplayer.service.models.Track;
@@ -45,6 +52,9 @@ import java.util.Objects;
 @UnstableApi
 public abstract class ExoPlayback<T extends Player> implements Player.Listener, MetadataOutput {
 
+    // Restarts the current chapter instead of going to the previous one after this position in the chapter
+    private static final long PREVIOUS_CHAPTER_THRESHOLD_MS = 3000;
+
     protected final Context context;
     protected final MusicManager manager;
     protected final T player;
@@ -58,11 +68,31 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
     protected float volumeMultiplier = 1.0F;
     protected boolean autoUpdateMetadata;
 
+    private final SourceMetadata sourceMetadata;
+
+    private ChapterIndex chapters = ChapterIndex.EMPTY;
+    private int currentChapter = C.INDEX_UNSET;
+    // Delivered by the player when the next chapter starts
+    @Nullable
+    private PlayerMessage chapterMessage = null;
+
+    // Measures the phases of the playback requests, only available on local playbacks
+    @Nullable
+    protected LatencyTracker latency = null;
+
+    // When the module received the command being handled
+    private long requestTime = C.TIME_UNSET;
+
+    // When the first playback was requested, until the audio starts playing
+    private long startupRequestTime = C.TIME_UNSET;
+    private boolean startupReported = false;
+
     public ExoPlayback(Context context, MusicManager manager, T player, boolean autoUpdateMetadata) {
         this.context = context;
         this.manager = manager;
         this.player = player;
         this.autoUpdateMetadata = autoUpdateMetadata;
+        this.sourceMetadata = new SourceMetadata(context, manager, this);
 
         // Player.MetadataComponent component = player.getMetadataComponent();
         // if(component != null) component.addMetadataOutput(this);
@@ -72,6 +102,10 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         player.addListener(this);
     }
 
+    public T getPlayer() {
+        return player;
+    }
+
     public List<Track> getQueue() {
         return queue;
     }
@@ -94,10 +128,17 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
 
     public abstract void clearCache(Promise promise);
 
+    public abstract void setAudioEffects(Bundle options, Promise promise);
+
+    public abstract void getWaveform(Uri uri, int buckets, Promise promise);
+
+    public abstract void setVisualizerActive(boolean active);
+
     public void updateTrack(int index, Track track) {
         int currentIndex = player.getCurrentMediaItemIndex();
 
         queue.set(index, track);
+        manager.getMetadata().invalidateQueueItem(this, track);
 
         if(currentIndex == index)
             manager.getMetadata().updateMetadata(this, track, Utils.isPlaying(getState()));
@@ -113,6 +154,11 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         return index < 0 || index >= queue.size() ? null : queue.get(index);
     }
 
+    public Track getNextTrack() {
+        int index = player.getNextMediaItemIndex();
+        return index < 0 || index >= queue.size() ? null : queue.get(index);
+    }
+
     public void skip(int index, Promise promise) {
         if(index < 0 || index >= queue.size()) {
             promise.reject("index_out_of_bounds", "The index is out of bounds");
@@ -122,6 +168,7 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         // lastKnownWindow = player.getCurrentWindowIndex();
         // lastKnownPosition = player.getCurrentPosition();
 
+        startLatency(LatencyTracker.KIND_TRANSITION, index);
         player.seekToDefaultPosition(index);
         promise.resolve(null);
     }
@@ -137,6 +184,7 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         // lastKnownWindow = player.getCurrentWindowIndex();
         // lastKnownPosition = player.getCurrentPosition();
 
+        startLatency(LatencyTracker.KIND_TRANSITION, prev);
         player.seekToDefaultPosition(prev);
         promise.resolve(null);
     }
@@ -152,10 +200,143 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         // lastKnownWindow = player.getCurrentWindowIndex();
         // lastKnownPosition = player.getCurrentPosition();
 
+        startLatency(LatencyTracker.KIND_TRANSITION, next);
         player.seekToDefaultPosition(next);
         promise.resolve(null);
     }
 
+    /**
+     * Called with the metadata of the current track, which might have loudness tags
+     */
+    void onLoudnessMetadata(Metadata metadata) {
+        // Only used when the loudness is normalized
+    }
+
+    /**
+     * Sets the chapters of the current track
+     */
+    void setChapters(ChapterIndex chapters) {
+        this.chapters = chapters;
+        currentChapter = C.INDEX_UNSET;
+        updateChapter(player.getCurrentPosition());
+    }
+
+    /**
+     * Triggers the chapter-changed event when the chapter changed, and schedules the check for the next one
+     * @param position The current position. The position reported by the player may lag behind the message
+     */
+    private void updateChapter(long position) {
+        if(chapterMessage != null) {
+            chapterMessage.cancel();
+            chapterMessage = null;
+        }
+
+        if(chapters.isEmpty()) return;
+
+        int chapter = chapters.indexOf(position);
+        if(chapter != currentChapter) {
+            currentChapter = chapter;
+            if(chapter != C.INDEX_UNSET) {
+                Bundle bundle = chapters.toBundle(chapter);
+                Integer track = getCurrentTrackIndex();
+                if(track != null) bundle.putInt("track", track);
+                manager.onChapterChanged(bundle);
+            }
+        }
+
+        long next = chapters.getNextStart(position);
+        if(next == C.TIME_UNSET || !(player instanceof ExoPlayer)) return;
+
+        chapterMessage = ((ExoPlayer)player)
+                .createMessage((type, payload) -> updateChapter(Math.max(player.getCurrentPosition(), (Long)payload)))
+                .setLooper(player.getApplicationLooper())
+                .setPosition(player.getCurrentMediaItemIndex(), next)
+                .setPayload(next)
+                .setDeleteAfterDelivery(true)
+                .send();
+    }
+
+    public void getChapters(Promise promise) {
+        promise.resolve(Arguments.fromList(chapters.toBundleList()));
+    }
+
+    public void skipToChapter(int index, Promise promise) {
+        if(index < 0 || index >= chapters.size()) {
+            promise.reject("index_out_of_bounds", "The chapter index is out of bounds");
+            return;
+        }
+
+        seekTo(chapters.getStart(index));
+        promise.resolve(null);
+    }
+
+    public void skipToNextChapter(Promise promise) {
+        int next = chapters.indexOf(getPosition()) + 1;
+
+        if(next >= chapters.size()) {
+            promise.reject("no_next_chapter", "There is no next chapter");
+            return;
+        }
+
+        seekTo(chapters.getStart(next));
+        promise.resolve(null);
+    }
+
+    public void skipToPreviousChapter(Promise promise) {
+        long position = getPosition();
+        int previous = chapters.indexOf(position);
+
+        if(previous != C.INDEX_UNSET && position - chapters.getStart(previous) < PREVIOUS_CHAPTER_THRESHOLD_MS) {
+            previous--;
+        }
+
+        if(previous < 0) {
+            promise.reject("no_previous_chapter", "There is no previous chapter");
+            return;
+        }
+
+        seekTo(chapters.getStart(previous));
+        promise.resolve(null);
+    }
+
+    /**
+     * Sets when the module received the next command, to measure its latency
+     * @param requestTime The time in {@link SystemClock#elapsedRealtime()} time
+     */
+    public void setRequestTime(long requestTime) {
+        this.requestTime = requestTime;
+    }
+
+    /**
+     * Gets when the module received the command being handled and clears it
+     */
+    protected long consumeRequestTime() {
+        long time = requestTime == C.TIME_UNSET ? SystemClock.elapsedRealtime() : requestTime;
+        requestTime = C.TIME_UNSET;
+        return time;
+    }
+
+    /**
+     * Starts measuring a request
+     */
+    protected void startLatency(int kind, int index) {
+        long time = consumeRequestTime();
+        if(latency != null) latency.start(kind, index, time);
+    }
+
+    public void getLatencyStats(Promise promise) {
+        promise.resolve(latency != null ? Arguments.fromBundle(latency.getStats()) : null);
+    }
+
+    /**
+     * Starts measuring the time to first audio, which is only reported once per player
+     * @param requestTime When the playback was requested, in {@link SystemClock#elapsedRealtime()} time
+     */
+    public void requestStartup(long requestTime) {
+        if(startupReported || startupRequestTime != C.TIME_UNSET) return;
+        startupRequestTime = requestTime;
+    }
+
     public void play() {
         player.setPlayWhenReady(true);
     }
@@ -186,6 +367,14 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         return false;
     }
 
+    /**
+     * Called when the connection changes
+     * @param metered Whether the new connection is metered
+     */
+    public void onNetworkChanged(boolean metered) {
+        // Nothing to adapt by default
+    }
+
     public boolean shouldAutoUpdateMetadata() {
         return autoUpdateMetadata;
     }
@@ -215,6 +404,7 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         lastKnownWindow = player.getCurrentMediaItemIndex();
         lastKnownPosition = player.getCurrentPosition();
 
+        startLatency(LatencyTracker.KIND_SEEK, lastKnownWindow);
         player.seekTo(time);
     }
 
@@ -276,10 +466,22 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
                 if(duration != C.TIME_UNSET) lastKnownPosition = duration;
             }
 
+            sourceMetadata.reset();
+            setChapters(ChapterIndex.EMPTY);
             manager.onTrackUpdate(prevIndex, lastKnownPosition, nextIndex, next);
         }
         lastKnownWindow = player.getCurrentMediaItemIndex();
         lastKnownPosition = player.getCurrentPosition();
+
+        // Slides the session queue window
+        manager.getMetadata().invalidateQueue(this);
+    }
+
+    @Override
+    public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+        if(reason == Player.TIMELINE_CHANGE_REASON_PLAYLIST_CHANGED) {
+            manager.getMetadata().invalidateQueue(this);
+        }
     }
 
     @Override
@@ -289,9 +491,12 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         for(int i = 0; i < trackGroupsInfo.size(); i++) {
             // Loop through all track groups.
             // As for the current implementation, there should be only one
-            TrackGroup group = trackGroupsInfo.get(i).getMediaTrackGroup();
+            Tracks.Group groupInfo = trackGroupsInfo.get(i);
+            TrackGroup group = groupInfo.getMediaTrackGroup();
             for(int f = 0; f < group.length; f++) {
-                // Loop through all formats inside the track group
+                // Only the formats being played, metadata that was already sent is ignored by SourceMetadata
+                if(!groupInfo.isTrackSelected(f)) continue;
+
                 Format format = group.getFormat(f);
 
                 // Parse the metadata if it is present
@@ -307,6 +512,15 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
     //     // Buffering updates
     // }
 
+    @Override
+    public void onPositionDiscontinuity(@NonNull Player.PositionInfo oldPosition,
+                                        @NonNull Player.PositionInfo newPosition, int reason) {
+        // Seeks within the track move the next chapter. Transitions reset the chapters instead
+        if(!chapters.isEmpty() && oldPosition.mediaItemIndex == newPosition.mediaItemIndex) {
+            updateChapter(newPosition.positionMs);
+        }
+    }
+
     @Override
     public void onPlaybackStateChanged(int state) {
         handlePlaybackStateChange();
@@ -315,7 +529,7 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
     @Override
     public void onPlayWhenReadyChanged(boolean playWhenReady, int reason) {
         handlePlaybackStateChange();
-        Log.d(Utils.LOG, "reason: " + reason);
+        DebugTrace.d(DebugTrace.PLAY_WHEN_READY, playWhenReady ? 1 : 0, reason);
 
 
         switch (reason) {
@@ -344,11 +558,22 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         manager.onAudioFocusChange(false, ducking, ducking);
     }
 
+    @Override
+    public void onIsPlayingChanged(boolean isPlaying) {
+        if(!isPlaying || startupRequestTime == C.TIME_UNSET) return;
+
+        manager.onPlaybackStartup(SystemClock.elapsedRealtime() - startupRequestTime, Prewarmer.isPrewarmed());
+        startupRequestTime = C.TIME_UNSET;
+        startupReported = true;
+    }
+
     @Override
     public void onPlayerError(PlaybackException error) {
         String code;
         Throwable cause = error.getCause();
-        if (cause instanceof HttpDataSource.HttpDataSourceException) {
+        if (isCacheMiss(cause)) {
+            code = "playback-cache-miss";
+        } else if (cause instanceof HttpDataSource.HttpDataSourceException) {
             code = "playback-source";
         } else if (cause instanceof ExoPlaybackException) {
             code = "playback-renderer";
@@ -366,6 +591,15 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
         manager.onError(code, Objects.requireNonNull(error.getCause()).getMessage());
     }
 
+    private static boolean isCacheMiss(Throwable cause) {
+        // The cache miss might be wrapped by the media source that was loading it
+        while(cause != null) {
+            if(cause instanceof CacheMissDataSource.CacheMissException) return true;
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
     @Override
     public void onPlaybackParametersChanged(@NonNull PlaybackParameters playbackParameters) {
         // Speed or pitch changes
@@ -402,6 +636,6 @@ public abstract class ExoPlayback<T extends Player> implements Player.Listener,
 
     @Override
     public void onMetadata(@NonNull Metadata metadata) {
-        SourceMetadata.handleMetadata(manager, metadata);
+        sourceMetadata.handleMetadata(metadata);
     }
 }
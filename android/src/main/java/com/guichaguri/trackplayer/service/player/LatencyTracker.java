@@ -0,0 +1,308 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.C;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+import androidx.media3.exoplayer.source.LoadEventInfo;
+import androidx.media3.exoplayer.source.MediaLoadData;
+
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.SystemTrace;
+
+import java.io.IOException;
+
+/**
+ * Measures each phase of starting the playback, switching tracks and seeking.
+ *
+ * Every phase is measured from when the module received the command.
+ * Everything runs in the player thread, except for the transfer callbacks, which run in the loader threads.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class LatencyTracker implements AnalyticsListener, TransferListener {
+
+    public static final int KIND_START = 0;
+    public static final int KIND_TRANSITION = 1;
+    public static final int KIND_SEEK = 2;
+
+    private static final String[] KINDS = {"start", "transition", "seek"};
+    private static final String[] TRACE_SECTIONS = {"TrackPlayer:start", "TrackPlayer:transition", "TrackPlayer:seek"};
+    private static final String TRACE_LOAD = "TrackPlayer:load";
+
+    public static final int PHASE_SOURCE_CREATED = 0;
+    public static final int PHASE_PREPARED = 1;
+    public static final int PHASE_FIRST_BYTES = 2;
+    public static final int PHASE_READY = 3;
+    public static final int PHASE_RENDERING = 4;
+
+    private static final String[] PHASES = {"sourceCreated", "prepared", "firstBytes", "ready", "rendering"};
+
+    // Upper bounds in milliseconds of the histogram buckets, the last one takes everything above
+    private static final long[] BUCKETS = {50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000};
+
+    private final MusicManager manager;
+    private final Histogram[][] histograms = new Histogram[KINDS.length][PHASES.length];
+    private final long[] phases = new long[PHASES.length];
+
+    private int kind = C.INDEX_UNSET;
+    private int index = C.INDEX_UNSET;
+    private long requestTime;
+    private boolean playWhenReady = false;
+
+    // Written by the loader threads
+    private volatile boolean awaitingBytes = false;
+    private volatile long firstBytesTime = C.TIME_UNSET;
+
+    public LatencyTracker(MusicManager manager) {
+        this.manager = manager;
+
+        for(int k = 0; k < KINDS.length; k++) {
+            for(int p = 0; p < PHASES.length; p++) {
+                histograms[k][p] = new Histogram();
+            }
+        }
+    }
+
+    /**
+     * Starts a new measurement, discarding the one in progress
+     * @param kind The measurement kind
+     * @param index The track index that will be played
+     * @param requestTime When the command was received, in {@link SystemClock#elapsedRealtime()} time
+     */
+    public void start(int kind, int index, long requestTime) {
+        if(this.kind != C.INDEX_UNSET) SystemTrace.endAsync(TRACE_SECTIONS[this.kind], 0);
+        SystemTrace.beginAsync(TRACE_SECTIONS[kind], 0);
+
+        this.kind = kind;
+        this.index = index;
+        this.requestTime = requestTime;
+
+        for(int i = 0; i < phases.length; i++) phases[i] = C.TIME_UNSET;
+
+        firstBytesTime = C.TIME_UNSET;
+        awaitingBytes = true;
+    }
+
+    /**
+     * Marks a phase of the current measurement as finished
+     */
+    public void mark(int phase) {
+        if(kind == C.INDEX_UNSET || phases[phase] != C.TIME_UNSET) return;
+        phases[phase] = SystemClock.elapsedRealtime();
+    }
+
+    private void mark(int phase, long time) {
+        if(kind == C.INDEX_UNSET || phases[phase] != C.TIME_UNSET) return;
+        phases[phase] = time;
+    }
+
+    private void finish() {
+        awaitingBytes = false;
+        if(kind == C.INDEX_UNSET) return;
+
+        long bytes = firstBytesTime;
+        if(bytes != C.TIME_UNSET && bytes >= requestTime) phases[PHASE_FIRST_BYTES] = bytes;
+
+        Bundle bundle = new Bundle();
+        bundle.putString("kind", KINDS[kind]);
+        if(index != C.INDEX_UNSET) bundle.putInt("track", index);
+
+        for(int i = 0; i < phases.length; i++) {
+            if(phases[i] == C.TIME_UNSET) continue;
+
+            long elapsed = Math.max(phases[i] - requestTime, 0);
+            histograms[kind][i].add(elapsed);
+            bundle.putDouble(PHASES[i], elapsed);
+        }
+
+        SystemTrace.endAsync(TRACE_SECTIONS[kind], 0);
+        kind = C.INDEX_UNSET;
+        manager.onLatency(bundle);
+    }
+
+    private void cancel() {
+        if(kind != C.INDEX_UNSET) SystemTrace.endAsync(TRACE_SECTIONS[kind], 0);
+        kind = C.INDEX_UNSET;
+        awaitingBytes = false;
+    }
+
+    /**
+     * Aggregates every measurement, by kind and phase
+     */
+    public Bundle getStats() {
+        Bundle stats = new Bundle();
+
+        for(int k = 0; k < KINDS.length; k++) {
+            Bundle kindStats = new Bundle();
+
+            for(int p = 0; p < PHASES.length; p++) {
+                Histogram histogram = histograms[k][p];
+                if(histogram.count > 0) kindStats.putBundle(PHASES[p], histogram.toBundle());
+            }
+
+            stats.putBundle(KINDS[k], kindStats);
+        }
+
+        return stats;
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+        if(state == Player.STATE_READY) {
+            mark(PHASE_READY);
+
+            // Nothing will be rendered until the playback is resumed, which is not part of the request
+            if(!playWhenReady) finish();
+        } else if(state == Player.STATE_IDLE || state == Player.STATE_ENDED) {
+            cancel();
+        }
+    }
+
+    @Override
+    public void onPlayWhenReadyChanged(@NonNull EventTime eventTime, boolean playWhenReady, int reason) {
+        this.playWhenReady = playWhenReady;
+
+        // Resuming after a paused seek or skip would count the time the user took to resume
+        if(playWhenReady && kind != KIND_START) cancel();
+    }
+
+    @Override
+    public void onAudioPositionAdvancing(@NonNull EventTime eventTime, long playoutStartSystemTimeMs) {
+        // The playout start is in wall clock time, which is converted back to the monotonic clock
+        long now = SystemClock.elapsedRealtime();
+        long playoutStart = now - Math.max(System.currentTimeMillis() - playoutStartSystemTimeMs, 0);
+
+        mark(PHASE_RENDERING, playoutStart);
+        finish();
+    }
+
+    @Override
+    public void onLoadStarted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                              @NonNull MediaLoadData mediaLoadData) {
+        SystemTrace.beginAsync(TRACE_LOAD, (int)loadEventInfo.loadTaskId);
+    }
+
+    @Override
+    public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                                @NonNull MediaLoadData mediaLoadData) {
+        SystemTrace.endAsync(TRACE_LOAD, (int)loadEventInfo.loadTaskId);
+    }
+
+    @Override
+    public void onLoadCanceled(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                               @NonNull MediaLoadData mediaLoadData) {
+        SystemTrace.endAsync(TRACE_LOAD, (int)loadEventInfo.loadTaskId);
+    }
+
+    @Override
+    public void onLoadError(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                            @NonNull MediaLoadData mediaLoadData, @NonNull IOException error, boolean wasCanceled) {
+        // Errors that will be retried start a new load with the same id
+        SystemTrace.endAsync(TRACE_LOAD, (int)loadEventInfo.loadTaskId);
+    }
+
+    @Override
+    public void onPlayerError(@NonNull EventTime eventTime, @NonNull PlaybackException error) {
+        cancel();
+    }
+
+    /**
+     * Reports the transfers of a data source factory to this tracker
+     */
+    public DataSource.Factory wrap(DataSource.Factory factory) {
+        return () -> {
+            DataSource source = factory.createDataSource();
+            source.addTransferListener(this);
+            return source;
+        };
+    }
+
+    @Override
+    public void onTransferInitializing(@NonNull DataSource source, @NonNull DataSpec dataSpec, boolean isNetwork) {
+
+    }
+
+    @Override
+    public void onTransferStart(@NonNull DataSource source, @NonNull DataSpec dataSpec, boolean isNetwork) {
+
+    }
+
+    @Override
+    public void onBytesTransferred(@NonNull DataSource source, @NonNull DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+        if(awaitingBytes && bytesTransferred > 0) {
+            awaitingBytes = false;
+            firstBytesTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @Override
+    public void onTransferEnd(@NonNull DataSource source, @NonNull DataSpec dataSpec, boolean isNetwork) {
+
+    }
+
+    static class Histogram {
+
+        private final long[] buckets = new long[BUCKETS.length + 1];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        void add(long value) {
+            int i = 0;
+            while(i < BUCKETS.length && value > BUCKETS[i]) i++;
+
+            buckets[i]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls into
+         */
+        long percentile(double p) {
+            long target = (long)Math.ceil(count * p);
+            long total = 0;
+
+            for(int i = 0; i < BUCKETS.length; i++) {
+                total += buckets[i];
+                if(total >= target) return Math.min(BUCKETS[i], max);
+            }
+
+            return max;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putDouble("count", count);
+            bundle.putDouble("min", min);
+            bundle.putDouble("max", max);
+            bundle.putDouble("mean", (double)sum / count);
+            bundle.putDouble("p50", percentile(0.5));
+            bundle.putDouble("p90", percentile(0.9));
+            bundle.putDouble("p99", percentile(0.99));
+
+            double[] bounds = new double[BUCKETS.length];
+            for(int i = 0; i < BUCKETS.length; i++) bounds[i] = BUCKETS[i];
+
+            double[] counts = new double[buckets.length];
+            for(int i = 0; i < buckets.length; i++) counts[i] = buckets[i];
+
+            bundle.putDoubleArray("buckets", bounds);
+            bundle.putDoubleArray("counts", counts);
+            return bundle;
+        }
+    }
+}
@@ -1,25 +1,35 @@
 package com.guichaguri.trackplayer.service.player;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.facebook.react.bridge.Promise;
 import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Metadata;
 import androidx.media3.common.PlaybackException;
 import androidx.media3.common.Player;
+import androidx.media3.common.TrackSelectionParameters.AudioOffloadPreferences;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.database.DatabaseProvider;
 import androidx.media3.database.StandaloneDatabaseProvider;
 import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.cache.Cache;
 import androidx.media3.datasource.cache.CacheDataSource;
-import androidx.media3.datasource.cache.CacheSpan;
 import androidx.media3.datasource.cache.LeastRecentlyUsedCacheEvictor;
 import androidx.media3.datasource.cache.SimpleCache;
 import androidx.media3.exoplayer.ExoPlayer;
 import androidx.media3.exoplayer.source.MediaSource;
 
+import com.guichaguri.trackplayer.service.DebugTrace;
 import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.SystemTrace;
 import com.guichaguri.trackplayer.service.Utils;
+import com.guichaguri.trackplayer.service.models.CachePolicy;
 import com.guichaguri.trackplayer.service.models.Track;
 
 import java.io.File;
@@ -27,7 +37,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Guichaguri
@@ -35,106 +47,468 @@ import java.util.NavigableSet;
 @UnstableApi
 public class LocalPlayback extends ExoPlayback<ExoPlayer> {
 
+    // SimpleCache loads its whole index from disk, so every cache operation runs in this thread.
+    // It is shared between playbacks so an old cache is always released before a new one is opened.
+    private static final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
+
     private final long cacheMaxSize;
+    private final CachePolicy cachePolicy;
 
-    private SimpleCache cache;
+    private Future<SimpleCache> cache;
     private boolean prepared = false;
+
+    private int dataSaverMaxBitrate = 0;
+    private int maxBitrate = Integer.MAX_VALUE;
+    // Read by the loader threads when a data source is created
+    private volatile boolean dataSaverActive = false;
+
+    @Nullable
+    private EffectsAudioProcessor effects = null;
+    private boolean audioOffload = false;
+    @Nullable
+    private LoudnessNormalizer normalizer = null;
+    @Nullable
+    private SpectrumAnalyzer analyzer = null;
+
     public LocalPlayback(Context context, MusicManager manager, ExoPlayer player, long maxCacheSize,
-                         boolean autoUpdateMetadata) {
+                         CachePolicy cachePolicy, boolean autoUpdateMetadata) {
         super(context, manager, player, autoUpdateMetadata);
         this.cacheMaxSize = maxCacheSize;
+        this.cachePolicy = cachePolicy;
+        this.latency = new LatencyTracker(manager);
     }
 
     @Override
     public void initialize() {
         if(cacheMaxSize > 0) {
             File cacheDir = new File(context.getFilesDir(), "TrackPlayer");
-            DatabaseProvider db = new StandaloneDatabaseProvider(context);
-            cache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(cacheMaxSize), db);
+            cache = cacheExecutor.submit(() -> {
+                DatabaseProvider db = new StandaloneDatabaseProvider(context);
+                return new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(cacheMaxSize), db);
+            });
         } else {
             cache = null;
         }
 
         super.initialize();
+        player.addAnalyticsListener(latency);
 
         resetQueue();
     }
 
-    public DataSource.Factory enableCaching(DataSource.Factory ds) {
-        if(cache == null || cacheMaxSize <= 0) return ds;
+    /**
+     * Enables the data saver, which only takes effect on metered connections
+     * @param maxBitrate The maximum bitrate for adaptive streams while the data saver is active
+     */
+    public void setDataSaver(int maxBitrate) {
+        this.dataSaverMaxBitrate = maxBitrate;
+        this.maxBitrate = player.getTrackSelectionParameters().maxAudioBitrate;
+    }
+
+    /**
+     * Enables the audio effects
+     * @param processor The processor inserted in the audio sink
+     * @param audioOffload Whether the audio offload is enabled, which bypasses the processor
+     */
+    public void setEffectsProcessor(EffectsAudioProcessor processor, boolean audioOffload) {
+        this.effects = processor;
+        this.audioOffload = audioOffload;
+    }
+
+    /**
+     * Enables the visualizer
+     * @param analyzer The analyzer tapped in the effects processor
+     */
+    public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Enables the loudness normalization, which needs the effects processor
+     */
+    public void setLoudnessNormalizer(LoudnessNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    private void requestLoudness(Track track) {
+        if(normalizer == null) return;
+
+        normalizer.request(track.uri, cache);
+        if(track.dataSaverUri != null) normalizer.request(track.dataSaverUri, cache);
+    }
+
+    @Override
+    void onLoudnessMetadata(Metadata metadata) {
+        if(normalizer == null) return;
+
+        MediaItem item = player.getCurrentMediaItem();
+        if(item == null || item.localConfiguration == null) return;
+
+        normalizer.putTagGain(item.localConfiguration.uri.toString(), metadata);
+    }
+
+    @Override
+    public void onMediaItemTransition(@Nullable MediaItem mediaItem, int reason) {
+        int previous = lastKnownWindow;
+        super.onMediaItemTransition(mediaItem, reason);
+
+        // Remote tracks are usually fully cached once they played until the end
+        if(previous >= 0 && previous < queue.size()) requestLoudness(queue.get(previous));
+    }
+
+    @Override
+    public void setAudioEffects(Bundle options, Promise promise) {
+        if(effects == null) {
+            promise.reject("effects_disabled", "The audio effects are not enabled in the player options");
+            return;
+        }
+
+        // Picked up by the audio thread at the next buffer
+        effects.setEffects(AudioEffects.fromBundle(options));
+        updateAudioOffload();
+
+        promise.resolve(null);
+    }
+
+    @Override
+    public void setVisualizerActive(boolean active) {
+        if(analyzer == null) return;
+
+        // The audio offload is disabled for the whole lifetime of a visualizer player, only the analysis stops
+        analyzer.setActive(active);
+    }
+
+    /**
+     * Offloaded audio skips the processors, so it's only allowed while the effects don't change anything
+     */
+    private void updateAudioOffload() {
+        if(!audioOffload) return;
+
+        boolean processing = effects != null && effects.getEffects().isActive();
+        int mode = processing ? AudioOffloadPreferences.AUDIO_OFFLOAD_MODE_DISABLED : AudioOffloadPreferences.AUDIO_OFFLOAD_MODE_ENABLED;
+
+        AudioOffloadPreferences preferences = player.getTrackSelectionParameters().audioOffloadPreferences;
+        if(preferences.audioOffloadMode == mode) return;
+
+        player.setTrackSelectionParameters(player.getTrackSelectionParameters().buildUpon()
+                .setAudioOffloadPreferences(preferences.buildUpon().setAudioOffloadMode(mode).build())
+                .build());
+    }
+
+    /**
+     * Reports when the data source starts receiving bytes
+     */
+    public DataSource.Factory trackTransfers(DataSource.Factory ds) {
+        return latency.wrap(ds);
+    }
+
+    public boolean isDataSaverActive() {
+        return dataSaverActive;
+    }
+
+    @Override
+    public void onNetworkChanged(boolean metered) {
+        boolean active = dataSaverMaxBitrate > 0 && metered;
+        if(active == dataSaverActive) return;
+
+        dataSaverActive = active;
+
+        // Track selection changes are applied to the adaptive streams without interrupting the playback
+        int bitrate = active ? Math.min(maxBitrate, dataSaverMaxBitrate) : maxBitrate;
+        player.setTrackSelectionParameters(player.getTrackSelectionParameters().buildUpon()
+                .setMaxAudioBitrate(bitrate)
+                .setMaxVideoBitrate(bitrate)
+                .build());
+
+        // The current track keeps playing, only the upcoming ones switch to their data saver variant.
+        // Once the current track is fully buffered the next one is already loading, so it's kept as well
+        int from = player.getCurrentMediaItemIndex() + 1;
+        long duration = player.getDuration();
+        if(duration != C.TIME_UNSET && player.getBufferedPosition() >= duration) from++;
+
+        int first = -1, last = -1;
+
+        for(int i = from; i < queue.size(); i++) {
+            if(queue.get(i).dataSaverUri == null) continue;
+            if(first == -1) first = i;
+            last = i;
+        }
+
+        if(first == -1) return;
+
+        // Replaced in a single batch, so the timeline only changes once per operation instead of once per track
+        List<MediaSource> sources = new ArrayList<>(last - first + 1);
+        for(int i = first; i <= last; i++) sources.add(queue.get(i).toMediaSource(context, this));
+
+        player.removeMediaItems(first, last + 1);
+        player.addMediaSources(first, sources);
+    }
+
+    /**
+     * Wraps a remote data source factory with the cache
+     * @param ds The upstream factory
+     * @param track The track that will be loaded
+     */
+    public DataSource.Factory enableCaching(DataSource.Factory ds, Track track) {
+        return enableCaching(ds, track.cachePolicy, track.preview);
+    }
+
+    /**
+     * Wraps a remote data source factory with the cache
+     * @param ds The upstream factory
+     * @param policy The cache policy or null to use the one in the player options
+     * @param preview Whether the source is a preview, which isn't cached while the data saver is active
+     */
+    public DataSource.Factory enableCaching(DataSource.Factory ds, @Nullable CachePolicy policy, boolean preview) {
+        final CachePolicy trackPolicy = policy == null ? cachePolicy : policy;
+        final Future<SimpleCache> pending = cache;
+
+        if(pending == null) {
+            return createCacheFactory(null, ds, trackPolicy, false);
+        } else if(pending.isDone()) {
+            final SimpleCache loaded = Utils.awaitCache(pending);
+            return () -> createCacheFactory(loaded, ds, trackPolicy, isCacheWritable(preview)).createDataSource();
+        }
+
+        // The cache is still loading, the loader thread will wait for it when the track is opened
+        return () -> new DeferredCacheDataSource(pending,
+                (loaded) -> createCacheFactory(loaded, ds, trackPolicy, isCacheWritable(preview)).createDataSource());
+    }
+
+    /**
+     * Checked whenever a data source is created, so tracks queued before the connection changed follow the new one
+     */
+    private boolean isCacheWritable(boolean preview) {
+        // Previews would evict full tracks that would have to be downloaded again
+        return !(dataSaverActive && preview);
+    }
+
+    private DataSource.Factory createCacheFactory(@Nullable Cache cache, DataSource.Factory ds,
+                                                  CachePolicy policy, boolean writable) {
+        if(cache == null) {
+            // Nothing can be cached, so a cache-only track can never be played
+            return policy == CachePolicy.CACHE_ONLY ? CacheMissDataSource.FACTORY : ds;
+        }
 
-        return new CacheDataSource.Factory()
-                                .setCache(cache)
-                                .setUpstreamDataSourceFactory(ds)
-                                .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        CacheDataSource.Factory factory = new CacheDataSource.Factory().setCache(cache);
+
+        // Reads from the cache without writing anything new to it
+        if(!writable) factory.setCacheWriteDataSinkFactory(null);
+
+        switch(policy) {
+            case CACHE_ONLY:
+                // Read-only cache, missing spans fail right away instead of reaching the network
+                return factory
+                        .setUpstreamDataSourceFactory(CacheMissDataSource.FACTORY)
+                        .setCacheWriteDataSinkFactory(null);
+            case PREFER_CACHE:
+                // Cached ranges never reach the network, missing ones only do when there's a connection.
+                // Waits for the cache instead of bypassing it when another reader holds a span
+                CacheDataSource.Factory cacheOnly = new CacheDataSource.Factory()
+                        .setCache(cache)
+                        .setUpstreamDataSourceFactory(CacheMissDataSource.FACTORY)
+                        .setCacheWriteDataSinkFactory(null)
+                        .setFlags(CacheDataSource.FLAG_BLOCK_ON_CACHE);
+                factory.setUpstreamDataSourceFactory(ds).setFlags(CacheDataSource.FLAG_BLOCK_ON_CACHE);
+
+                return () -> new PreferCacheDataSource(manager, cache,
+                        cacheOnly.createDataSource(), factory.createDataSource());
+            default:
+                return factory
+                        .setUpstreamDataSourceFactory(ds)
+                        .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        }
     }
 
     public void isCached(String url, Promise promise) {
-        if (cache == null) {
+        final Future<SimpleCache> pending = cache;
+
+        if (pending == null) {
           promise.resolve(false);
           return;
         }
-        NavigableSet<CacheSpan> cachedSpans = cache.getCachedSpans(url);
-        promise.resolve(!cachedSpans.isEmpty());
+
+        cacheExecutor.execute(() -> {
+            SimpleCache loaded = Utils.awaitCache(pending);
+            promise.resolve(loaded != null && !loaded.getCachedSpans(url).isEmpty());
+        });
+    }
+
+    @Override
+    public void getWaveform(Uri uri, int buckets, Promise promise) {
+        DataSource.Factory ds = null;
+
+        if(!Utils.isLocal(uri)) {
+            // Read through the same cache as the player, with the headers of the track when it's queued
+            Track track = null;
+
+            synchronized(queue) {
+                for(Track queued : queue) {
+                    if(uri.equals(queued.uri) || uri.equals(queued.dataSaverUri)) {
+                        track = queued;
+                        break;
+                    }
+                }
+            }
+
+            ds = track != null ?
+                    createWaveformFactory(uri, Track.createHttpDataSourceFactory(context, track.userAgent, track.headers), track.cachePolicy) :
+                    createWaveformFactory(uri, Track.createHttpDataSourceFactory(context, null, null), null);
+        }
+
+        Waveform.extract(context, uri, buckets, ds, promise);
+    }
+
+    /**
+     * Reads a waveform source through the cache without waiting for the spans the player is loading.
+     * The waveform thread has the lowest priority, so it must never hold the player's loader
+     */
+    private DataSource.Factory createWaveformFactory(Uri uri, DataSource.Factory ds, @Nullable CachePolicy policy) {
+        final CachePolicy trackPolicy = policy == null ? cachePolicy : policy;
+        final DataSource.Factory upstream = trackPolicy == CachePolicy.CACHE_ONLY ? CacheMissDataSource.FACTORY : ds;
+        final Future<SimpleCache> pending = cache;
+
+        if(pending == null) return upstream;
+
+        // Created in the waveform thread, which can wait for the cache to load
+        return () -> {
+            SimpleCache loaded = Utils.awaitCache(pending);
+            if(loaded == null) return upstream.createDataSource();
+
+            DataSource cached = Utils.openCached(loaded, uri.toString());
+            if(cached != null) return cached;
+
+            // Spans locked by the player are read from the network, and nothing is written to the cache
+            return new CacheDataSource.Factory()
+                    .setCache(loaded)
+                    .setUpstreamDataSourceFactory(upstream)
+                    .setCacheWriteDataSinkFactory(null)
+                    .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+                    .createDataSource();
+        };
     }
 
     public void getCacheSize(Promise promise) {
-        if (cache != null) {
-            promise.resolve((double) cache.getCacheSpace());
-        } else {
+        final Future<SimpleCache> pending = cache;
+
+        if (pending == null) {
           promise.resolve(0);
+          return;
         }
+
+        cacheExecutor.execute(() -> {
+            SimpleCache loaded = Utils.awaitCache(pending);
+            promise.resolve(loaded != null ? (double) loaded.getCacheSpace() : 0);
+        });
     }
 
     public void clearCache(Promise promise) {
-        if (cache != null) {
-            for (String key: cache.getKeys()) {
-                try {
-                    cache.removeResource(key);
-                } catch (Exception e) {
-                    Log.e(Utils.LOG, e.getMessage());
-                }
-            }
-        } else {
+        final Future<SimpleCache> pending = cache;
+
+        if (pending == null) {
             Log.d(Utils.LOG, "Cache is not initialized.");
+            promise.resolve(null);
+            return;
         }
-        promise.resolve(null);
+
+        cacheExecutor.execute(() -> {
+            SimpleCache loaded = Utils.awaitCache(pending);
+
+            if (loaded != null) {
+                for (String key: loaded.getKeys()) {
+                    try {
+                        loaded.removeResource(key);
+                    } catch (Exception e) {
+                        Log.e(Utils.LOG, e.getMessage());
+                    }
+                }
+            }
+            promise.resolve(null);
+        });
     }
 
     private void prepare() {
         if(!prepared) {
-            Log.d(Utils.LOG, "Preparing the media source...");
+            DebugTrace.d(DebugTrace.PREPARE);
             player.prepare();
             prepared = true;
+            latency.mark(LatencyTracker.PHASE_PREPARED);
+        }
+    }
+
+    /**
+     * Starts measuring an add request when the tracks will start a new playback
+     */
+    private void startAddLatency(int index) {
+        int state = player.getPlaybackState();
+
+        if(queue.isEmpty() || state == Player.STATE_IDLE || state == Player.STATE_ENDED) {
+            startLatency(LatencyTracker.KIND_START, index);
+        } else {
+            consumeRequestTime();
         }
     }
 
     @Override
     public void add(Track track, int index, Promise promise) {
+        boolean traced = SystemTrace.begin("TrackPlayer:add");
+        try {
+            addTrack(track, index, promise);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
+
+    @Override
+    public void add(Collection<Track> tracks, int index, Promise promise) {
+        boolean traced = SystemTrace.begin("TrackPlayer:add");
+        try {
+            addTracks(tracks, index, promise);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
+
+    @Override
+    public void remove(List<Integer> indexes, Promise promise) {
+        boolean traced = SystemTrace.begin("TrackPlayer:remove");
+        try {
+            removeTracks(indexes, promise);
+        } finally {
+            SystemTrace.end(traced);
+        }
+    }
+
+    private void addTrack(Track track, int index, Promise promise) {
+        startAddLatency(index);
         queue.add(index, track);
+        requestLoudness(track);
         MediaSource trackSource = track.toMediaSource(context, this);
+        latency.mark(LatencyTracker.PHASE_SOURCE_CREATED);
         player.addMediaSource(index, trackSource);
         promise.resolve(index);
         prepare();
     }
 
-    @Override
-    public void add(Collection<Track> tracks, int index, Promise promise) {
+    private void addTracks(Collection<Track> tracks, int index, Promise promise) {
         List<MediaSource> trackList = new ArrayList<>();
 
+        startAddLatency(index);
+
         for(Track track : tracks) {
             trackList.add(track.toMediaSource(context, this));
         }
 
+        latency.mark(LatencyTracker.PHASE_SOURCE_CREATED);
         queue.addAll(index, tracks);
+        for(Track track : tracks) requestLoudness(track);
         player.addMediaSources(index, trackList);
         promise.resolve(index);
 
         prepare();
     }
 
-    @Override
-    public void remove(List<Integer> indexes, Promise promise) {
+    private void removeTracks(List<Integer> indexes, Promise promise) {
         int currentIndex = player.getCurrentMediaItemIndex();
 
         // Sort the list so we can loop through sequentially
@@ -256,13 +630,23 @@ public class LocalPlayback extends ExoPlayback<ExoPlayer> {
     public void destroy() {
         super.destroy();
 
+        if(analyzer != null) analyzer.release();
+
         if(cache != null) {
-            try {
-                cache.release();
-                cache = null;
-            } catch(Exception ex) {
-                Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
-            }
+            final Future<SimpleCache> pending = cache;
+            cache = null;
+
+            // Released in the cache thread, after it finishes loading and any pending operation
+            cacheExecutor.execute(() -> {
+                SimpleCache loaded = Utils.awaitCache(pending);
+                if(loaded == null) return;
+
+                try {
+                    loaded.release();
+                } catch(Exception ex) {
+                    Log.w(Utils.LOG, "Couldn't release the cache properly", ex);
+                }
+            });
         }
     }
 }
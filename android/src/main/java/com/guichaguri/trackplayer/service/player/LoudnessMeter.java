@@ -0,0 +1,203 @@
+package com.guichaguri.trackplayer.service.player;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness of a track as defined in ITU-R BS.1770-4.
+ *
+ * Samples are K-weighted and summed in 100ms steps. The gating blocks of 400ms overlap by 75%
+ * and are kept as primitive energies, so a whole album fits in a few kilobytes.
+ * Channels are weighted as in the standard, the surround ones count 1.41 times and the LFE is left out.
+ *
+ * @author Guichaguri
+ */
+public class LoudnessMeter {
+
+    private static final int MAX_CHANNELS = 8;
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    private static final double SURROUND_WEIGHT = 1.41;
+
+    private int channels = 0;
+    private int stepSize = 0;
+    private final double[] weights = new double[MAX_CHANNELS];
+
+    // K-weighting filters: a high shelf and a high pass, with two state values per channel each
+    private double sb0, sb1, sb2, sa1, sa2;
+    private double hb0, hb1, hb2, ha1, ha2;
+    private final double[] shelfState = new double[MAX_CHANNELS * 2];
+    private final double[] passState = new double[MAX_CHANNELS * 2];
+
+    // The energy of the current step and of the last three
+    private double stepEnergy = 0;
+    private int stepFrames = 0;
+    private final double[] steps = new double[4];
+    private int stepCount = 0;
+
+    private double[] blocks = new double[1024];
+    private int blockCount = 0;
+
+    private int peak = 0;
+
+    /**
+     * Resets the meter for a new format
+     */
+    public void setFormat(int sampleRate, int channelCount) {
+        channels = Math.min(channelCount, MAX_CHANNELS);
+        stepSize = sampleRate / 10;
+        stepEnergy = 0;
+        stepFrames = 0;
+        Arrays.fill(shelfState, 0);
+        Arrays.fill(passState, 0);
+
+        for(int c = 0; c < channels; c++) weights[c] = getWeight(c, channelCount);
+
+        // Coefficients for any sample rate, derived from the ones given for 48kHz
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        sb0 = (vh + vb * k / q + k * k) / a0;
+        sb1 = 2 * (k * k - vh) / a0;
+        sb2 = (vh - vb * k / q + k * k) / a0;
+        sa1 = 2 * (k * k - 1) / a0;
+        sa2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        hb0 = 1;
+        hb1 = -2;
+        hb2 = 1;
+        ha1 = 2 * (k * k - 1) / a0;
+        ha2 = (1 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Adds interleaved 16-bit samples
+     */
+    public void add(ShortBuffer samples, int channelCount) {
+        if(stepSize == 0) return;
+
+        while(samples.remaining() >= channelCount) {
+            double energy = 0;
+
+            for(int c = 0; c < channelCount; c++) {
+                short sample = samples.get();
+                if(c >= channels) continue;
+
+                peak = Math.max(peak, Math.abs((int)sample));
+
+                if(weights[c] == 0) continue;
+
+                double x = sample / 32768D;
+                energy += weights[c] * square(filter(x, c));
+            }
+
+            stepEnergy += energy;
+            stepFrames++;
+
+            if(stepFrames == stepSize) addStep();
+        }
+    }
+
+    /**
+     * The weight of a channel in the order the decoders output them: front left, front right, front center,
+     * LFE and then the surround channels. Quad layouts have no center nor LFE and 5.0 has no LFE
+     */
+    private static double getWeight(int channel, int channelCount) {
+        if(channel < 2) return 1;
+
+        switch(channelCount) {
+            case 3:
+                return 1;
+            case 4:
+                return SURROUND_WEIGHT;
+            case 5:
+                return channel == 2 ? 1 : SURROUND_WEIGHT;
+            default:
+                if(channel == 2) return 1;
+                if(channel == 3) return 0;
+                return SURROUND_WEIGHT;
+        }
+    }
+
+    private double filter(double x, int channel) {
+        int s = channel * 2;
+
+        double y = sb0 * x + shelfState[s];
+        shelfState[s] = sb1 * x - sa1 * y + shelfState[s + 1];
+        shelfState[s + 1] = sb2 * x - sa2 * y;
+
+        double z = hb0 * y + passState[s];
+        passState[s] = hb1 * y - ha1 * z + passState[s + 1];
+        passState[s + 1] = hb2 * y - ha2 * z;
+
+        return z;
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    private void addStep() {
+        steps[stepCount % 4] = stepEnergy / stepFrames;
+        stepCount++;
+        stepEnergy = 0;
+        stepFrames = 0;
+
+        if(stepCount < 4) return;
+
+        double block = (steps[0] + steps[1] + steps[2] + steps[3]) / 4;
+
+        if(blockCount == blocks.length) blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        blocks[blockCount++] = block;
+    }
+
+    /**
+     * The integrated loudness in LUFS, or {@link Double#NaN} when the track is silent or too short
+     */
+    public double getLoudness() {
+        double absoluteGate = toEnergy(ABSOLUTE_GATE);
+        double sum = 0;
+        int count = 0;
+
+        for(int i = 0; i < blockCount; i++) {
+            if(blocks[i] <= absoluteGate) continue;
+            sum += blocks[i];
+            count++;
+        }
+
+        if(count == 0) return Double.NaN;
+
+        double relativeGate = toEnergy(toLoudness(sum / count) + RELATIVE_GATE);
+        sum = 0;
+        count = 0;
+
+        for(int i = 0; i < blockCount; i++) {
+            if(blocks[i] <= absoluteGate || blocks[i] <= relativeGate) continue;
+            sum += blocks[i];
+            count++;
+        }
+
+        return count == 0 ? Double.NaN : toLoudness(sum / count);
+    }
+
+    /**
+     * The sample peak, where 1 is the full scale
+     */
+    public float getPeak() {
+        return peak / 32768F;
+    }
+
+    private static double toLoudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static double toEnergy(double loudness) {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.Metadata;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.cache.SimpleCache;
+import androidx.media3.extractor.metadata.id3.TextInformationFrame;
+import androidx.media3.extractor.metadata.vorbis.VorbisComment;
+
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the gain that brings each track to the same loudness.
+ *
+ * The gain comes from the ReplayGain or R128 tags when the track has them. Otherwise, local and fully cached
+ * tracks are decoded and measured in a low priority thread. Gains are kept in a bounded LRU index keyed by the
+ * source uri, persisted in an append-only file that is rewritten when it's loaded or has too many stale entries.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class LoudnessNormalizer {
+
+    private static final String INDEX_FILE = "TrackPlayerLoudness";
+    // Where the index was kept in previous versions
+    private static final String PREFERENCES = "com.guichaguri.trackplayer.loudness";
+
+    // The ReplayGain 2 reference, R128 tags are relative to -23 LUFS instead
+    private static final double REFERENCE_LOUDNESS = -18;
+    private static final double R128_OFFSET = 5;
+
+    // Without a known peak, the gain is limited so quiet tracks don't clip much
+    private static final float MAX_UNKNOWN_PEAK_GAIN_DB = 6;
+    private static final float MIN_GAIN_DB = -24;
+    private static final float MAX_GAIN_DB = 24;
+
+    private static final int MAX_ENTRIES = 2000;
+    private static final int MAX_LOG_ENTRIES = MAX_ENTRIES * 2;
+
+    // Shared between players, so analyses never run in parallel
+    private static final ExecutorService analyzer = Executors.newSingleThreadExecutor(r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        r.run();
+    }, "TrackPlayerLoudness"));
+
+    private final Context context;
+    private final File indexFile;
+
+    // Gains in dB keyed by the source uri, read from the playback thread. Guarded by itself
+    private final Map<String, Float> gains = new LinkedHashMap<String, Float>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Entries in the index file, only used by the analyzer thread
+    private int logEntries = 0;
+    // Sources that were already analyzed or are waiting for the analyzer
+    private final Set<String> requested = Collections.synchronizedSet(new HashSet<>());
+
+    public LoudnessNormalizer(Context context) {
+        this.context = context.getApplicationContext();
+        this.indexFile = new File(this.context.getFilesDir(), INDEX_FILE);
+
+        analyzer.execute(this::load);
+    }
+
+    /**
+     * The linear gain for a stream
+     * @param metadata The metadata of the stream format, where the tags are read from
+     * @param key The source uri
+     */
+    public float getGain(@Nullable Metadata metadata, @Nullable String key) {
+        float gain = getTagGain(metadata);
+
+        if(Float.isNaN(gain) && key != null) {
+            Float indexed;
+            synchronized(gains) {
+                indexed = gains.get(key);
+            }
+            if(indexed != null) gain = indexed;
+        }
+
+        return Float.isNaN(gain) ? 1 : (float)Math.pow(10, gain / 20);
+    }
+
+    /**
+     * Indexes the gain tagged in the metadata of a source
+     */
+    public void putTagGain(String key, Metadata metadata) {
+        float gain = getTagGain(metadata);
+        if(Float.isNaN(gain)) return;
+
+        Float indexed;
+        synchronized(gains) {
+            indexed = gains.get(key);
+        }
+        if(indexed != null && indexed == gain) return;
+
+        requested.add(key);
+        analyzer.execute(() -> put(key, gain));
+    }
+
+    /**
+     * Analyzes a source in the background if its gain is unknown. Remote sources are only analyzed
+     * once they are fully cached, so they can be requested again later.
+     */
+    public void request(Uri uri, @Nullable Future<SimpleCache> cache) {
+        String key = uri.toString();
+        boolean local = Utils.isLocal(uri);
+
+        if(isIndexed(key) || requested.contains(key)) return;
+        if(!local && (cache == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M)) return;
+
+        requested.add(key);
+
+        analyzer.execute(() -> {
+            if(isIndexed(key)) return;
+
+            try {
+                LoudnessMeter meter = new LoudnessMeter();
+                PcmDecoder.Listener listener = new PcmDecoder.Listener() {
+                    private int channels = 0;
+
+                    @Override
+                    public void onFormat(int sampleRate, int channelCount, long durationUs) {
+                        channels = channelCount;
+                        meter.setFormat(sampleRate, channelCount);
+                    }
+
+                    @Override
+                    public void onSamples(ShortBuffer samples) {
+                        meter.add(samples, channels);
+                    }
+                };
+
+                if(local) {
+                    PcmDecoder.decode(context, uri, listener);
+                } else {
+                    DataSource source = Utils.openCached(Utils.awaitCache(cache), key);
+
+                    if(source == null) {
+                        // Not fully cached yet
+                        requested.remove(key);
+                        return;
+                    }
+
+                    PcmDecoder.decode(source, uri, listener);
+                }
+
+                double loudness = meter.getLoudness();
+                if(Double.isNaN(loudness)) return;
+
+                float gain = (float)(REFERENCE_LOUDNESS - loudness);
+                float peak = meter.getPeak();
+                if(peak > 0) gain = Math.min(gain, (float)(-20 * Math.log10(peak)));
+
+                put(key, gain);
+            } catch(IOException | RuntimeException ex) {
+                Log.w(Utils.LOG, "Couldn't analyze the loudness of " + key, ex);
+            }
+        });
+    }
+
+    private boolean isIndexed(String key) {
+        synchronized(gains) {
+            return gains.containsKey(key);
+        }
+    }
+
+    /**
+     * Puts a gain in the index, appending it to the file. Called in the analyzer thread
+     */
+    private void put(String key, float gain) {
+        gain = Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, gain));
+
+        synchronized(gains) {
+            gains.put(key, gain);
+        }
+
+        if(logEntries >= MAX_LOG_ENTRIES) {
+            compact();
+            return;
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile, true))) {
+            out.writeUTF(key);
+            out.writeFloat(gain);
+            logEntries++;
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't save the loudness index", ex);
+        }
+    }
+
+    /**
+     * Reads the index, where later entries replace the earlier ones. Called in the analyzer thread
+     */
+    private void load() {
+        if(indexFile.exists()) {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                while(true) {
+                    String key = in.readUTF();
+                    float gain = in.readFloat();
+
+                    synchronized(gains) {
+                        gains.put(key, gain);
+                    }
+                }
+            } catch(EOFException ex) {
+                // The end of the file, or an entry that was partially written
+            } catch(IOException ex) {
+                Log.w(Utils.LOG, "Couldn't read the loudness index", ex);
+            }
+        } else {
+            SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+
+            for(Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                if(!(entry.getValue() instanceof Float)) continue;
+
+                synchronized(gains) {
+                    gains.put(entry.getKey(), (Float)entry.getValue());
+                }
+            }
+
+            preferences.edit().clear().apply();
+        }
+
+        // Drops the stale and partial entries
+        compact();
+    }
+
+    /**
+     * Rewrites the index with only the entries in use, from the least recently used. Called in the analyzer thread
+     */
+    private void compact() {
+        Map<String, Float> snapshot;
+        synchronized(gains) {
+            snapshot = new LinkedHashMap<>(gains);
+        }
+
+        File temp = new File(indexFile.getPath() + ".tmp");
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for(Map.Entry<String, Float> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeFloat(entry.getValue());
+            }
+        } catch(IOException ex) {
+            Log.w(Utils.LOG, "Couldn't save the loudness index", ex);
+            temp.delete();
+            return;
+        }
+
+        if(temp.renameTo(indexFile)) {
+            logEntries = snapshot.size();
+        } else {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Reads the track gain in dB from the ReplayGain or R128 tags
+     * @return The gain or {@link Float#NaN} if the metadata has no gain
+     */
+    public static float getTagGain(@Nullable Metadata metadata) {
+        if(metadata == null) return Float.NaN;
+
+        float gain = Float.NaN;
+        float peak = Float.NaN;
+
+        for(int i = 0; i < metadata.length(); i++) {
+            Metadata.Entry entry = metadata.get(i);
+            String key, value;
+
+            if(entry instanceof TextInformationFrame && "TXXX".equals(((TextInformationFrame)entry).id)) {
+                TextInformationFrame frame = (TextInformationFrame)entry;
+                key = frame.description;
+                value = frame.values.isEmpty() ? null : frame.values.get(0);
+            } else if(entry instanceof VorbisComment) {
+                key = ((VorbisComment)entry).key;
+                value = ((VorbisComment)entry).value;
+            } else {
+                continue;
+            }
+
+            if(key == null || value == null) continue;
+
+            try {
+                if(key.equalsIgnoreCase("REPLAYGAIN_TRACK_GAIN")) {
+                    gain = Float.parseFloat(value.replaceAll("(?i)\\s*dB\\s*$", "").trim());
+                } else if(key.equalsIgnoreCase("REPLAYGAIN_TRACK_PEAK")) {
+                    peak = Float.parseFloat(value.trim());
+                } else if(key.equalsIgnoreCase("R128_TRACK_GAIN") && Float.isNaN(gain)) {
+                    // Q7.8 fixed point
+                    gain = (float)(Integer.parseInt(value.trim()) / 256D + R128_OFFSET);
+                }
+            } catch(NumberFormatException ex) {
+                // Ignores malformed tags
+            }
+        }
+
+        if(Float.isNaN(gain)) return gain;
+
+        float maxGain = peak > 0 ? (float)(-20 * Math.log10(peak)) : MAX_UNKNOWN_PEAK_GAIN_DB;
+        return Math.max(MIN_GAIN_DB, Math.min(Math.min(gain, maxGain), MAX_GAIN_DB));
+    }
+
+}
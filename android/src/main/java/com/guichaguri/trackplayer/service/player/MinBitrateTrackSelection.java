@@ -0,0 +1,69 @@
+package com.guichaguri.trackplayer.service.player;
+
+import androidx.media3.common.Format;
+import androidx.media3.common.TrackGroup;
+import androidx.media3.common.util.Clock;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.trackselection.AdaptiveTrackSelection;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * An adaptive track selection that never considers variants at or below a minimum bitrate too expensive.
+ *
+ * The bandwidth estimate can't push the selection below the best variant under that bitrate.
+ */
+@UnstableApi
+public class MinBitrateTrackSelection extends AdaptiveTrackSelection {
+
+    public static class Factory extends AdaptiveTrackSelection.Factory {
+
+        private final int minDurationForQualityIncreaseMs;
+        private final int maxDurationForQualityDecreaseMs;
+        private final int minDurationToRetainAfterDiscardMs;
+        private final float bandwidthFraction;
+        private final int minBitrate;
+
+        public Factory(int minDurationForQualityIncreaseMs, int maxDurationForQualityDecreaseMs,
+                       int minDurationToRetainAfterDiscardMs, float bandwidthFraction, int minBitrate) {
+            super(minDurationForQualityIncreaseMs, maxDurationForQualityDecreaseMs,
+                    minDurationToRetainAfterDiscardMs, bandwidthFraction);
+            this.minDurationForQualityIncreaseMs = minDurationForQualityIncreaseMs;
+            this.maxDurationForQualityDecreaseMs = maxDurationForQualityDecreaseMs;
+            this.minDurationToRetainAfterDiscardMs = minDurationToRetainAfterDiscardMs;
+            this.bandwidthFraction = bandwidthFraction;
+            this.minBitrate = minBitrate;
+        }
+
+        @Override
+        protected AdaptiveTrackSelection createAdaptiveTrackSelection(TrackGroup group, int[] tracks, int type,
+                                                                      BandwidthMeter bandwidthMeter,
+                                                                      ImmutableList<AdaptationCheckpoint> adaptationCheckpoints) {
+            return new MinBitrateTrackSelection(group, tracks, type, bandwidthMeter, minDurationForQualityIncreaseMs,
+                    maxDurationForQualityDecreaseMs, minDurationToRetainAfterDiscardMs, bandwidthFraction,
+                    adaptationCheckpoints, minBitrate);
+        }
+    }
+
+    private final int minBitrate;
+
+    protected MinBitrateTrackSelection(TrackGroup group, int[] tracks, int type, BandwidthMeter bandwidthMeter,
+                                       long minDurationForQualityIncreaseMs, long maxDurationForQualityDecreaseMs,
+                                       long minDurationToRetainAfterDiscardMs, float bandwidthFraction,
+                                       List<AdaptationCheckpoint> adaptationCheckpoints, int minBitrate) {
+        super(group, tracks, type, bandwidthMeter, minDurationForQualityIncreaseMs, maxDurationForQualityDecreaseMs,
+                minDurationToRetainAfterDiscardMs, DEFAULT_MAX_WIDTH_TO_DISCARD, DEFAULT_MAX_HEIGHT_TO_DISCARD,
+                bandwidthFraction, DEFAULT_BUFFERED_FRACTION_TO_LIVE_EDGE_FOR_QUALITY_INCREASE,
+                adaptationCheckpoints, Clock.DEFAULT);
+        this.minBitrate = minBitrate;
+    }
+
+    @Override
+    protected boolean canSelectFormat(Format format, int trackBitrate, long effectiveBitrate) {
+        return trackBitrate <= minBitrate || super.canSelectFormat(format, trackBitrate, effectiveBitrate);
+    }
+
+}
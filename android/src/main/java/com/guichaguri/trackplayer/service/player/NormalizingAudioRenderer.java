@@ -0,0 +1,111 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Metadata;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.ExoPlaybackException;
+import androidx.media3.exoplayer.audio.AudioRendererEventListener;
+import androidx.media3.exoplayer.audio.AudioSink;
+import androidx.media3.exoplayer.audio.MediaCodecAudioRenderer;
+import androidx.media3.exoplayer.mediacodec.MediaCodecSelector;
+import androidx.media3.exoplayer.source.MediaSource;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sets the normalization gain of each track when its first decoded samples reach the audio sink,
+ * so gapless transitions switch the gain exactly between both tracks.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class NormalizingAudioRenderer extends MediaCodecAudioRenderer {
+
+    private final LoudnessNormalizer normalizer;
+    private final EffectsAudioProcessor processor;
+
+    // Gains of the streams whose decoded samples didn't reach the sink yet
+    private final ArrayDeque<Float> pendingGains = new ArrayDeque<>();
+    private boolean firstStream = true;
+
+    private final Timeline.Period period = new Timeline.Period();
+    private final Timeline.Window window = new Timeline.Window();
+
+    public NormalizingAudioRenderer(Context context, MediaCodecSelector mediaCodecSelector, boolean enableDecoderFallback,
+                                    @Nullable Handler eventHandler, @Nullable AudioRendererEventListener eventListener,
+                                    AudioSink audioSink, LoudnessNormalizer normalizer, EffectsAudioProcessor processor) {
+        super(context, mediaCodecSelector, enableDecoderFallback, eventHandler, eventListener, audioSink);
+        this.normalizer = normalizer;
+        this.processor = processor;
+    }
+
+    @Override
+    protected void onEnabled(boolean joining, boolean mayRenderStartOfStream) throws ExoPlaybackException {
+        super.onEnabled(joining, mayRenderStartOfStream);
+        pendingGains.clear();
+        firstStream = true;
+    }
+
+    @Override
+    protected void onStreamChanged(Format[] formats, long startPositionUs, long offsetUs,
+                                   MediaSource.MediaPeriodId mediaPeriodId) throws ExoPlaybackException {
+        float gain = getGain(formats, mediaPeriodId);
+
+        if(firstStream) {
+            // Nothing was decoded yet
+            firstStream = false;
+            processor.setGain(gain);
+        } else {
+            // Added before the change is processed, which can happen right away
+            pendingGains.add(gain);
+        }
+
+        super.onStreamChanged(formats, startPositionUs, offsetUs, mediaPeriodId);
+    }
+
+    @Override
+    protected void onProcessedStreamChange() {
+        super.onProcessedStreamChange();
+
+        Float gain = pendingGains.poll();
+        if(gain != null) processor.setGain(gain);
+    }
+
+    @Override
+    protected void onPositionReset(long positionUs, boolean joining) throws ExoPlaybackException {
+        super.onPositionReset(positionUs, joining);
+
+        // The decoder is flushed, so the samples come from the last stream
+        Float gain = pendingGains.peekLast();
+        if(gain != null) processor.setGain(gain);
+        pendingGains.clear();
+    }
+
+    private float getGain(Format[] formats, MediaSource.MediaPeriodId mediaPeriodId) {
+        // The tags are read by the extractor before the stream starts
+        Metadata metadata = formats.length > 0 ? formats[0].metadata : null;
+        return normalizer.getGain(metadata, getSourceKey(mediaPeriodId));
+    }
+
+    /**
+     * The uri of the media item being rendered
+     */
+    @Nullable
+    private String getSourceKey(@Nullable MediaSource.MediaPeriodId mediaPeriodId) {
+        Timeline timeline = getTimeline();
+        if(mediaPeriodId == null || timeline.getIndexOfPeriod(mediaPeriodId.periodUid) == C.INDEX_UNSET) return null;
+
+        timeline.getPeriodByUid(mediaPeriodId.periodUid, period);
+        MediaItem.LocalConfiguration config = timeline.getWindow(period.windowIndex, window).mediaItem.localConfiguration;
+
+        return config == null ? null : config.uri.toString();
+    }
+
+}
@@ -0,0 +1,284 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the audio of a file into 16-bit PCM, without playing it.
+ * Used by the background analysis, which streams the samples instead of holding the whole track.
+ * Decoders that output other encodings, such as float or 24-bit, are converted to 16-bit.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public final class PcmDecoder {
+
+    private static final long TIMEOUT_US = 10_000;
+
+    public interface Listener {
+        /**
+         * Called before the samples, and again if the decoder changes the output format
+         * @param durationUs The duration or {@link C#TIME_UNSET} if unknown
+         */
+        void onFormat(int sampleRate, int channelCount, long durationUs);
+
+        /**
+         * Called with interleaved samples, the buffer is only valid during the call
+         */
+        void onSamples(ShortBuffer samples);
+    }
+
+    private PcmDecoder() {}
+
+    /**
+     * Decodes a local file
+     */
+    public static void decode(Context context, Uri uri, Listener listener) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, uri, null);
+            decode(extractor, listener);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Decodes a file read from a data source, such as the cache
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static void decode(DataSource dataSource, Uri uri, Listener listener) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        DataSourceReader reader = new DataSourceReader(dataSource, uri);
+        try {
+            extractor.setDataSource(reader);
+            decode(extractor, listener);
+        } finally {
+            extractor.release();
+            reader.close();
+        }
+    }
+
+    private static void decode(MediaExtractor extractor, Listener listener) throws IOException {
+        MediaFormat format = null;
+
+        for(int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+
+            if(mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+
+        if(format == null) throw new IOException("No audio track found");
+
+        long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : C.TIME_UNSET;
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+
+        try {
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            listener.onFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), durationUs);
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            SampleConverter converter = new SampleConverter();
+            boolean inputDone = false;
+
+            while(true) {
+                if(Thread.interrupted()) throw new InterruptedIOException();
+
+                if(!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+
+                    if(inputIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inputIndex);
+                        int size = input == null ? -1 : extractor.readSampleData(input, 0);
+
+                        if(size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+
+                if(outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    converter.setFormat(output);
+                    listener.onFormat(output.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            output.getInteger(MediaFormat.KEY_CHANNEL_COUNT), durationUs);
+                } else if(outputIndex >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(outputIndex);
+
+                    if(output != null && info.size > 0) {
+                        output.position(info.offset);
+                        output.limit(info.offset + info.size);
+                        listener.onSamples(converter.convert(output.slice().order(ByteOrder.nativeOrder())));
+                    }
+
+                    codec.releaseOutputBuffer(outputIndex, false);
+
+                    if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+                }
+            }
+        } catch(IllegalStateException ex) {
+            throw new IOException("The audio couldn't be decoded", ex);
+        } finally {
+            codec.release();
+        }
+    }
+
+    /**
+     * Converts the decoder output to 16-bit samples, reusing the same array between buffers
+     */
+    static class SampleConverter {
+
+        private int encoding = AudioFormat.ENCODING_PCM_16BIT;
+        private short[] samples = new short[0];
+
+        void setFormat(MediaFormat format) throws IOException {
+            // Decoders only output other encodings when asked to from Android 7
+            setEncoding(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && format.containsKey(MediaFormat.KEY_PCM_ENCODING) ?
+                    format.getInteger(MediaFormat.KEY_PCM_ENCODING) : AudioFormat.ENCODING_PCM_16BIT);
+        }
+
+        void setEncoding(int encoding) throws IOException {
+            this.encoding = encoding;
+            if(getSampleSize() == 0) throw new IOException("Unsupported PCM encoding " + encoding);
+        }
+
+        private int getSampleSize() {
+            switch(encoding) {
+                case AudioFormat.ENCODING_PCM_8BIT:
+                    return 1;
+                case AudioFormat.ENCODING_PCM_16BIT:
+                    return 2;
+                case AudioFormat.ENCODING_PCM_24BIT_PACKED:
+                    return 3;
+                case AudioFormat.ENCODING_PCM_32BIT:
+                case AudioFormat.ENCODING_PCM_FLOAT:
+                    return 4;
+                default:
+                    return 0;
+            }
+        }
+
+        ShortBuffer convert(ByteBuffer buffer) {
+            if(encoding == AudioFormat.ENCODING_PCM_16BIT) return buffer.asShortBuffer();
+
+            int sampleSize = getSampleSize();
+            int count = buffer.remaining() / sampleSize;
+            if(samples.length < count) samples = new short[count];
+
+            for(int i = 0; i < count; i++) {
+                int offset = i * sampleSize;
+
+                switch(encoding) {
+                    case AudioFormat.ENCODING_PCM_8BIT:
+                        // Unsigned
+                        samples[i] = (short)(((buffer.get(offset) & 0xFF) - 128) << 8);
+                        break;
+                    case AudioFormat.ENCODING_PCM_24BIT_PACKED:
+                        // Little endian, the lowest byte is dropped
+                        samples[i] = (short)((buffer.get(offset + 1) & 0xFF) | (buffer.get(offset + 2) << 8));
+                        break;
+                    case AudioFormat.ENCODING_PCM_32BIT:
+                        samples[i] = (short)(buffer.getInt(offset) >> 16);
+                        break;
+                    default:
+                        float sample = Math.max(-1, Math.min(1, buffer.getFloat(offset)));
+                        samples[i] = (short)(sample * Short.MAX_VALUE);
+                        break;
+                }
+            }
+
+            return ShortBuffer.wrap(samples, 0, count);
+        }
+    }
+
+    /**
+     * Random access for the extractor over a data source, reopened only when it seeks
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static class DataSourceReader extends MediaDataSource {
+
+        private final DataSource dataSource;
+        private final Uri uri;
+
+        private boolean opened = false;
+        private long position = 0;
+        private long length = C.LENGTH_UNSET;
+
+        DataSourceReader(DataSource dataSource, Uri uri) {
+            this.dataSource = dataSource;
+            this.uri = uri;
+        }
+
+        private void open(long start) throws IOException {
+            if(opened) dataSource.close();
+
+            long available = dataSource.open(new DataSpec.Builder().setUri(uri).setPosition(start).build());
+            if(start == 0 && available != C.LENGTH_UNSET) length = available;
+
+            this.opened = true;
+            this.position = start;
+        }
+
+        @Override
+        public int readAt(long offset, byte[] buffer, int bufferOffset, int size) throws IOException {
+            if(length != C.LENGTH_UNSET && offset >= length) return -1;
+            if(!opened || offset != position) open(offset);
+
+            int total = 0;
+
+            while(total < size) {
+                int read = dataSource.read(buffer, bufferOffset + total, size - total);
+                if(read == C.RESULT_END_OF_INPUT) break;
+                total += read;
+            }
+
+            position += total;
+            return total == 0 ? -1 : total;
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            if(length == C.LENGTH_UNSET && !opened) open(0);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(opened) dataSource.close();
+            opened = false;
+        }
+    }
+
+}
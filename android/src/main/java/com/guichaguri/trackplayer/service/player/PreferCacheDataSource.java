@@ -0,0 +1,103 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+import androidx.media3.datasource.cache.Cache;
+import androidx.media3.datasource.cache.CacheKeyFactory;
+import androidx.media3.datasource.cache.ContentMetadata;
+
+import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A data source for the prefer-cache policy, which decides where the data comes from every time it's opened.
+ *
+ * Ranges that are fully cached are read from a cache-only source, so they never wait on the network,
+ * not even to find the end of the media. Missing ranges are read through the cache, unless there's no
+ * connection, in which case they fail right away with a cache miss instead of waiting for a timeout.
+ */
+@UnstableApi
+public class PreferCacheDataSource implements DataSource {
+
+    private final MusicManager manager;
+    private final Cache cache;
+    private final DataSource cacheOnly;
+    private final DataSource readThrough;
+
+    @Nullable
+    private DataSource source;
+
+    /**
+     * @param cacheOnly A source that only reads from the cache
+     * @param readThrough A source that reads from the cache and the network
+     */
+    public PreferCacheDataSource(MusicManager manager, Cache cache, DataSource cacheOnly, DataSource readThrough) {
+        this.manager = manager;
+        this.cache = cache;
+        this.cacheOnly = cacheOnly;
+        this.readThrough = readThrough;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        // Only the network transfers are reported
+        readThrough.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        // Tracked by the network callback, as the active network queries can be stale while it changes
+        boolean offline = manager.getNetworkType() == Utils.NETWORK_UNKNOWN;
+
+        source = offline || isCached(dataSpec) ? cacheOnly : readThrough;
+        return source.open(dataSpec);
+    }
+
+    private boolean isCached(DataSpec dataSpec) {
+        String key = CacheKeyFactory.DEFAULT.buildCacheKey(dataSpec);
+        long contentLength = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+
+        // Without the total length, only the network knows where the media ends
+        if(contentLength == C.LENGTH_UNSET) return false;
+
+        long length = dataSpec.length != C.LENGTH_UNSET ? dataSpec.length : contentLength - dataSpec.position;
+        return length <= 0 || cache.isCached(key, dataSpec.position, length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if(source == null) throw new IOException("The data source is not open");
+        return source.read(buffer, offset, length);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return source == null ? null : source.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return source == null ? Collections.emptyMap() : source.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(source != null) {
+            source.close();
+            source = null;
+        }
+    }
+
+}
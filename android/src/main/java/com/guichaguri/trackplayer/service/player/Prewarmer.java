@@ -0,0 +1,84 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.media.MediaCodec;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.mediacodec.MediaCodecInfo;
+import androidx.media3.exoplayer.mediacodec.MediaCodecUtil;
+import androidx.media3.extractor.DefaultExtractorsFactory;
+
+import com.guichaguri.trackplayer.service.DebugTrace;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads what the first playback needs before the player is set up.
+ *
+ * The player itself can't be built ahead, as it has to be created in the service thread with the setup options.
+ * The decoder lookups, the codec process and the extractor classes are process-wide, so warming them
+ * in the background takes them out of the path of the first track.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public final class Prewarmer {
+
+    // Most of the audio content goes through one of these decoders
+    private static final String[] MIME_TYPES = {
+            MimeTypes.AUDIO_AAC, MimeTypes.AUDIO_MPEG, MimeTypes.AUDIO_FLAC, MimeTypes.AUDIO_OPUS, MimeTypes.AUDIO_VORBIS
+    };
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static volatile boolean done = false;
+
+    private Prewarmer() {}
+
+    /**
+     * Starts warming up in a background thread. Only the first call in the process does anything.
+     */
+    public static void prewarm() {
+        if(!started.compareAndSet(false, true)) return;
+
+        Thread thread = new Thread(Prewarmer::run, "TrackPlayerPrewarm");
+        thread.start();
+    }
+
+    /**
+     * Whether the warm up has finished
+     */
+    public static boolean isPrewarmed() {
+        return done;
+    }
+
+    private static void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = System.nanoTime();
+
+        // Loads the extractor classes
+        new DefaultExtractorsFactory().createExtractors();
+
+        for(int i = 0; i < MIME_TYPES.length; i++) {
+            try {
+                // The results are cached by MediaCodecUtil for the renderers
+                List<MediaCodecInfo> infos = MediaCodecUtil.getDecoderInfos(MIME_TYPES[i], false, false);
+
+                // Instantiating the main decoder once starts the codec process
+                if(i == 0 && !infos.isEmpty()) {
+                    MediaCodec codec = MediaCodec.createByCodecName(infos.get(0).name);
+                    codec.release();
+                }
+            } catch(Exception ex) {
+                Log.w(Utils.LOG, "Couldn't prewarm the " + MIME_TYPES[i] + " decoder", ex);
+            }
+        }
+
+        done = true;
+        DebugTrace.i(DebugTrace.PREWARM, (System.nanoTime() - start) / 1000000, 0);
+    }
+
+}
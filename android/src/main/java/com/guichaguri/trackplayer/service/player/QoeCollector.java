@@ -0,0 +1,276 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.exoplayer.DecoderCounters;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.analytics.AnalyticsListener;
+import androidx.media3.exoplayer.source.LoadEventInfo;
+import androidx.media3.exoplayer.source.MediaLoadData;
+
+import com.guichaguri.trackplayer.service.MusicManager;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Collects the quality of experience of each track and reports it when the track is left.
+ *
+ * Loads are attributed to the track they belong to, which is usually ahead of the one playing,
+ * while the playback events are attributed to the track playing.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class QoeCollector implements AnalyticsListener {
+
+    private final MusicManager manager;
+    private final ExoPlayer player;
+
+    // Keyed by the window sequence number, which is unique for every playlist item played
+    private final Map<Long, TrackStats> tracks = new HashMap<>();
+
+    private long currentKey = C.INDEX_UNSET;
+    private boolean playWhenReady = false;
+    private boolean seeking = false;
+
+    @Nullable
+    private DecoderCounters lastCounters;
+    private int lastDroppedBuffers = 0;
+
+    public QoeCollector(MusicManager manager, ExoPlayer player) {
+        this.manager = manager;
+        this.player = player;
+    }
+
+    private TrackStats getStats(long key) {
+        TrackStats stats = tracks.get(key);
+
+        if(stats == null) {
+            stats = new TrackStats();
+            tracks.put(key, stats);
+        }
+
+        return stats;
+    }
+
+    private TrackStats getStats(EventTime eventTime) {
+        long key = eventTime.mediaPeriodId != null ? eventTime.mediaPeriodId.windowSequenceNumber : C.INDEX_UNSET;
+        return getStats(key);
+    }
+
+    @Nullable
+    private TrackStats getCurrentStats(EventTime eventTime) {
+        if(eventTime.currentMediaPeriodId == null) return null;
+
+        long key = eventTime.currentMediaPeriodId.windowSequenceNumber;
+        if(key != currentKey) {
+            // The first event of a new track
+            currentKey = key;
+
+            TrackStats stats = getStats(key);
+            stats.index = eventTime.currentWindowIndex;
+            if(playWhenReady) stats.joinStart = eventTime.realtimeMs;
+            return stats;
+        }
+
+        return getStats(key);
+    }
+
+    /**
+     * Reports the current track and forgets about it
+     */
+    private void report(long realtimeMs) {
+        if(currentKey == C.INDEX_UNSET) return;
+
+        TrackStats stats = tracks.remove(currentKey);
+
+        // Tracks loaded before this one were skipped without being played
+        Iterator<Long> keys = tracks.keySet().iterator();
+        while(keys.hasNext()) {
+            if(keys.next() < currentKey) keys.remove();
+        }
+
+        currentKey = C.INDEX_UNSET;
+
+        // Nothing happened while it was the current item, like after the queue ended
+        if(stats == null || (stats.joinTime == C.TIME_UNSET && stats.bytesTransferred == 0)) return;
+
+        stats.endRebuffer(realtimeMs);
+
+        Bundle bundle = new Bundle();
+        if(stats.index != C.INDEX_UNSET) bundle.putInt("track", stats.index);
+        if(stats.joinTime != C.TIME_UNSET) bundle.putDouble("joinTime", stats.joinTime);
+        bundle.putInt("rebufferCount", stats.rebufferCount);
+        bundle.putDouble("rebufferDuration", stats.rebufferDuration);
+        bundle.putInt("bitrateSwitches", stats.bitrateSwitches);
+        if(stats.bitrate != Format.NO_VALUE) bundle.putInt("bitrate", stats.bitrate);
+        bundle.putInt("droppedBuffers", consumeDroppedBuffers());
+        bundle.putInt("loadErrors", stats.loadErrors);
+        bundle.putDouble("bytesTransferred", stats.bytesTransferred);
+
+        manager.onQoe(bundle);
+    }
+
+    /**
+     * The decoder counters are cumulative since the renderer was enabled, so the last value is subtracted
+     */
+    private int consumeDroppedBuffers() {
+        DecoderCounters counters = player.getAudioDecoderCounters();
+        if(counters == null) return 0;
+
+        counters.ensureUpdated();
+        int total = counters.droppedBufferCount + counters.skippedOutputBufferCount;
+
+        if(counters != lastCounters) {
+            lastCounters = counters;
+            lastDroppedBuffers = 0;
+        }
+
+        int dropped = total - lastDroppedBuffers;
+        lastDroppedBuffers = total;
+        return Math.max(dropped, 0);
+    }
+
+    @Override
+    public void onMediaItemTransition(@NonNull EventTime eventTime, @Nullable MediaItem mediaItem, int reason) {
+        report(eventTime.realtimeMs);
+        getCurrentStats(eventTime);
+    }
+
+    @Override
+    public void onPlayWhenReadyChanged(@NonNull EventTime eventTime, boolean playWhenReady, int reason) {
+        this.playWhenReady = playWhenReady;
+
+        TrackStats stats = getCurrentStats(eventTime);
+        if(stats == null) return;
+
+        if(playWhenReady) {
+            // The join time only counts from when the user wanted to play it
+            if(stats.joinTime == C.TIME_UNSET) stats.joinStart = eventTime.realtimeMs;
+        } else {
+            stats.endRebuffer(eventTime.realtimeMs);
+        }
+    }
+
+    @Override
+    public void onIsPlayingChanged(@NonNull EventTime eventTime, boolean isPlaying) {
+        if(!isPlaying) return;
+
+        TrackStats stats = getCurrentStats(eventTime);
+        if(stats == null) return;
+
+        if(stats.joinTime == C.TIME_UNSET && stats.joinStart != C.TIME_UNSET) {
+            stats.joinTime = eventTime.realtimeMs - stats.joinStart;
+        }
+    }
+
+    @Override
+    public void onPositionDiscontinuity(@NonNull EventTime eventTime, @NonNull Player.PositionInfo oldPosition,
+                                        @NonNull Player.PositionInfo newPosition, int reason) {
+        // Buffering caused by seeks are not rebuffers
+        if(reason == Player.DISCONTINUITY_REASON_SEEK) seeking = true;
+    }
+
+    @Override
+    public void onPlaybackStateChanged(@NonNull EventTime eventTime, int state) {
+        TrackStats stats = getCurrentStats(eventTime);
+
+        if(state == Player.STATE_ENDED) {
+            report(eventTime.realtimeMs);
+            return;
+        }
+
+        if(stats == null) return;
+
+        if(state == Player.STATE_BUFFERING) {
+            // Only a stall after the track started playing is a rebuffer
+            if(!seeking && playWhenReady && stats.joinTime != C.TIME_UNSET) {
+                stats.rebufferCount++;
+                stats.rebufferStart = eventTime.realtimeMs;
+            }
+        } else {
+            stats.endRebuffer(eventTime.realtimeMs);
+            seeking = false;
+        }
+    }
+
+    @Override
+    public void onDownstreamFormatChanged(@NonNull EventTime eventTime, @NonNull MediaLoadData mediaLoadData) {
+        if(mediaLoadData.trackFormat == null) return;
+        if(mediaLoadData.trackType != C.TRACK_TYPE_AUDIO && mediaLoadData.trackType != C.TRACK_TYPE_DEFAULT
+                && mediaLoadData.trackType != C.TRACK_TYPE_VIDEO) return;
+
+        TrackStats stats = getStats(eventTime);
+        int bitrate = mediaLoadData.trackFormat.bitrate;
+
+        if(stats.bitrate != Format.NO_VALUE && bitrate != stats.bitrate) stats.bitrateSwitches++;
+        stats.bitrate = bitrate;
+    }
+
+    @Override
+    public void onLoadCompleted(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                                @NonNull MediaLoadData mediaLoadData) {
+        getStats(eventTime).bytesTransferred += loadEventInfo.bytesLoaded;
+    }
+
+    @Override
+    public void onLoadCanceled(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                               @NonNull MediaLoadData mediaLoadData) {
+        getStats(eventTime).bytesTransferred += loadEventInfo.bytesLoaded;
+    }
+
+    @Override
+    public void onLoadError(@NonNull EventTime eventTime, @NonNull LoadEventInfo loadEventInfo,
+                            @NonNull MediaLoadData mediaLoadData, @NonNull IOException error, boolean wasCanceled) {
+        TrackStats stats = getStats(eventTime);
+        stats.bytesTransferred += loadEventInfo.bytesLoaded;
+        stats.loadErrors++;
+    }
+
+    @Override
+    public void onPlayerError(@NonNull EventTime eventTime, @NonNull PlaybackException error) {
+        report(eventTime.realtimeMs);
+    }
+
+    @Override
+    public void onPlayerReleased(@NonNull EventTime eventTime) {
+        report(eventTime.realtimeMs);
+        tracks.clear();
+    }
+
+    private static class TrackStats {
+
+        int index = C.INDEX_UNSET;
+
+        long joinStart = C.TIME_UNSET;
+        long joinTime = C.TIME_UNSET;
+
+        int rebufferCount = 0;
+        long rebufferStart = C.TIME_UNSET;
+        long rebufferDuration = 0;
+
+        int bitrate = Format.NO_VALUE;
+        int bitrateSwitches = 0;
+
+        int loadErrors = 0;
+        long bytesTransferred = 0;
+
+        void endRebuffer(long realtimeMs) {
+            if(rebufferStart == C.TIME_UNSET) return;
+
+            rebufferDuration += realtimeMs - rebufferStart;
+            rebufferStart = C.TIME_UNSET;
+        }
+    }
+}
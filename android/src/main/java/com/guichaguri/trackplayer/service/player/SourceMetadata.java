@@ -1,166 +1,277 @@
 package com.guichaguri.trackplayer.service.player;
 
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+
 import androidx.media3.common.Metadata;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.container.MdtaMetadataEntry;
+import androidx.media3.extractor.metadata.flac.PictureFrame;
 import androidx.media3.extractor.metadata.icy.IcyHeaders;
 import androidx.media3.extractor.metadata.icy.IcyInfo;
+import androidx.media3.extractor.metadata.id3.ApicFrame;
+import androidx.media3.extractor.metadata.id3.ChapterFrame;
+import androidx.media3.extractor.metadata.id3.ChapterTocFrame;
 import androidx.media3.extractor.metadata.id3.TextInformationFrame;
 import androidx.media3.extractor.metadata.id3.UrlLinkFrame;
 import androidx.media3.extractor.metadata.vorbis.VorbisComment;
 
 import com.guichaguri.trackplayer.service.MusicManager;
+import com.guichaguri.trackplayer.service.metadata.EmbeddedArtwork;
 
 import java.nio.charset.StandardCharsets;
-
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the metadata of the playing source and triggers the metadata-received event.
+ *
+ * Every entry is read in a single pass, grouped by the source format. Each source only triggers the event
+ * when its metadata differs from the last one it triggered for the current track, so streams repeating
+ * the same ICY title or containers re-sending their tags don't flood the bridge.
+ *
+ * Embedded pictures are written to the thumbnail cache first, the event is triggered once the file is ready.
+ * Chapters are indexed once per track and handed to the playback.
+ */
 @UnstableApi
 public class SourceMetadata {
 
+    private static final int ID3 = 0;
+    private static final int ICY_HEADERS = 1;
+    private static final int ICY = 2;
+    private static final int VORBIS_COMMENT = 3;
+    private static final int QUICKTIME = 4;
+
+    private static final String[] SOURCES = {"id3", "icy-headers", "icy", "vorbis-comment", "quicktime"};
+
+    private static final int PICTURE_FRONT_COVER = 3;
+    private static final int PICTURE_HASH_SAMPLES = 256;
+
+    private final Context context;
+    private final MusicManager manager;
+    private final ExoPlayback<?> playback;
+
+    // Reused for every metadata read
+    private final Fields[] received = new Fields[SOURCES.length];
+    // What was last sent for each source
+    private final Fields[] sent = new Fields[SOURCES.length];
+
+    // Incremented on every track, so pictures extracted for the previous track are ignored
+    private int generation = 0;
+    private boolean chaptersIndexed = false;
+
+    public SourceMetadata(Context context, MusicManager manager, ExoPlayback<?> playback) {
+        this.context = context;
+        this.manager = manager;
+        this.playback = playback;
+
+        for(int i = 0; i < SOURCES.length; i++) {
+            received[i] = new Fields();
+            sent[i] = new Fields();
+        }
+    }
+
     /**
-     * Reads metadata and triggers the metadata-received event
+     * Forgets what was sent, so the metadata of the next track is sent even when it's the same
      */
-    public static void handleMetadata(MusicManager manager, Metadata metadata) {
-        handleId3Metadata(manager, metadata);
-        handleIcyMetadata(manager, metadata);
-        handleVorbisCommentMetadata(manager, metadata);
-        handleQuickTimeMetadata(manager, metadata);
+    public void reset() {
+        for(Fields fields : sent) fields.clear();
+        generation++;
+        chaptersIndexed = false;
+        manager.onEmbeddedArtwork(null);
     }
 
     /**
-     * ID3 Metadata (MP3)
-     *
-     * https://en.wikipedia.org/wiki/ID3
+     * Reads metadata and triggers the metadata-received event for the sources that changed
      */
-    private static void handleId3Metadata(MusicManager manager, Metadata metadata) {
-        String title = null, url = null, artist = null, album = null, date = null, genre = null;
+    public void handleMetadata(Metadata metadata) {
+        playback.onLoudnessMetadata(metadata);
+
+        for(Fields fields : received) fields.clear();
+        List<ChapterFrame> chapters = null;
+        List<ChapterTocFrame> tocs = null;
 
         for(int i = 0; i < metadata.length(); i++) {
             Metadata.Entry entry = metadata.get(i);
 
-            if (entry instanceof TextInformationFrame) {
-                // ID3 text tag
-                TextInformationFrame id3 = (TextInformationFrame) entry;
-                String id = id3.id.toUpperCase();
-
-              switch (id) {
-                case "TIT2":
-                case "TT2":
-                  title = id3.values.get(0);
-                  break;
-                case "TALB":
-                case "TOAL":
-                case "TAL":
-                  album = id3.values.get(0);
-                  break;
-                case "TOPE":
-                case "TPE1":
-                case "TP1":
-                  artist = id3.values.get(0);
-                  break;
-                case "TDRC":
-                case "TOR":
-                  date = id3.values.get(0);
-                  break;
-                case "TCON":
-                case "TCO":
-                  genre = id3.values.get(0);
-                  break;
-              }
-
-            } else if (entry instanceof UrlLinkFrame) {
-                // ID3 URL tag
-                UrlLinkFrame id3 = (UrlLinkFrame) entry;
-                String id = id3.id.toUpperCase();
-
-                if (id.equals("WOAS") || id.equals("WOAF") || id.equals("WOAR") || id.equals("WAR")) {
-                    url = id3.url;
-                }
-
+            if(entry instanceof TextInformationFrame) {
+                handleId3Text((TextInformationFrame)entry, received[ID3]);
+            } else if(entry instanceof UrlLinkFrame) {
+                handleId3Url((UrlLinkFrame)entry, received[ID3]);
+            } else if(entry instanceof ApicFrame) {
+                ApicFrame apic = (ApicFrame)entry;
+                received[ID3].setPicture(apic.pictureData, apic.pictureType);
+            } else if(entry instanceof IcyHeaders) {
+                handleIcyHeaders((IcyHeaders)entry, received[ICY_HEADERS]);
+            } else if(entry instanceof IcyInfo) {
+                handleIcyInfo((IcyInfo)entry, received[ICY]);
+            } else if(entry instanceof VorbisComment) {
+                handleVorbisComment((VorbisComment)entry, received[VORBIS_COMMENT]);
+            } else if(entry instanceof PictureFrame) {
+                // FLAC picture blocks, which also come from the METADATA_BLOCK_PICTURE comments
+                PictureFrame picture = (PictureFrame)entry;
+                received[VORBIS_COMMENT].setPicture(picture.pictureData, picture.pictureType);
+            } else if(entry instanceof MdtaMetadataEntry) {
+                handleQuickTime((MdtaMetadataEntry)entry, received[QUICKTIME]);
+            } else if(entry instanceof ChapterFrame && !chaptersIndexed) {
+                if(chapters == null) chapters = new ArrayList<>();
+                chapters.add((ChapterFrame)entry);
+            } else if(entry instanceof ChapterTocFrame && !chaptersIndexed) {
+                if(tocs == null) tocs = new ArrayList<>();
+                tocs.add((ChapterTocFrame)entry);
             }
         }
 
-        if (title != null || url != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("id3", title, url, artist, album, date, genre);
+        if(chapters != null) {
+            chaptersIndexed = true;
+            playback.setChapters(ChapterIndex.build(chapters, tocs != null ? tocs : new ArrayList<>()));
         }
-    }
 
-    /**
-     * Shoutcast / Icecast metadata (ICY protocol)
-     *
-     * https://cast.readme.io/docs/icy
-     */
-    private static void handleIcyMetadata(MusicManager manager, Metadata metadata) {
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
-
-            if(entry instanceof IcyHeaders) {
-                // ICY headers
-                IcyHeaders icy = (IcyHeaders)entry;
+        for(int i = 0; i < SOURCES.length; i++) {
+            Fields fields = received[i];
+            if(!fields.present || fields.equals(sent[i])) continue;
 
-                manager.onMetadataReceived("icy-headers", icy.name, icy.url, null, null, null, icy.genre);
+            sent[i].copy(fields);
 
-            } else if(entry instanceof IcyInfo) {
-                // ICY data
-                IcyInfo icy = (IcyInfo)entry;
+            if(fields.picture == null) {
+                send(SOURCES[i], fields, null);
+                continue;
+            }
 
-                String artist, title;
-                int index = icy.title == null ? -1 : icy.title.indexOf(" - ");
+            // The received fields are reused, so a copy waits for the picture
+            Fields pending = new Fields();
+            pending.copy(fields);
 
-                if (index != -1) {
-                    artist = icy.title.substring(0, index);
-                    title = icy.title.substring(index + 3);
-                } else {
-                    artist = null;
-                    title = icy.title;
-                }
+            String source = SOURCES[i];
+            int gen = generation;
 
-                manager.onMetadataReceived("icy", title, icy.url, artist, null, null, null);
+            EmbeddedArtwork.extract(context, fields.picture, (uri) -> {
+                if(gen != generation) return;
 
-            }
+                if(uri != null) manager.onEmbeddedArtwork(uri);
+                send(source, pending, uri);
+            });
         }
     }
 
+    private void send(String source, Fields fields, Uri artwork) {
+        manager.onMetadataReceived(source, fields.title, fields.url, fields.artist, fields.album,
+                fields.date, fields.genre, artwork == null ? null : artwork.toString());
+    }
+
     /**
-     * Vorbis Comments (Vorbis, FLAC, Opus, Speex, Theora)
+     * ID3 text tag (MP3)
      *
-     * https://xiph.org/vorbis/doc/v-comment.html
+     * https://en.wikipedia.org/wiki/ID3
      */
-    private static void handleVorbisCommentMetadata(MusicManager manager, Metadata metadata) {
-        String title = null, url = null, artist = null, album = null, date = null, genre = null;
+    private static void handleId3Text(TextInformationFrame id3, Fields fields) {
+        // Frame ids are always uppercase
+        switch(id3.id) {
+            case "TIT2":
+            case "TT2":
+                fields.title = id3.values.get(0);
+                break;
+            case "TALB":
+            case "TOAL":
+            case "TAL":
+                fields.album = id3.values.get(0);
+                break;
+            case "TOPE":
+            case "TPE1":
+            case "TP1":
+                fields.artist = id3.values.get(0);
+                break;
+            case "TDRC":
+            case "TOR":
+                fields.date = id3.values.get(0);
+                break;
+            case "TCON":
+            case "TCO":
+                fields.genre = id3.values.get(0);
+                break;
+            default:
+                return;
+        }
 
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
+        fields.present = true;
+    }
+
+    /**
+     * ID3 URL tag (MP3)
+     */
+    private static void handleId3Url(UrlLinkFrame id3, Fields fields) {
+        switch(id3.id) {
+            case "WOAS":
+            case "WOAF":
+            case "WOAR":
+            case "WAR":
+                fields.url = id3.url;
+                fields.present = true;
+                break;
+        }
+    }
 
-            if (!(entry instanceof VorbisComment)) continue;
+    /**
+     * Shoutcast / Icecast headers (ICY protocol)
+     *
+     * https://cast.readme.io/docs/icy
+     */
+    private static void handleIcyHeaders(IcyHeaders icy, Fields fields) {
+        fields.title = icy.name;
+        fields.url = icy.url;
+        fields.genre = icy.genre;
+        fields.present = true;
+    }
 
-            VorbisComment comment = (VorbisComment) entry;
-            String key = comment.key;
+    /**
+     * Shoutcast / Icecast stream data (ICY protocol)
+     */
+    private static void handleIcyInfo(IcyInfo icy, Fields fields) {
+        int index = icy.title == null ? -1 : icy.title.indexOf(" - ");
+
+        if(index != -1) {
+            fields.artist = icy.title.substring(0, index);
+            fields.title = icy.title.substring(index + 3);
+        } else {
+            fields.artist = null;
+            fields.title = icy.title;
+        }
+
+        fields.url = icy.url;
+        fields.present = true;
+    }
 
-          switch (key) {
+    /**
+     * Vorbis Comments (Vorbis, FLAC, Opus, Speex, Theora)
+     *
+     * https://xiph.org/vorbis/doc/v-comment.html
+     */
+    private static void handleVorbisComment(VorbisComment comment, Fields fields) {
+        switch(comment.key) {
             case "TITLE":
-              title = comment.value;
-              break;
+                fields.title = comment.value;
+                break;
             case "ARTIST":
-              artist = comment.value;
-              break;
+                fields.artist = comment.value;
+                break;
             case "ALBUM":
-              album = comment.value;
-              break;
+                fields.album = comment.value;
+                break;
             case "DATE":
-              date = comment.value;
-              break;
+                fields.date = comment.value;
+                break;
             case "GENRE":
-              genre = comment.value;
-              break;
+                fields.genre = comment.value;
+                break;
             case "URL":
-              url = comment.value;
-              break;
-          }
+                fields.url = comment.value;
+                break;
+            default:
+                return;
         }
 
-        if (title != null || url != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("vorbis-comment", title, url, artist, album, date, genre);
-        }
+        fields.present = true;
     }
 
     /**
@@ -168,42 +279,101 @@ public class SourceMetadata {
      *
      * https://developer.apple.com/library/archive/documentation/QuickTime/QTFF/Metadata/Metadata.html
      */
-    private static void handleQuickTimeMetadata(MusicManager manager, Metadata metadata) {
-        String title = null, artist = null, album = null, date = null, genre = null;
+    private static void handleQuickTime(MdtaMetadataEntry mdta, Fields fields) {
+        switch(mdta.key) {
+            case "com.apple.quicktime.title":
+                fields.title = new String(mdta.value, StandardCharsets.UTF_8);
+                break;
+            case "com.apple.quicktime.artist":
+                fields.artist = new String(mdta.value, StandardCharsets.UTF_8);
+                break;
+            case "com.apple.quicktime.album":
+                fields.album = new String(mdta.value, StandardCharsets.UTF_8);
+                break;
+            case "com.apple.quicktime.creationdate":
+                fields.date = new String(mdta.value, StandardCharsets.UTF_8);
+                break;
+            case "com.apple.quicktime.genre":
+                fields.genre = new String(mdta.value, StandardCharsets.UTF_8);
+                break;
+            default:
+                return;
+        }
 
-        for (int i = 0; i < metadata.length(); i++) {
-            Metadata.Entry entry = metadata.get(i);
+        fields.present = true;
+    }
+
+    private static class Fields {
+
+        boolean present;
+        String title, url, artist, album, date, genre;
+
+        byte[] picture;
+        int pictureType;
+        // Compared instead of the picture, which can be hundreds of kilobytes
+        int pictureHash;
+
+        void clear() {
+            present = false;
+            title = url = artist = album = date = genre = null;
+            picture = null;
+            pictureHash = 0;
+        }
+
+        /**
+         * Keeps the front cover, or the first picture when there's none
+         */
+        void setPicture(byte[] data, int type) {
+            if(picture != null && (pictureType == PICTURE_FRONT_COVER || type != PICTURE_FRONT_COVER)) return;
 
-            if (!(entry instanceof MdtaMetadataEntry)) continue;
-
-            MdtaMetadataEntry mdta = (MdtaMetadataEntry) entry;
-            String key = mdta.key;
-
-            try {
-              switch (key) {
-                case "com.apple.quicktime.title":
-                  title = new String(mdta.value, StandardCharsets.UTF_8);
-                  break;
-                case "com.apple.quicktime.artist":
-                  artist = new String(mdta.value, StandardCharsets.UTF_8);
-                  break;
-                case "com.apple.quicktime.album":
-                  album = new String(mdta.value, StandardCharsets.UTF_8);
-                  break;
-                case "com.apple.quicktime.creationdate":
-                  date = new String(mdta.value, StandardCharsets.UTF_8);
-                  break;
-                case "com.apple.quicktime.genre":
-                  genre = new String(mdta.value, StandardCharsets.UTF_8);
-                  break;
-              }
-            } catch(Exception ex) {
-                // Ignored
+            picture = data;
+            pictureType = type;
+            pictureHash = hashPicture(data);
+            present = true;
+        }
+
+        /**
+         * Hashes the length and a fixed number of bytes spread over the picture
+         */
+        private static int hashPicture(byte[] data) {
+            int hash = data.length;
+            int step = Math.max(1, data.length / PICTURE_HASH_SAMPLES);
+
+            for(int i = 0; i < data.length; i += step) {
+                hash = 31 * hash + data[i];
             }
+
+            return hash;
+        }
+
+        void copy(Fields other) {
+            present = other.present;
+            title = other.title;
+            url = other.url;
+            artist = other.artist;
+            album = other.album;
+            date = other.date;
+            genre = other.genre;
+            picture = other.picture;
+            pictureType = other.pictureType;
+            pictureHash = other.pictureHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Fields)) return false;
+
+            Fields other = (Fields)obj;
+            return present == other.present && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(url, other.url) && TextUtils.equals(artist, other.artist)
+                    && TextUtils.equals(album, other.album) && TextUtils.equals(date, other.date)
+                    && TextUtils.equals(genre, other.genre) && (picture == null) == (other.picture == null)
+                    && pictureHash == other.pictureHash;
         }
 
-        if (title != null || artist != null || album != null || date != null || genre != null) {
-            manager.onMetadataReceived("quicktime", title, null, artist, album, date, genre);
+        @Override
+        public int hashCode() {
+            return title == null ? 0 : title.hashCode();
         }
     }
 
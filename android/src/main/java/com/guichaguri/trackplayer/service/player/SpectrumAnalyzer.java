@@ -0,0 +1,305 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+
+import com.guichaguri.trackplayer.module.MusicEvents;
+import com.guichaguri.trackplayer.service.MusicService;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the spectrum of the audio being played, for visualizers.
+ *
+ * The samples are tapped from the effects processor into a small ring, only while the analyzer is active.
+ * A background thread takes the latest window at a fixed rate, runs a windowed FFT over preallocated buffers
+ * and groups the magnitudes into logarithmic bins. Frames are sent in batches to keep the bridge traffic low.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public class SpectrumAnalyzer {
+
+    public static final int DEFAULT_FPS = 30;
+    public static final int DEFAULT_BINS = 32;
+    private static final int MAX_FPS = 60;
+    private static final int MAX_BINS = 128;
+
+    static final int FFT_SIZE = 1024;
+    private static final int BATCH_INTERVAL_MS = 100;
+    private static final float MIN_FREQUENCY = 40;
+    private static final float MAX_FREQUENCY = 16000;
+    private static final float MIN_DB = -90;
+
+    private final MusicService service;
+    private final int fps;
+    private final int bins;
+    private final int batchSize;
+
+    private volatile boolean active = false;
+    private HandlerThread thread;
+    private volatile Handler handler;
+
+    // Written by the playback thread, read by the analyzer thread
+    private final Object lock = new Object();
+    private final float[] ring = new float[FFT_SIZE];
+    private int ringPosition = 0;
+    private long samplesWritten = 0;
+    private volatile int sampleRate = 0;
+    private volatile int channelCount = 0;
+    private volatile int encoding = C.ENCODING_INVALID;
+
+    // Only used by the analyzer thread
+    private final float[] latest = new float[FFT_SIZE];
+    private final float[] re = new float[FFT_SIZE];
+    private final float[] im = new float[FFT_SIZE];
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] cos = new float[FFT_SIZE / 2];
+    private final float[] sin = new float[FFT_SIZE / 2];
+    private final int[] reversed = new int[FFT_SIZE];
+    private final int[] binEdges;
+    private int binSampleRate = -1;
+    private final byte[] batch;
+    private int batchFrames = 0;
+    private long samplesRead = 0;
+    private long nextFrameTime = 0;
+
+    private final Runnable frame = this::onFrame;
+
+    public SpectrumAnalyzer(MusicService service, int fps, int bins) {
+        this.service = service;
+        this.fps = Math.max(1, Math.min(fps, MAX_FPS));
+        this.bins = Math.max(1, Math.min(bins, MAX_BINS));
+        this.batchSize = Math.max(1, this.fps * BATCH_INTERVAL_MS / 1000);
+        this.binEdges = new int[this.bins + 1];
+        this.batch = new byte[this.batchSize * this.bins];
+
+        int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+
+        for(int i = 0; i < FFT_SIZE; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+            window[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+        }
+
+        for(int i = 0; i < FFT_SIZE / 2; i++) {
+            cos[i] = (float)Math.cos(2 * Math.PI * i / FFT_SIZE);
+            sin[i] = (float)Math.sin(2 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Starts or stops the analysis. While it's stopped, the processor only checks a flag per buffer.
+     */
+    public void setActive(boolean active) {
+        if(this.active == active) return;
+        this.active = active;
+
+        if(active) {
+            if(thread == null) {
+                thread = new HandlerThread("TrackPlayerSpectrum", Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                handler = new Handler(thread.getLooper());
+            }
+
+            handler.post(frame);
+        } else if(handler != null) {
+            handler.removeCallbacks(frame);
+            handler.post(this::sendBatch);
+        }
+    }
+
+    public void release() {
+        active = false;
+
+        if(thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    /**
+     * Sets the format of the tapped audio, called in the playback thread
+     */
+    public void setFormat(int sampleRateHz, int channelCount, @C.PcmEncoding int encoding) {
+        this.sampleRate = sampleRateHz;
+        this.channelCount = channelCount;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Copies the samples of a buffer into the ring, without changing its position. Called in the playback thread
+     */
+    public void handleBuffer(ByteBuffer buffer) {
+        if(!active) return;
+
+        int channels = channelCount;
+        int sampleSize = encoding == C.ENCODING_PCM_16BIT ? 2 : encoding == C.ENCODING_PCM_FLOAT ? 4 : 0;
+        if(channels <= 0 || sampleSize == 0) return;
+
+        int frameSize = channels * sampleSize;
+        int end = buffer.limit() - frameSize + 1;
+
+        synchronized(lock) {
+            for(int pos = buffer.position(); pos < end; pos += frameSize) {
+                float sum = 0;
+
+                // Downmixed to mono
+                for(int c = 0; c < channels; c++) {
+                    int offset = pos + c * sampleSize;
+                    sum += sampleSize == 2 ? buffer.getShort(offset) / 32768F : buffer.getFloat(offset);
+                }
+
+                ring[ringPosition] = sum / channels;
+                ringPosition = (ringPosition + 1) % FFT_SIZE;
+                samplesWritten++;
+            }
+        }
+    }
+
+    private void onFrame() {
+        if(!active) return;
+
+        // Keeps the cadence, unless the thread fell behind
+        nextFrameTime = Math.max(nextFrameTime, SystemClock.uptimeMillis()) + 1000 / fps;
+
+        boolean hasSamples;
+
+        synchronized(lock) {
+            hasSamples = samplesWritten != samplesRead;
+            samplesRead = samplesWritten;
+
+            if(hasSamples) {
+                // The latest window, from the oldest sample to the newest
+                int tail = FFT_SIZE - ringPosition;
+                System.arraycopy(ring, ringPosition, latest, 0, tail);
+                System.arraycopy(ring, 0, latest, tail, ringPosition);
+            }
+        }
+
+        if(hasSamples) {
+            analyze(latest, sampleRate, batch, batchFrames * bins);
+            batchFrames++;
+            if(batchFrames == batchSize) sendBatch();
+        } else {
+            // Paused or buffering, the frames already computed are sent right away
+            sendBatch();
+        }
+
+        Handler handler = this.handler;
+        if(handler != null) handler.postAtTime(frame, nextFrameTime);
+    }
+
+    /**
+     * Computes the levels of the bins for a window of mono samples, from 0 at -90 dB to 255 at full scale
+     * @param samples The latest {@link #FFT_SIZE} samples
+     * @param levels The array the levels are written to, starting at the offset
+     */
+    void analyze(float[] samples, int rate, byte[] levels, int offset) {
+        for(int i = 0; i < FFT_SIZE; i++) {
+            re[i] = samples[i] * window[i];
+            im[i] = 0;
+        }
+
+        fft(re, im);
+
+        if(rate != binSampleRate) updateBinEdges(rate);
+
+        // A full scale sine reaches N/4 with the Hann window
+        float scale = 4F / FFT_SIZE;
+
+        for(int b = 0; b < bins; b++) {
+            float max = 0;
+
+            for(int i = binEdges[b]; i < binEdges[b + 1]; i++) {
+                float power = re[i] * re[i] + im[i] * im[i];
+                if(power > max) max = power;
+            }
+
+            float db = (float)(10 * Math.log10(max * scale * scale + 1e-12F));
+            float value = (db - MIN_DB) / -MIN_DB;
+            levels[offset + b] = (byte)Math.round(Math.max(0, Math.min(1, value)) * 255);
+        }
+    }
+
+    /**
+     * In-place radix-2 FFT of {@link #FFT_SIZE} values, the imaginary parts start at zero
+     */
+    void fft(float[] re, float[] im) {
+        for(int i = 0; i < FFT_SIZE; i++) {
+            int j = reversed[i];
+            if(j <= i) continue;
+
+            float temp = re[i];
+            re[i] = re[j];
+            re[j] = temp;
+        }
+
+        for(int size = 2; size <= FFT_SIZE; size <<= 1) {
+            int half = size >> 1;
+            int step = FFT_SIZE / size;
+
+            for(int start = 0; start < FFT_SIZE; start += size) {
+                for(int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = -sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+
+                    float tr = wr * re[b] - wi * im[b];
+                    float ti = wr * im[b] + wi * re[b];
+
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the FFT bins in logarithmic ranges, with at least one bin in each
+     */
+    private void updateBinEdges(int rate) {
+        binSampleRate = rate;
+
+        int maxIndex = FFT_SIZE / 2;
+        float nyquist = rate > 0 ? rate / 2F : 22050;
+        float min = MIN_FREQUENCY;
+        float max = Math.min(MAX_FREQUENCY, nyquist);
+
+        binEdges[0] = Math.max(1, Math.round(min / nyquist * maxIndex));
+
+        for(int b = 1; b <= bins; b++) {
+            double frequency = min * Math.pow(max / min, (double)b / bins);
+            int index = (int)Math.round(frequency / nyquist * maxIndex);
+            binEdges[b] = Math.min(maxIndex, Math.max(binEdges[b - 1] + 1, index));
+        }
+    }
+
+    private void sendBatch() {
+        if(batchFrames == 0) return;
+
+        Bundle bundle = new Bundle();
+        bundle.putInt("fps", fps);
+        bundle.putInt("bins", bins);
+        bundle.putInt("frames", batchFrames);
+        bundle.putString("data", Base64.encodeToString(batch, 0, batchFrames * bins, Base64.NO_WRAP));
+        service.emit(MusicEvents.VISUALIZER_FRAMES, bundle);
+
+        batchFrames = 0;
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.guichaguri.trackplayer.service.player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.guichaguri.trackplayer.service.Utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the min and max peaks of a track, used to draw waveforms.
+ *
+ * Remote tracks are decoded through the player cache, so cached spans aren't downloaded again and the missing ones
+ * are cached for the playback.
+ * Peaks are computed in fixed chunks of frames, merged into the buckets at the end, and written to a disk cache
+ * keyed by the source and the number of buckets. They are sent as base64 encoded pairs of signed bytes.
+ *
+ * @author Guichaguri
+ */
+@UnstableApi
+public final class Waveform {
+
+    private static final String DIRECTORY = "TrackPlayerWaveforms";
+    private static final int MAX_FILES = 100;
+    private static final int MAX_BUCKETS = 10_000;
+    private static final int MAX_PENDING = 16;
+    static final int CHUNK_FRAMES = 256;
+
+    // Bounded and in the lowest priority, so decoding never competes with the playback
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_PENDING), (r) -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            r.run();
+        }, "TrackPlayerWaveform");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private Waveform() {}
+
+    /**
+     * Gets the peaks of a track
+     * @param ds The factory the player uses for the track, or null for local tracks
+     */
+    public static void extract(Context context, Uri uri, int buckets, @Nullable DataSource.Factory ds, Promise promise) {
+        if(buckets <= 0 || buckets > MAX_BUCKETS) {
+            promise.reject("invalid_buckets", "The number of buckets must be between 1 and " + MAX_BUCKETS);
+            return;
+        }
+
+        File dir = new File(context.getCacheDir(), DIRECTORY);
+
+        try {
+            executor.execute(() -> {
+                try {
+                    promise.resolve(Arguments.fromBundle(getPeaks(context, dir, uri, buckets, ds)));
+                } catch(IOException | RuntimeException | NoSuchAlgorithmException ex) {
+                    Log.w(Utils.LOG, "Couldn't extract the waveform of " + uri, ex);
+                    promise.reject("waveform_failed", "The waveform couldn't be extracted", ex);
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            promise.reject("waveform_busy", "Too many waveforms are being extracted");
+        }
+    }
+
+    private static Bundle getPeaks(Context context, File dir, Uri uri, int buckets,
+                                   @Nullable DataSource.Factory ds) throws IOException, NoSuchAlgorithmException {
+        String key = uri.toString();
+        File file = new File(dir, hash(key + '\n' + buckets));
+
+        if(file.exists()) {
+            try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                long duration = in.readLong();
+                byte[] peaks = new byte[buckets * 2];
+                in.readFully(peaks);
+
+                // Keeps the recently used waveforms from being trimmed
+                file.setLastModified(System.currentTimeMillis());
+                return toBundle(duration, peaks);
+            } catch(IOException ex) {
+                // Extracts it again
+                file.delete();
+            }
+        }
+
+        PeakCollector collector = new PeakCollector();
+
+        if(ds != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PcmDecoder.decode(ds.createDataSource(), uri, collector);
+        } else {
+            PcmDecoder.decode(context, uri, collector);
+        }
+
+        long duration = collector.getDurationMs();
+        byte[] peaks = collector.toBuckets(buckets);
+
+        if(dir.exists() || dir.mkdirs()) {
+            // Written to a temporary file first, so a partial waveform is never read
+            File temp = new File(dir, file.getName() + ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeLong(duration);
+                out.write(peaks);
+            }
+
+            if(temp.renameTo(file)) {
+                trim(dir);
+            } else {
+                temp.delete();
+            }
+        }
+
+        return toBundle(duration, peaks);
+    }
+
+    private static Bundle toBundle(long duration, byte[] peaks) {
+        Bundle bundle = new Bundle();
+        bundle.putDouble("duration", Utils.toSeconds(duration));
+        bundle.putInt("buckets", peaks.length / 2);
+        bundle.putString("peaks", Base64.encodeToString(peaks, Base64.NO_WRAP));
+        return bundle;
+    }
+
+    private static String hash(String key) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+
+        for(byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Deletes the least recently used waveforms over the limit
+     */
+    private static void trim(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null || files.length <= MAX_FILES) return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+        for(int i = 0; i < files.length - MAX_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Keeps the min and max of every chunk of frames in primitive arrays
+     */
+    static class PeakCollector implements PcmDecoder.Listener {
+
+        private short[] min = new short[4096];
+        private short[] max = new short[4096];
+        private int chunks = 0;
+
+        private int channels = 1;
+        private int sampleRate = 0;
+        private long durationUs = C.TIME_UNSET;
+        private long frames = 0;
+
+        private int chunkFrames = 0;
+        private short chunkMin = 0, chunkMax = 0;
+
+        @Override
+        public void onFormat(int sampleRate, int channelCount, long durationUs) {
+            this.sampleRate = sampleRate;
+            this.channels = Math.max(channelCount, 1);
+            this.durationUs = durationUs;
+        }
+
+        @Override
+        public void onSamples(ShortBuffer samples) {
+            while(samples.remaining() >= channels) {
+                for(int c = 0; c < channels; c++) {
+                    short sample = samples.get();
+                    if(sample < chunkMin) chunkMin = sample;
+                    if(sample > chunkMax) chunkMax = sample;
+                }
+
+                frames++;
+                if(++chunkFrames == CHUNK_FRAMES) addChunk();
+            }
+        }
+
+        private void addChunk() {
+            if(chunks == min.length) {
+                min = Arrays.copyOf(min, chunks * 2);
+                max = Arrays.copyOf(max, chunks * 2);
+            }
+
+            min[chunks] = chunkMin;
+            max[chunks] = chunkMax;
+            chunks++;
+
+            chunkFrames = 0;
+            chunkMin = chunkMax = 0;
+        }
+
+        long getDurationMs() {
+            if(sampleRate > 0) return frames * 1000 / sampleRate;
+            return durationUs == C.TIME_UNSET ? 0 : durationUs / 1000;
+        }
+
+        /**
+         * Merges the chunks into the buckets, as interleaved min and max pairs
+         */
+        byte[] toBuckets(int buckets) {
+            if(chunkFrames > 0) addChunk();
+
+            byte[] peaks = new byte[buckets * 2];
+
+            for(int b = 0; b < buckets; b++) {
+                int start = (int)((long)b * chunks / buckets);
+                int end = Math.max(start + 1, (int)((long)(b + 1) * chunks / buckets));
+                short bucketMin = 0, bucketMax = 0;
+
+                for(int i = start; i < end && i < chunks; i++) {
+                    if(min[i] < bucketMin) bucketMin = min[i];
+                    if(max[i] > bucketMax) bucketMax = max[i];
+                }
+
+                peaks[b * 2] = (byte)(bucketMin >> 8);
+                peaks[b * 2 + 1] = (byte)(bucketMax >> 8);
+            }
+
+            return peaks;
+        }
+    }
+
+}
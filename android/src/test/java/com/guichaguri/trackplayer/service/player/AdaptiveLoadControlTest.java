@@ -0,0 +1,120 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Timeline;
+import androidx.media3.exoplayer.LoadControl;
+import androidx.media3.exoplayer.analytics.PlayerId;
+import androidx.media3.exoplayer.source.MediaSource.MediaPeriodId;
+import androidx.media3.exoplayer.upstream.BandwidthMeter;
+
+import com.guichaguri.trackplayer.service.Utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveLoadControlTest {
+
+    private static final int MIN_BUFFER_MS = 15000;
+    private static final int MAX_BUFFER_MS = 50000;
+    private static final int PLAY_BUFFER_MS = 2500;
+    private static final int PLAY_AFTER_REBUFFER_MS = 5000;
+    private static final int METERED_MAX_BUFFER_MS = 20000;
+    private static final int TARGET_BYTES = 64 * 1024 * 1024;
+
+    private BandwidthMeter bandwidthMeter;
+
+    @Before
+    public void setUp() {
+        bandwidthMeter = mock(BandwidthMeter.class);
+        when(bandwidthMeter.getBitrateEstimate()).thenReturn(1_000_000L);
+    }
+
+    private AdaptiveLoadControl create(boolean adaptive) {
+        AdaptiveLoadControl control = new AdaptiveLoadControl(bandwidthMeter, adaptive, MIN_BUFFER_MS, MAX_BUFFER_MS,
+                PLAY_BUFFER_MS, PLAY_AFTER_REBUFFER_MS, 0, METERED_MAX_BUFFER_MS, TARGET_BYTES, false);
+        control.onPrepared(PlayerId.UNSET);
+        return control;
+    }
+
+    private static LoadControl.Parameters params(long bufferedMs, boolean rebuffering) {
+        return new LoadControl.Parameters(PlayerId.UNSET, Timeline.EMPTY, new MediaPeriodId(new Object()),
+                0, bufferedMs * 1000, 1, true, rebuffering, C.TIME_UNSET);
+    }
+
+    @Test
+    public void loadsUntilMaxOnceBelowMin() {
+        AdaptiveLoadControl control = create(false);
+
+        assertTrue(control.shouldContinueLoading(params(MIN_BUFFER_MS - 1, false)));
+        // Keeps loading between the targets
+        assertTrue(control.shouldContinueLoading(params(MIN_BUFFER_MS + 1000, false)));
+        assertFalse(control.shouldContinueLoading(params(MAX_BUFFER_MS, false)));
+        // Waits until it drops below the minimum again
+        assertFalse(control.shouldContinueLoading(params(MIN_BUFFER_MS + 1000, false)));
+    }
+
+    @Test
+    public void fillsWholeBufferOnUnmeteredNetwork() {
+        AdaptiveLoadControl control = create(true);
+        control.setNetworkType(Utils.NETWORK_UNMETERED);
+
+        // The minimum is raised to the maximum
+        assertTrue(control.shouldContinueLoading(params(MIN_BUFFER_MS + 1000, false)));
+        assertFalse(control.shouldContinueLoading(params(MAX_BUFFER_MS, false)));
+    }
+
+    @Test
+    public void shortensBufferOnFastMeteredNetwork() {
+        when(bandwidthMeter.getBitrateEstimate()).thenReturn(10_000_000L);
+
+        AdaptiveLoadControl control = create(true);
+        control.setNetworkType(Utils.NETWORK_METERED);
+
+        assertTrue(control.shouldContinueLoading(params(MIN_BUFFER_MS - 1, false)));
+        assertTrue(control.shouldContinueLoading(params(METERED_MAX_BUFFER_MS - 1000, false)));
+        // The maximum is lowered to the metered one
+        assertFalse(control.shouldContinueLoading(params(METERED_MAX_BUFFER_MS, false)));
+    }
+
+    @Test
+    public void keepsBufferOnSlowMeteredNetwork() {
+        AdaptiveLoadControl control = create(true);
+        control.setNetworkType(Utils.NETWORK_METERED);
+
+        assertTrue(control.shouldContinueLoading(params(MIN_BUFFER_MS - 1, false)));
+        assertTrue(control.shouldContinueLoading(params(METERED_MAX_BUFFER_MS, false)));
+    }
+
+    @Test
+    public void startsPlaybackAtPlayBuffer() {
+        AdaptiveLoadControl control = create(false);
+
+        assertFalse(control.shouldStartPlayback(params(PLAY_BUFFER_MS - 1, false)));
+        assertTrue(control.shouldStartPlayback(params(PLAY_BUFFER_MS, false)));
+    }
+
+    @Test
+    public void requiresMoreDataAfterRebuffer() {
+        AdaptiveLoadControl control = create(true);
+
+        // The first rebuffer doubles the target after rebuffering
+        assertFalse(control.shouldStartPlayback(params(PLAY_AFTER_REBUFFER_MS, true)));
+        assertTrue(control.shouldStartPlayback(params(PLAY_AFTER_REBUFFER_MS * 2, true)));
+    }
+
+    @Test
+    public void ignoresRebuffersWhenNotAdaptive() {
+        AdaptiveLoadControl control = create(false);
+
+        assertTrue(control.shouldStartPlayback(params(PLAY_AFTER_REBUFFER_MS, true)));
+    }
+
+}
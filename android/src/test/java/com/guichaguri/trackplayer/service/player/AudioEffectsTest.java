@@ -0,0 +1,89 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+
+@RunWith(RobolectricTestRunner.class)
+public class AudioEffectsTest {
+
+    private static Bundle band(double frequency, double gain, double q) {
+        Bundle band = new Bundle();
+        band.putDouble("frequency", frequency);
+        band.putDouble("gain", gain);
+        band.putDouble("q", q);
+        return band;
+    }
+
+    private static Bundle equalizer(Bundle... bands) {
+        ArrayList<Bundle> list = new ArrayList<>();
+        for(Bundle band : bands) list.add(band);
+
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList("equalizer", list);
+        return bundle;
+    }
+
+    @Test
+    public void inactiveEffectsAreNone() {
+        assertSame(AudioEffects.NONE, AudioEffects.fromBundle(null));
+        assertSame(AudioEffects.NONE, AudioEffects.fromBundle(new Bundle()));
+        assertSame(AudioEffects.NONE, AudioEffects.fromBundle(equalizer(band(1000, 0, 1))));
+        assertFalse(AudioEffects.NONE.isActive());
+    }
+
+    @Test
+    public void clampsGains() {
+        Bundle bundle = equalizer(band(100, 40, 1), band(1000, -40, 1), band(5000, 6, 1));
+        bundle.putDouble("bassBoost", 100);
+
+        AudioEffects effects = AudioEffects.fromBundle(bundle);
+
+        assertTrue(effects.isActive());
+        assertEquals(24, effects.gains[0], 0);
+        assertEquals(-24, effects.gains[1], 0);
+        assertEquals(6, effects.gains[2], 0);
+        assertEquals(24, effects.bassBoost, 0);
+    }
+
+    @Test
+    public void clampsQ() {
+        AudioEffects effects = AudioEffects.fromBundle(equalizer(band(1000, 3, 0), band(2000, 3, -1), band(4000, 3, 2)));
+
+        assertEquals(0.1, effects.qs[0], 1e-6);
+        assertEquals(0.1, effects.qs[1], 1e-6);
+        assertEquals(2, effects.qs[2], 1e-6);
+    }
+
+    @Test
+    public void limitsBandCount() {
+        Bundle[] bands = new Bundle[AudioEffects.MAX_BANDS + 5];
+        for(int i = 0; i < bands.length; i++) bands[i] = band(100 * (i + 1), 1, 1);
+
+        AudioEffects effects = AudioEffects.fromBundle(equalizer(bands));
+
+        assertEquals(AudioEffects.MAX_BANDS, effects.getBandCount());
+    }
+
+    @Test
+    public void monoIsActive() {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean("mono", true);
+
+        AudioEffects effects = AudioEffects.fromBundle(bundle);
+
+        assertTrue(effects.isActive());
+        assertTrue(effects.mono);
+        assertEquals(0, effects.getBandCount());
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.media3.common.C;
+import androidx.media3.extractor.metadata.id3.ChapterFrame;
+import androidx.media3.extractor.metadata.id3.ChapterTocFrame;
+import androidx.media3.extractor.metadata.id3.Id3Frame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ChapterIndexTest {
+
+    private static ChapterFrame chapter(String id, int start, int end) {
+        return new ChapterFrame(id, start, end, C.INDEX_UNSET, C.INDEX_UNSET, new Id3Frame[0]);
+    }
+
+    @Test
+    public void buildsEmptyIndexWithoutChapters() {
+        ChapterIndex index = ChapterIndex.build(Collections.emptyList(), Collections.emptyList());
+
+        assertSame(ChapterIndex.EMPTY, index);
+        assertTrue(index.isEmpty());
+        assertEquals(C.INDEX_UNSET, index.indexOf(1000));
+        assertEquals(C.TIME_UNSET, index.getNextStart(0));
+    }
+
+    @Test
+    public void sortsChaptersByStart() {
+        List<ChapterFrame> chapters = Arrays.asList(
+                chapter("c", 20000, 30000),
+                chapter("a", 0, 10000),
+                chapter("b", 10000, 20000));
+
+        ChapterIndex index = ChapterIndex.build(chapters, Collections.emptyList());
+
+        assertEquals(3, index.size());
+        assertEquals(0, index.getStart(0));
+        assertEquals(10000, index.getStart(1));
+        assertEquals(20000, index.getStart(2));
+    }
+
+    @Test
+    public void keepsOnlyChaptersInOrderedRootToc() {
+        List<ChapterFrame> chapters = Arrays.asList(
+                chapter("a", 0, 10000),
+                chapter("hidden", 5000, 6000),
+                chapter("b", 10000, 20000));
+        ChapterTocFrame toc = new ChapterTocFrame("toc", true, true, new String[] {"a", "b"}, new Id3Frame[0]);
+
+        ChapterIndex index = ChapterIndex.build(chapters, Collections.singletonList(toc));
+
+        assertEquals(2, index.size());
+        assertEquals(0, index.getStart(0));
+        assertEquals(10000, index.getStart(1));
+    }
+
+    @Test
+    public void findsChapterOfPosition() {
+        ChapterIndex index = ChapterIndex.build(Arrays.asList(
+                chapter("a", 1000, 10000),
+                chapter("b", 10000, 20000),
+                chapter("c", 20000, 30000)), Collections.emptyList());
+
+        assertEquals(C.INDEX_UNSET, index.indexOf(0));
+        assertEquals(0, index.indexOf(1000));
+        assertEquals(0, index.indexOf(9999));
+        assertEquals(1, index.indexOf(10000));
+        assertEquals(2, index.indexOf(25000));
+        assertEquals(2, index.indexOf(99999));
+    }
+
+    @Test
+    public void findsNextStart() {
+        ChapterIndex index = ChapterIndex.build(Arrays.asList(
+                chapter("a", 1000, 10000),
+                chapter("b", 10000, 20000)), Collections.emptyList());
+
+        assertEquals(1000, index.getNextStart(0));
+        assertEquals(10000, index.getNextStart(1000));
+        assertEquals(10000, index.getNextStart(9999));
+        assertEquals(C.TIME_UNSET, index.getNextStart(10000));
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+
+import androidx.media3.common.C;
+import androidx.media3.common.audio.AudioProcessor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class EffectsAudioProcessorTest {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    private static EffectsAudioProcessor createProcessor(int channels) throws Exception {
+        EffectsAudioProcessor processor = new EffectsAudioProcessor();
+        configure(processor, channels);
+        return processor;
+    }
+
+    private static void configure(EffectsAudioProcessor processor, int channels) throws Exception {
+        processor.configure(new AudioProcessor.AudioFormat(SAMPLE_RATE, channels, C.ENCODING_PCM_FLOAT));
+        processor.flush();
+    }
+
+    private static AudioEffects peaking(double frequency, double gain) {
+        Bundle band = new Bundle();
+        band.putDouble("frequency", frequency);
+        band.putDouble("gain", gain);
+        band.putDouble("q", 1);
+
+        ArrayList<Bundle> bands = new ArrayList<>();
+        bands.add(band);
+
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList("equalizer", bands);
+        return AudioEffects.fromBundle(bundle);
+    }
+
+    private static AudioEffects mono() {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean("mono", true);
+        return AudioEffects.fromBundle(bundle);
+    }
+
+    private static float[] sine(double frequency, double amplitude, int frames) {
+        float[] samples = new float[frames];
+        for(int i = 0; i < frames; i++) {
+            samples[i] = (float)(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static float[] process(EffectsAudioProcessor processor, float... samples) {
+        ByteBuffer input = ByteBuffer.allocateDirect(samples.length * 4).order(ByteOrder.nativeOrder());
+        for(float sample : samples) input.putFloat(sample);
+        input.flip();
+
+        processor.queueInput(input);
+        ByteBuffer output = processor.getOutput();
+
+        float[] result = new float[output.remaining() / 4];
+        for(int i = 0; i < result.length; i++) result[i] = output.getFloat(output.position() + i * 4);
+        return result;
+    }
+
+    private static float peak(float[] samples, int from) {
+        float peak = 0;
+        for(int i = from; i < samples.length; i++) peak = Math.max(peak, Math.abs(samples[i]));
+        return peak;
+    }
+
+    @Test
+    public void passesThroughWithoutEffects() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(2);
+        float[] input = {0.1F, -0.2F, 0.3F, -0.4F, 1, -1};
+
+        float[] output = process(processor, input);
+
+        for(int i = 0; i < input.length; i++) assertEquals(input[i], output[i], 0);
+    }
+
+    @Test
+    public void peakingFilterBoostsTheBand() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(1);
+        processor.setEffects(peaking(1000, 12));
+
+        // Half a second to let the filter settle, the peak is measured at the end
+        float[] output = process(processor, sine(1000, 0.1, SAMPLE_RATE / 2));
+
+        assertEquals(0.1 * Math.pow(10, 12 / 20D), peak(output, output.length - SAMPLE_RATE / 100), 0.005);
+    }
+
+    @Test
+    public void peakingFilterKeepsOtherFrequencies() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(1);
+        processor.setEffects(peaking(1000, 12));
+
+        float[] output = process(processor, sine(20, 0.1, SAMPLE_RATE / 2));
+
+        assertEquals(0.1, peak(output, output.length - SAMPLE_RATE / 10), 0.005);
+    }
+
+    @Test
+    public void rampsTheGain() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(1);
+        processor.setGain(0.5F);
+
+        float[] input = new float[SAMPLE_RATE / 10];
+        Arrays.fill(input, 1);
+        float[] output = process(processor, input);
+
+        // Lowered over 20 ms instead of jumping
+        int rampFrames = SAMPLE_RATE * 20 / 1000;
+        assertTrue(output[0] > 0.99F);
+        assertTrue(output[rampFrames / 2] > 0.7F && output[rampFrames / 2] < 0.8F);
+
+        for(int i = 1; i < output.length; i++) assertTrue(output[i] <= output[i - 1]);
+        for(int i = rampFrames; i < output.length; i++) assertEquals(0.5F, output[i], 1e-4);
+    }
+
+    @Test
+    public void drainsDisabledFilters() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(1);
+        processor.setEffects(peaking(1000, 12));
+        process(processor, sine(1000, 0.5, 1000));
+
+        processor.setEffects(AudioEffects.NONE);
+        float[] input = sine(1000, 0.5, 100);
+        float[] output = process(processor, input);
+
+        // The stored state of the filter is played in the first two samples, then the input is untouched
+        assertTrue(output[0] != input[0] || output[1] != input[1]);
+        for(int i = 2; i < input.length; i++) assertEquals(input[i], output[i], 0);
+
+        // Drained filters are skipped
+        output = process(processor, input);
+        for(int i = 0; i < input.length; i++) assertEquals(input[i], output[i], 0);
+    }
+
+    @Test
+    public void downmixFollowsTheChannelCount() throws Exception {
+        EffectsAudioProcessor processor = createProcessor(1);
+        processor.setEffects(mono());
+
+        float[] output = process(processor, 0.5F, -0.1F);
+        assertEquals(0.5F, output[0], 0);
+        assertEquals(-0.1F, output[1], 0);
+
+        // The next track is stereo, while the effects are the same
+        configure(processor, 2);
+
+        output = process(processor, 0.5F, -0.1F);
+        assertEquals(0.2F, output[0], 1e-6);
+        assertEquals(0.2F, output[1], 1e-6);
+    }
+
+}
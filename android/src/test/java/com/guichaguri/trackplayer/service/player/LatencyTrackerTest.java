@@ -0,0 +1,71 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LatencyTrackerTest {
+
+    @Test
+    public void countsValuesInBuckets() {
+        LatencyTracker.Histogram histogram = new LatencyTracker.Histogram();
+        histogram.add(0);
+        histogram.add(50);
+        histogram.add(51);
+        histogram.add(20000);
+
+        double[] counts = histogram.toBundle().getDoubleArray("counts");
+
+        assertEquals(13, counts.length);
+        assertEquals(2, counts[0], 0);
+        assertEquals(1, counts[1], 0);
+        assertEquals(1, counts[12], 0);
+    }
+
+    @Test
+    public void aggregatesValues() {
+        LatencyTracker.Histogram histogram = new LatencyTracker.Histogram();
+        histogram.add(40);
+        histogram.add(80);
+        histogram.add(150);
+        histogram.add(130);
+
+        Bundle bundle = histogram.toBundle();
+
+        assertEquals(4, bundle.getDouble("count"), 0);
+        assertEquals(40, bundle.getDouble("min"), 0);
+        assertEquals(150, bundle.getDouble("max"), 0);
+        assertEquals(100, bundle.getDouble("mean"), 0);
+        assertArrayEquals(new double[] {50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000},
+                bundle.getDoubleArray("buckets"), 0);
+    }
+
+    @Test
+    public void estimatesPercentilesFromBuckets() {
+        LatencyTracker.Histogram histogram = new LatencyTracker.Histogram();
+        histogram.add(40);
+        histogram.add(80);
+        histogram.add(150);
+        histogram.add(20000);
+
+        // The upper bound of the bucket holding the second value
+        assertEquals(100, histogram.percentile(0.5));
+        assertEquals(20000, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        LatencyTracker.Histogram histogram = new LatencyTracker.Histogram();
+        histogram.add(10);
+        histogram.add(20);
+
+        assertEquals(20, histogram.percentile(0.9));
+    }
+
+}
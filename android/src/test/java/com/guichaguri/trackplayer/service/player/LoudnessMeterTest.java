@@ -0,0 +1,119 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+public class LoudnessMeterTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    /**
+     * Adds a 997 Hz stereo sine, the reference tone of BS.1770
+     */
+    private static void addSine(LoudnessMeter meter, double amplitude, int seconds) {
+        addSine(meter, amplitude, seconds, CHANNELS, 0, 1);
+    }
+
+    /**
+     * Adds a 997 Hz sine to the given channels, leaving the others silent
+     */
+    private static void addSine(LoudnessMeter meter, double amplitude, int seconds, int channelCount, int... channels) {
+        short[] samples = new short[SAMPLE_RATE * channelCount];
+
+        for(int s = 0; s < seconds; s++) {
+            for(int i = 0; i < SAMPLE_RATE; i++) {
+                double t = (double)(s * SAMPLE_RATE + i) / SAMPLE_RATE;
+                short value = (short)Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * 997 * t));
+                for(int c : channels) samples[i * channelCount + c] = value;
+            }
+
+            meter.add(ShortBuffer.wrap(samples), channelCount);
+        }
+    }
+
+    private static LoudnessMeter createMeter() {
+        return createMeter(CHANNELS);
+    }
+
+    private static LoudnessMeter createMeter(int channelCount) {
+        LoudnessMeter meter = new LoudnessMeter();
+        meter.setFormat(SAMPLE_RATE, channelCount);
+        return meter;
+    }
+
+    @Test
+    public void measuresReferenceTone() {
+        LoudnessMeter meter = createMeter();
+        addSine(meter, 0.1, 10);
+
+        // -20 dBFS on both channels
+        assertEquals(-20, meter.getLoudness(), 0.3);
+        assertEquals(0.1, meter.getPeak(), 0.001);
+    }
+
+    @Test
+    public void silenceHasNoLoudness() {
+        LoudnessMeter meter = createMeter();
+        meter.add(ShortBuffer.wrap(new short[SAMPLE_RATE * CHANNELS * 5]), CHANNELS);
+
+        assertTrue(Double.isNaN(meter.getLoudness()));
+    }
+
+    @Test
+    public void tooShortHasNoLoudness() {
+        LoudnessMeter meter = createMeter();
+        short[] samples = new short[SAMPLE_RATE / 10 * CHANNELS];
+        for(int i = 0; i < samples.length; i++) samples[i] = 10000;
+        meter.add(ShortBuffer.wrap(samples), CHANNELS);
+
+        // Not enough for a single 400ms block
+        assertTrue(Double.isNaN(meter.getLoudness()));
+    }
+
+    @Test
+    public void absoluteGateIgnoresQuietBlocks() {
+        LoudnessMeter meter = createMeter();
+        addSine(meter, Math.pow(10, -80 / 20D), 5);
+
+        assertTrue(Double.isNaN(meter.getLoudness()));
+    }
+
+    @Test
+    public void relativeGateIgnoresQuietParts() {
+        LoudnessMeter meter = createMeter();
+        addSine(meter, 0.1, 10);
+        addSine(meter, 0.001, 10);
+
+        // The -60 dBFS part is above the absolute gate, but 40 dB below the rest
+        assertEquals(-20, meter.getLoudness(), 0.5);
+    }
+
+    @Test
+    public void weightsSurroundChannels() {
+        LoudnessMeter front = createMeter(6);
+        addSine(front, 0.1, 5, 6, 0);
+
+        LoudnessMeter surround = createMeter(6);
+        addSine(surround, 0.1, 5, 6, 4);
+
+        // A surround channel counts 1.41 times, about 1.5 dB more than a front one
+        assertEquals(-23, front.getLoudness(), 0.3);
+        assertEquals(10 * Math.log10(1.41), surround.getLoudness() - front.getLoudness(), 0.01);
+    }
+
+    @Test
+    public void leavesOutLfe() {
+        LoudnessMeter meter = createMeter(6);
+        addSine(meter, 0.1, 5, 6, 3);
+
+        assertTrue(Double.isNaN(meter.getLoudness()));
+        // The LFE still counts for the peak
+        assertEquals(0.1, meter.getPeak(), 0.001);
+    }
+
+}
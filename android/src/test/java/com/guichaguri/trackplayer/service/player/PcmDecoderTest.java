@@ -0,0 +1,125 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.media.AudioFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class PcmDecoderTest {
+
+    private static PcmDecoder.SampleConverter converter(int encoding) throws IOException {
+        PcmDecoder.SampleConverter converter = new PcmDecoder.SampleConverter();
+        converter.setEncoding(encoding);
+        return converter;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+    }
+
+    private static short[] toArray(ShortBuffer samples) {
+        short[] array = new short[samples.remaining()];
+        samples.get(array);
+        return array;
+    }
+
+    @Test
+    public void keeps16BitSamples() throws IOException {
+        ByteBuffer buffer = buffer(6);
+        buffer.putShort((short)1234).putShort(Short.MIN_VALUE).putShort(Short.MAX_VALUE).flip();
+
+        short[] samples = toArray(converter(AudioFormat.ENCODING_PCM_16BIT).convert(buffer));
+
+        assertEquals(3, samples.length);
+        assertEquals(1234, samples[0]);
+        assertEquals(Short.MIN_VALUE, samples[1]);
+        assertEquals(Short.MAX_VALUE, samples[2]);
+    }
+
+    @Test
+    public void converts8BitUnsignedSamples() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {(byte)0x80, (byte)0xFF, 0x00, (byte)0xC0});
+
+        short[] samples = toArray(converter(AudioFormat.ENCODING_PCM_8BIT).convert(buffer));
+
+        assertEquals(0, samples[0]);
+        assertEquals(127 << 8, samples[1]);
+        assertEquals(Short.MIN_VALUE, samples[2]);
+        assertEquals(64 << 8, samples[3]);
+    }
+
+    @Test
+    public void converts24BitPackedSamples() throws IOException {
+        // Little endian, the lowest byte is dropped
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+                0x12, 0x34, 0x56,
+                0x00, 0x00, (byte)0x80,
+                (byte)0xFF, (byte)0xFF, 0x7F,
+                (byte)0xFF, (byte)0xFF, (byte)0xFF
+        });
+
+        short[] samples = toArray(converter(AudioFormat.ENCODING_PCM_24BIT_PACKED).convert(buffer));
+
+        assertEquals(4, samples.length);
+        assertEquals(0x5634, samples[0]);
+        assertEquals(Short.MIN_VALUE, samples[1]);
+        assertEquals(Short.MAX_VALUE, samples[2]);
+        assertEquals(-1, samples[3]);
+    }
+
+    @Test
+    public void converts32BitSamples() throws IOException {
+        ByteBuffer buffer = buffer(12);
+        buffer.putInt(Integer.MAX_VALUE).putInt(Integer.MIN_VALUE).putInt(0x12345678).flip();
+
+        short[] samples = toArray(converter(AudioFormat.ENCODING_PCM_32BIT).convert(buffer));
+
+        assertEquals(Short.MAX_VALUE, samples[0]);
+        assertEquals(Short.MIN_VALUE, samples[1]);
+        assertEquals(0x1234, samples[2]);
+    }
+
+    @Test
+    public void convertsAndClampsFloatSamples() throws IOException {
+        ByteBuffer buffer = buffer(20);
+        buffer.putFloat(0).putFloat(0.5F).putFloat(-1).putFloat(2).putFloat(-3).flip();
+
+        short[] samples = toArray(converter(AudioFormat.ENCODING_PCM_FLOAT).convert(buffer));
+
+        assertEquals(0, samples[0]);
+        assertEquals(Short.MAX_VALUE / 2, samples[1]);
+        assertEquals(-Short.MAX_VALUE, samples[2]);
+        assertEquals(Short.MAX_VALUE, samples[3]);
+        assertEquals(-Short.MAX_VALUE, samples[4]);
+    }
+
+    @Test
+    public void reusesTheSampleArray() throws IOException {
+        PcmDecoder.SampleConverter converter = converter(AudioFormat.ENCODING_PCM_FLOAT);
+
+        ByteBuffer buffer = buffer(16);
+        buffer.putFloat(0.1F).putFloat(0.2F).putFloat(0.3F).putFloat(0.4F).flip();
+        short[] first = converter.convert(buffer).array();
+
+        // A smaller buffer fits in the same array
+        buffer = buffer(8);
+        buffer.putFloat(0.5F).putFloat(0.6F).flip();
+        ShortBuffer second = converter.convert(buffer);
+
+        assertSame(first, second.array());
+        assertEquals(2, second.remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnsupportedEncodings() throws IOException {
+        converter(AudioFormat.ENCODING_AC3);
+    }
+
+}
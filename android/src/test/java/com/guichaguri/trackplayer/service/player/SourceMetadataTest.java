@@ -0,0 +1,97 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import androidx.media3.common.Metadata;
+import androidx.media3.extractor.metadata.icy.IcyInfo;
+import androidx.media3.extractor.metadata.id3.TextInformationFrame;
+
+import com.guichaguri.trackplayer.service.MusicManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+@RunWith(RobolectricTestRunner.class)
+public class SourceMetadataTest {
+
+    private MusicManager manager;
+    private SourceMetadata metadata;
+
+    @Before
+    public void setUp() {
+        manager = mock(MusicManager.class);
+        metadata = new SourceMetadata(RuntimeEnvironment.getApplication(), manager, mock(ExoPlayback.class));
+    }
+
+    private static Metadata icy(String title) {
+        return new Metadata(new IcyInfo(new byte[0], title, null));
+    }
+
+    private static Metadata id3Title(String title) {
+        return new Metadata(new TextInformationFrame("TIT2", null, Collections.singletonList(title)));
+    }
+
+    private void verifyIcy(String artist, String title, int times) {
+        verify(manager, times(times)).onMetadataReceived(eq("icy"), eq(title), isNull(), eq(artist),
+                isNull(), isNull(), isNull(), isNull());
+    }
+
+    @Test
+    public void sendsRepeatedMetadataOnce() {
+        metadata.handleMetadata(icy("Artist - Title"));
+        metadata.handleMetadata(icy("Artist - Title"));
+        metadata.handleMetadata(icy("Artist - Title"));
+
+        verifyIcy("Artist", "Title", 1);
+    }
+
+    @Test
+    public void sendsChangedMetadata() {
+        metadata.handleMetadata(icy("Artist - Title"));
+        metadata.handleMetadata(icy("Artist - Other"));
+        metadata.handleMetadata(icy("Artist - Title"));
+
+        verifyIcy("Artist", "Title", 2);
+        verifyIcy("Artist", "Other", 1);
+    }
+
+    @Test
+    public void sendsAgainAfterReset() {
+        metadata.handleMetadata(icy("Artist - Title"));
+        metadata.reset();
+        metadata.handleMetadata(icy("Artist - Title"));
+
+        verifyIcy("Artist", "Title", 2);
+    }
+
+    @Test
+    public void deduplicatesEachSourceSeparately() {
+        metadata.handleMetadata(id3Title("Title"));
+        metadata.handleMetadata(icy("Title"));
+        metadata.handleMetadata(id3Title("Title"));
+
+        verify(manager, times(1)).onMetadataReceived(eq("id3"), eq("Title"), isNull(), isNull(),
+                isNull(), isNull(), isNull(), isNull());
+        verifyIcy(null, "Title", 1);
+    }
+
+    @Test
+    public void ignoresUnknownEntries() {
+        metadata.handleMetadata(new Metadata(new TextInformationFrame("TXXX", "custom", Collections.singletonList("value"))));
+
+        verify(manager, never()).onMetadataReceived(anyString(), any(), any(), any(), any(), any(), any(), any());
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SpectrumAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FFT_SIZE = SpectrumAnalyzer.FFT_SIZE;
+    private static final int BINS = 32;
+
+    private static SpectrumAnalyzer createAnalyzer() {
+        // The service is only used to send the batches
+        return new SpectrumAnalyzer(null, 30, BINS);
+    }
+
+    private static float[] sine(double frequency, double amplitude) {
+        float[] samples = new float[FFT_SIZE];
+        for(int i = 0; i < FFT_SIZE; i++) {
+            samples[i] = (float)(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static int[] analyze(SpectrumAnalyzer analyzer, float[] samples) {
+        byte[] levels = new byte[BINS];
+        analyzer.analyze(samples, SAMPLE_RATE, levels, 0);
+
+        int[] values = new int[BINS];
+        for(int b = 0; b < BINS; b++) values[b] = levels[b] & 0xFF;
+        return values;
+    }
+
+    private static int loudestBin(int[] levels) {
+        int loudest = 0;
+        for(int b = 1; b < levels.length; b++) {
+            if(levels[b] > levels[loudest]) loudest = b;
+        }
+        return loudest;
+    }
+
+    @Test
+    public void fftMatchesTheDft() {
+        Random random = new Random(42);
+        float[] re = new float[FFT_SIZE];
+        float[] im = new float[FFT_SIZE];
+        for(int i = 0; i < FFT_SIZE; i++) re[i] = random.nextFloat() * 2 - 1;
+
+        float[] input = re.clone();
+        createAnalyzer().fft(re, im);
+
+        for(int k = 0; k < FFT_SIZE; k += 7) {
+            double expectedRe = 0, expectedIm = 0;
+
+            for(int n = 0; n < FFT_SIZE; n++) {
+                double angle = 2 * Math.PI * k * n / FFT_SIZE;
+                expectedRe += input[n] * Math.cos(angle);
+                expectedIm -= input[n] * Math.sin(angle);
+            }
+
+            assertEquals(expectedRe, re[k], 1e-2);
+            assertEquals(expectedIm, im[k], 1e-2);
+        }
+    }
+
+    @Test
+    public void fftOfAnImpulseIsFlat() {
+        float[] re = new float[FFT_SIZE];
+        float[] im = new float[FFT_SIZE];
+        re[0] = 1;
+
+        createAnalyzer().fft(re, im);
+
+        for(int k = 0; k < FFT_SIZE; k++) {
+            assertEquals(1, re[k], 1e-6);
+            assertEquals(0, im[k], 1e-6);
+        }
+    }
+
+    @Test
+    public void fullScaleSineReachesTheTop() {
+        // Centered in the 64th FFT bin
+        int[] levels = analyze(createAnalyzer(), sine(64D * SAMPLE_RATE / FFT_SIZE, 1));
+
+        int loud = 0;
+        for(int level : levels) if(level > 200) loud++;
+
+        assertTrue(levels[loudestBin(levels)] >= 253);
+        // Only the bin of the tone and maybe its neighbor, the Hann window keeps the leakage low
+        assertTrue(loud <= 2);
+    }
+
+    @Test
+    public void levelsFollowTheDecibels() {
+        int[] levels = analyze(createAnalyzer(), sine(64D * SAMPLE_RATE / FFT_SIZE, Math.pow(10, -30 / 20D)));
+
+        // -30 dB in a range from -90 to 0
+        assertEquals(170, levels[loudestBin(levels)], 3);
+    }
+
+    @Test
+    public void silenceIsAtTheBottom() {
+        int[] levels = analyze(createAnalyzer(), new float[FFT_SIZE]);
+
+        for(int level : levels) assertEquals(0, level);
+    }
+
+    @Test
+    public void binsAreOrderedByFrequency() {
+        SpectrumAnalyzer analyzer = createAnalyzer();
+
+        int low = loudestBin(analyze(analyzer, sine(100, 0.5)));
+        int middle = loudestBin(analyze(analyzer, sine(1000, 0.5)));
+        int high = loudestBin(analyze(analyzer, sine(8000, 0.5)));
+
+        assertTrue(low < middle);
+        assertTrue(middle < high);
+    }
+
+}
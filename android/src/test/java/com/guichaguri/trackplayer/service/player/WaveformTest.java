@@ -0,0 +1,93 @@
+package com.guichaguri.trackplayer.service.player;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import androidx.media3.common.C;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+public class WaveformTest {
+
+    private static Waveform.PeakCollector createCollector(int channels) {
+        Waveform.PeakCollector collector = new Waveform.PeakCollector();
+        collector.onFormat(44100, channels, C.TIME_UNSET);
+        return collector;
+    }
+
+    /**
+     * Adds mono frames that reach the given peaks, in multiples of 256 so they map to whole bytes
+     */
+    private static void addFrames(Waveform.PeakCollector collector, int frames, int min, int max) {
+        short[] samples = new short[frames];
+        samples[0] = (short)(min * 256);
+        samples[frames - 1] = (short)(max * 256);
+        collector.onSamples(ShortBuffer.wrap(samples));
+    }
+
+    private static void addChunk(Waveform.PeakCollector collector, int min, int max) {
+        addFrames(collector, Waveform.CHUNK_FRAMES, min, max);
+    }
+
+    @Test
+    public void mergesChunksIntoBuckets() {
+        Waveform.PeakCollector collector = createCollector(1);
+        addChunk(collector, -10, 5);
+        addChunk(collector, -2, 20);
+        addChunk(collector, -30, 1);
+        addChunk(collector, 0, 3);
+
+        assertArrayEquals(new byte[] {-10, 20, -30, 3}, collector.toBuckets(2));
+    }
+
+    @Test
+    public void spreadsChunksOverMoreBuckets() {
+        Waveform.PeakCollector collector = createCollector(1);
+        addChunk(collector, -10, 10);
+        addChunk(collector, -20, 20);
+
+        // Every bucket holds at least one chunk
+        assertArrayEquals(new byte[] {-10, 10, -10, 10, -20, 20, -20, 20}, collector.toBuckets(4));
+    }
+
+    @Test
+    public void keepsThePartialLastChunk() {
+        Waveform.PeakCollector collector = createCollector(1);
+        addChunk(collector, -10, 10);
+        addFrames(collector, 10, -5, 40);
+
+        assertArrayEquals(new byte[] {-10, 10, -5, 40}, collector.toBuckets(2));
+    }
+
+    @Test
+    public void readsEveryChannel() {
+        Waveform.PeakCollector collector = createCollector(2);
+        short[] samples = new short[Waveform.CHUNK_FRAMES * 2];
+        samples[0] = 10 * 256;
+        samples[3] = -50 * 256;
+        collector.onSamples(ShortBuffer.wrap(samples));
+
+        assertArrayEquals(new byte[] {-50, 10}, collector.toBuckets(1));
+    }
+
+    @Test
+    public void silenceHasNoPeaks() {
+        Waveform.PeakCollector collector = createCollector(1);
+        collector.onSamples(ShortBuffer.wrap(new short[Waveform.CHUNK_FRAMES * 3]));
+
+        assertArrayEquals(new byte[6], collector.toBuckets(3));
+    }
+
+    @Test
+    public void measuresTheDecodedDuration() {
+        Waveform.PeakCollector collector = new Waveform.PeakCollector();
+        // The container duration is only a fallback
+        collector.onFormat(48000, 2, 5_000_000);
+        collector.onSamples(ShortBuffer.wrap(new short[48000 * 2 * 3]));
+
+        assertEquals(3000, collector.getDurationMs());
+    }
+
+}
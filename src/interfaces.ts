@@ -49,10 +49,66 @@ export interface PlayerOptions {
    * Minimum time in seconds that needs to be buffered to start playing.
    */
   playBuffer?: number
+  /**
+   * Whether the buffer targets should follow the connection type, the measured bandwidth and the rebuffer history.
+   * Defaults to `false`.
+   */
+  adaptiveBuffer?: boolean
+  /**
+   * Maximum time in seconds that is buffered on fast metered connections when `adaptiveBuffer` is enabled.
+   */
+  meteredMaxBuffer?: number
+  /**
+   * Maximum size in kilobytes of the buffered media. Defaults to a size calculated from the selected tracks.
+   */
+  targetBufferSize?: number
+  /**
+   * Whether `minBuffer` is loaded even when it goes over `targetBufferSize`.
+   * Defaults to `false`.
+   */
+  prioritizeTimeOverSize?: boolean
+  /**
+   * Initial bandwidth estimate in kbps, used to pick the first variant of adaptive streams.
+   * Defaults to the last estimate measured on the same connection type.
+   */
+  initialBitrate?: number
+  /**
+   * Minimum bitrate in kbps that adaptive streams won't go below because of the bandwidth estimate.
+   */
+  minBitrate?: number
+  /**
+   * Maximum bitrate in kbps selected for adaptive streams.
+   */
+  maxBitrate?: number
+  /**
+   * Caps the bitrate and prefers the `dataSaverUrl` of tracks on metered connections.
+   */
+  dataSaver?: boolean
+  /**
+   * Maximum bitrate in kbps selected for adaptive streams while the data saver is active.
+   */
+  dataSaverMaxBitrate?: number
+  /**
+   * Minimum time in seconds buffered before switching to a higher quality variant.
+   */
+  minDurationForQualityIncrease?: number
+  /**
+   * Maximum time in seconds buffered for a lower quality variant to not be selected.
+   */
+  maxDurationForQualityDecrease?: number
+  /**
+   * Fraction of the estimated bandwidth considered available for adaptive streams.
+   */
+  bandwidthFraction?: number
   /**
    * Maximum cache size in kilobytes.
    */
   maxCacheSize?: number
+  /**
+   * How remote tracks use the cache. Can be overridden per track.
+   * Defaults to `CachePolicy.Normal`.
+   */
+  cachePolicy?: CachePolicy
   /**
    * [AVAudioSession.Category](https://developer.apple.com/documentation/avfoundation/avaudiosession/1616615-category) for iOS.
    * Sets on `play()`.
@@ -83,11 +139,41 @@ export interface PlayerOptions {
    * Defaults to `true`.
    */
   audioOffload?: boolean
+  /**
+   * Whether the audio goes through the effects set with `setAudioEffects` (android-only).
+   * Defaults to `false`.
+   */
+  audioEffects?: boolean
+  /**
+   * Whether the tracks are normalized to the same loudness, from their ReplayGain or R128 tags or from a background analysis (android-only).
+   * Disables the audio offload. Defaults to `false`.
+   */
+  normalizeLoudness?: boolean
+  /**
+   * Whether the spectrum of the audio can be listened to with `Event.VisualizerFrames` (android-only).
+   * Defaults to `false`.
+   */
+  visualizer?: boolean
+  /**
+   * The rate of the visualizer frames, up to 60 (android-only).
+   * Defaults to `30`.
+   */
+  visualizerFps?: number
+  /**
+   * The number of bins in each visualizer frame, up to 128 (android-only).
+   * Defaults to `32`.
+   */
+  visualizerBins?: number
   /**
    * Indicates whether the player should automatically update now playing metadata data in control center / notification.
    * Defaults to `true`.
    */
   autoUpdateMetadata?: boolean
+  /**
+   * The media session implementation (android-only). `media3` requires `session = true` in the module `build.gradle`.
+   * Defaults to `legacy`.
+   */
+  sessionBackend?: 'legacy' | 'media3'
 }
 
 export enum RatingType {
@@ -154,6 +240,7 @@ export interface MetadataOptions {
   rewindIcon?: ResourceObject
   forwardIcon?: ResourceObject
   color?: number
+  systemTrace?: boolean
 }
 
 export enum Event {
@@ -162,6 +249,12 @@ export enum Event {
   PlaybackQueueEnded = 'playback-queue-ended',
   PlaybackTrackChanged = 'playback-track-changed',
   PlaybackMetadataReceived = 'playback-metadata-received',
+  PlaybackStartup = 'playback-startup',
+  PlaybackLatency = 'playback-latency',
+  PlaybackQoe = 'playback-qoe',
+  ChapterChanged = 'chapter-changed',
+  BrowseChildrenRequest = 'browse-children-request',
+  VisualizerFrames = 'visualizer-frames',
   RemotePlay = 'remote-play',
   RemotePlayId = 'remote-play-id',
   RemotePlaySearch = 'remote-play-search',
@@ -187,6 +280,12 @@ export enum TrackType {
   SmoothStreaming = 'smoothstreaming',
 }
 
+export enum CachePolicy {
+  Normal = 'normal',
+  PreferCache = 'preferCache',
+  CacheOnly = 'cacheOnly',
+}
+
 export enum RepeatMode {
   Off = TrackPlayer.REPEAT_OFF,
   Track = TrackPlayer.REPEAT_TRACK,
@@ -232,8 +331,100 @@ export interface Track extends TrackMetadataBase {
   userAgent?: string
   contentType?: string
   pitchAlgorithm?: PitchAlgorithm
+  cachePolicy?: CachePolicy
+  dataSaverUrl?: string | ResourceObject
+  preview?: boolean
   // eslint-disable-next-line @typescript-eslint/no-explicit-any
   headers?: { [key: string]: any }
   // eslint-disable-next-line @typescript-eslint/no-explicit-any
   [key: string]: any
 }
+
+export interface DebugTraceEvent {
+  /** Milliseconds since the device booted */
+  time: number
+  level: 'debug' | 'info' | 'warn' | 'error'
+  event: string
+  arg1: number
+  arg2: number
+}
+
+export interface Chapter {
+  index: number
+  title?: string
+  /** In seconds */
+  start: number
+  /** In seconds */
+  end: number
+}
+
+export interface Waveform {
+  /** In seconds */
+  duration: number
+  /** The min and max of each bucket, interleaved, from -128 to 127 */
+  peaks: Int8Array
+}
+
+export interface VisualizerFrames {
+  fps: number
+  bins: number
+  /** The magnitudes of each frame, from the oldest to the newest, `bins` values each from 0 (-90 dB) to 255 (0 dB) */
+  frames: Uint8Array[]
+}
+
+export interface EqualizerBand {
+  /** Center frequency in Hz */
+  frequency: number
+  /** Gain in dB, from -24 to 24 */
+  gain: number
+  /** Defaults to 1 */
+  q?: number
+}
+
+export interface AudioEffects {
+  /** Up to 10 bands */
+  equalizer?: EqualizerBand[]
+  /** Gain in dB of the frequencies below 100 Hz, from -24 to 24 */
+  bassBoost?: number
+  /** Whether the channels are mixed down to mono */
+  mono?: boolean
+}
+
+export interface BrowseItem {
+  id: string
+  title?: string
+  subtitle?: string
+  description?: string
+  artwork?: string | ResourceObject
+  /** Whether the item has children. Defaults to `false` */
+  browsable?: boolean
+  /** Whether the item can be played with `remote-play-id`. Defaults to `true` when it's not browsable */
+  playable?: boolean
+}
+
+export interface LatencyHistogram {
+  count: number
+  min: number
+  max: number
+  mean: number
+  p50: number
+  p90: number
+  p99: number
+  /** Upper bounds in milliseconds of each bucket, the last count is for everything above */
+  buckets: number[]
+  counts: number[]
+}
+
+export interface LatencyPhases<T> {
+  sourceCreated?: T
+  prepared?: T
+  firstBytes?: T
+  ready?: T
+  rendering?: T
+}
+
+export interface LatencyStats {
+  start: LatencyPhases<LatencyHistogram>
+  transition: LatencyPhases<LatencyHistogram>
+  seek: LatencyPhases<LatencyHistogram>
+}
@@ -1,4 +1,11 @@
-import { Platform, AppRegistry, DeviceEventEmitter, NativeEventEmitter, NativeModules } from 'react-native'
+import {
+  Platform,
+  AppRegistry,
+  DeviceEventEmitter,
+  EmitterSubscription,
+  NativeEventEmitter,
+  NativeModules,
+} from 'react-native'
 // @ts-ignore
 import * as resolveAssetSource from 'react-native/Libraries/Image/resolveAssetSource'
 import {
@@ -10,12 +17,21 @@ import {
   TrackMetadataBase,
   NowPlayingMetadata,
   RepeatMode,
+  LatencyStats,
+  DebugTraceEvent,
+  Chapter,
+  BrowseItem,
+  AudioEffects,
+  Waveform,
+  VisualizerFrames,
 } from './interfaces'
 
 const { TrackPlayerModule: TrackPlayer } = NativeModules
 const emitter = Platform.OS !== 'android' ? new NativeEventEmitter(TrackPlayer) : DeviceEventEmitter
 
 let isSetupedPlayer = false
+let visualizerListeners = 0
+let browseListeners = 0
 
 // MARK: - Helpers
 
@@ -24,6 +40,27 @@ function resolveImportedPath(path?: number | string) {
   return resolveAssetSource(path) || path
 }
 
+const BASE64 = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/'
+
+function decodeBase64(data: string): Uint8Array {
+  const padding = data.endsWith('==') ? 2 : data.endsWith('=') ? 1 : 0
+  const bytes = new Uint8Array((data.length * 3) / 4 - padding)
+
+  for (let i = 0, j = 0; i < data.length; i += 4) {
+    const n =
+      (BASE64.indexOf(data[i]) << 18) |
+      (BASE64.indexOf(data[i + 1]) << 12) |
+      ((BASE64.indexOf(data[i + 2]) & 63) << 6) |
+      (BASE64.indexOf(data[i + 3]) & 63)
+
+    if (j < bytes.length) bytes[j++] = (n >> 16) & 255
+    if (j < bytes.length) bytes[j++] = (n >> 8) & 255
+    if (j < bytes.length) bytes[j++] = n & 255
+  }
+
+  return bytes
+}
+
 // MARK: - General API
 
 async function setupPlayer(options: PlayerOptions = {}): Promise<void> {
@@ -47,9 +84,55 @@ function registerPlaybackService(factory: () => ServiceHandler) {
   }
 }
 
+/**
+ * Calls the callback once when the subscription is removed
+ */
+function onRemove(subscription: EmitterSubscription, callback: () => void) {
+  const remove = subscription.remove.bind(subscription)
+  let removed = false
+  subscription.remove = () => {
+    remove()
+    if (removed) return
+    removed = true
+    callback()
+  }
+
+  return subscription
+}
+
 // eslint-disable-next-line @typescript-eslint/no-explicit-any
 function addEventListener(event: Event, listener: (data: any) => void) {
-  return emitter.addListener(event, listener)
+  if (Platform.OS !== 'android') {
+    return emitter.addListener(event, listener)
+  }
+
+  if (event === Event.BrowseChildrenRequest) {
+    // The native side keeps the requests until something listens to them
+    const subscription = emitter.addListener(event, listener)
+    if (browseListeners++ === 0) TrackPlayer.setBrowseListening(true)
+
+    return onRemove(subscription, () => {
+      if (--browseListeners === 0) TrackPlayer.setBrowseListening(false)
+    })
+  }
+
+  if (event !== Event.VisualizerFrames) {
+    return emitter.addListener(event, listener)
+  }
+
+  const subscription = emitter.addListener(event, ({ fps, bins, frames, data }) => {
+    const bytes = decodeBase64(data)
+    const list: Uint8Array[] = []
+    for (let i = 0; i < frames; i++) list.push(bytes.subarray(i * bins, (i + 1) * bins))
+    listener({ fps, bins, frames: list } as VisualizerFrames)
+  })
+
+  // The native side only analyzes the audio while something is listening
+  if (visualizerListeners++ === 0) TrackPlayer.setVisualizerSubscribed(true)
+
+  return onRemove(subscription, () => {
+    if (--visualizerListeners === 0) TrackPlayer.setVisualizerSubscribed(false)
+  })
 }
 
 // MARK: - Queue API
@@ -195,6 +278,50 @@ async function setRepeatMode(mode: RepeatMode): Promise<RepeatMode> {
   return TrackPlayer.setRepeatMode(mode)
 }
 
+async function skipToChapter(chapterIndex: number): Promise<void> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return Promise.resolve()
+  return TrackPlayer.skipToChapter(chapterIndex)
+}
+
+async function skipToNextChapter(): Promise<void> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return Promise.resolve()
+  return TrackPlayer.skipToNextChapter()
+}
+
+async function skipToPreviousChapter(): Promise<void> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return Promise.resolve()
+  return TrackPlayer.skipToPreviousChapter()
+}
+
+async function setAudioEffects(effects: AudioEffects): Promise<void> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return Promise.resolve()
+  return TrackPlayer.setAudioEffects(effects)
+}
+
+// MARK: - Browse API
+
+/**
+ * Answers a `browse-children-request` event with a page of children.
+ * Pass `null` when the children can't be loaded.
+ */
+async function setBrowseChildren(requestId: number, items: BrowseItem[] | null): Promise<void> {
+  if (Platform.OS !== 'android') return Promise.resolve()
+
+  if (items) {
+    items = items.map((item) => ({ ...item, artwork: resolveImportedPath(item.artwork) }))
+  }
+
+  return TrackPlayer.setBrowseChildren(requestId, items)
+}
+
+/**
+ * Drops the cached children of a node and makes the controllers load them again.
+ */
+async function notifyBrowseChildrenChanged(parentId: string): Promise<void> {
+  if (Platform.OS !== 'android') return Promise.resolve()
+  return TrackPlayer.notifyBrowseChildrenChanged(parentId)
+}
+
 // MARK: - Getters
 
 async function getVolume(): Promise<number> {
@@ -261,6 +388,27 @@ async function clearCache(): Promise<void> {
   return TrackPlayer.clearCache()
 }
 
+async function getDebugTrace(): Promise<DebugTraceEvent[]> {
+  if (Platform.OS !== 'android') return []
+  return TrackPlayer.getDebugTrace()
+}
+
+async function getLatencyStats(): Promise<LatencyStats | null> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return null
+  return TrackPlayer.getLatencyStats()
+}
+
+async function getChapters(): Promise<Chapter[]> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return []
+  return TrackPlayer.getChapters()
+}
+
+async function getWaveform(url: string | number, buckets: number): Promise<Waveform | null> {
+  if (!isSetupedPlayer || Platform.OS !== 'android') return null
+  const { duration, peaks } = await TrackPlayer.getWaveform({ url: resolveImportedPath(url) }, buckets)
+  return { duration, peaks: new Int8Array(decodeBase64(peaks).buffer) }
+}
+
 export default {
   // MARK: - General API
   setupPlayer,
@@ -292,6 +440,14 @@ export default {
   setVolume,
   setRate,
   setRepeatMode,
+  skipToChapter,
+  skipToNextChapter,
+  skipToPreviousChapter,
+  setAudioEffects,
+
+  // MARK: - Browse API
+  setBrowseChildren,
+  notifyBrowseChildrenChanged,
 
   // MARK: - Getters
   getVolume,
@@ -306,5 +462,9 @@ export default {
   getRepeatMode,
   isCached,
   getCacheSize,
-  clearCache
+  clearCache,
+  getLatencyStats,
+  getDebugTrace,
+  getChapters,
+  getWaveform,
 }